@@ -0,0 +1,176 @@
+package com.naname.chartographer.benchmark;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.CanvasRepository;
+import com.naname.chartographer.data.CanvasService;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentCache;
+import com.naname.chartographer.data.FragmentIndex;
+import com.naname.chartographer.data.FragmentMetrics;
+import com.naname.chartographer.data.FragmentRepository;
+import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.data.IoPool;
+import com.naname.chartographer.data.RegionCache;
+import com.naname.chartographer.data.RegionLocks;
+import com.naname.chartographer.data.RenderPool;
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileJournal;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.FileSystemUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Холст со случайными фрагментами на диске во временной директории. Сервисы собираются без Spring,
+ * репозитории заменены заглушками, так что измеряется только работа с изображениями и файлами.
+ * <p>
+ * overlap - средняя толщина наложения: сколько фрагментов в среднем покрывает один пиксель холста,
+ * по нему подбирается средний размер фрагмента. regionSize - сторона запрашиваемой области
+ * или загружаемого фрагмента.
+ */
+@State(Scope.Benchmark)
+public class CanvasBenchmarkState {
+
+    private static final int REGION_COUNT = 64;
+
+    @Param({"2000", "5000"})
+    public int canvasSize;
+
+    @Param({"100", "1000"})
+    public int fragmentCount;
+
+    @Param({"1", "3"})
+    public double overlap;
+
+    @Param({"256", "2000"})
+    public int regionSize;
+
+    @Param({"bmp"})
+    public String format;
+
+    @Param({"fragments"})
+    public String mode;
+
+    protected Canvas canvas;
+    protected FragmentService fragmentService;
+    protected CanvasService canvasService;
+    protected FragmentRepository fragmentRepository;
+    protected final Random random = new Random(1);
+
+    private Path dataDir;
+    private Fragment[] regions;
+    private int nextRegion;
+    private int nextId;
+
+    @Setup(Level.Trial)
+    public void setUpCanvas() throws IOException {
+        dataDir = Files.createTempDirectory("chartographer-jmh");
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+
+        canvas = new Canvas(canvasSize, canvasSize);
+        canvas.setId(1);
+        TileStore tileStore = new TileStore(StorageMode.valueOf(mode.toUpperCase()));
+        FragmentStorage fragmentStorage = new FragmentStorage(FragmentFormat.valueOf(format.toUpperCase()));
+        FragmentIndex fragmentIndex = new FragmentIndex();
+        FragmentCache fragmentCache = new FragmentCache(268435456);
+        Pyramid pyramid = new Pyramid(tileStore, 0);
+        // кэш ответов выключен: замеряется отрисовка, а не повторная выдача одной и той же области
+        RegionCache regionCache = new RegionCache(0);
+
+        // stubOnly: заглушка не запоминает вызовы, иначе за миллионы итераций съест всю память
+        fragmentRepository = Mockito.mock(FragmentRepository.class, Mockito.withSettings().stubOnly());
+        CanvasRepository canvasRepository = Mockito.mock(CanvasRepository.class, Mockito.withSettings().stubOnly());
+        when(canvasRepository.findById(canvas.getId())).thenReturn(Optional.of(canvas));
+        when(fragmentRepository.save(any())).thenAnswer(invocation -> {
+            Fragment fragment = invocation.getArgument(0);
+            fragment.setId(++nextId);
+            return fragment;
+        });
+
+        RegionLocks regionLocks = new RegionLocks();
+        fragmentService = new FragmentService(fragmentRepository, canvasRepository, tileStore, fragmentIndex,
+                fragmentCache, fragmentStorage, new RenderPool(0, 4), new IoPool(4),
+                new FragmentMetrics(new SimpleMeterRegistry(), fragmentCache, regionCache), pyramid, regionCache,
+                new TileJournal(StorageMode.FRAGMENTS), regionLocks);
+        canvasService = new CanvasService(canvasRepository, tileStore, fragmentIndex, fragmentCache, pyramid,
+                regionCache, fragmentStorage, regionLocks);
+
+        List<Fragment> fragments = new ArrayList<>();
+        int side = (int) Math.sqrt(overlap * canvasSize * canvasSize / fragmentCount);
+        ZonedDateTime date = ZonedDateTime.now().minusDays(1);
+        for (int i = 0; i < fragmentCount; i++) {
+            int width = randomSide(side);
+            int height = randomSide(side);
+            Fragment fragment = new Fragment(random.nextInt(canvasSize - width + 1),
+                    random.nextInt(canvasSize - height + 1), width, height);
+            fragment.setId(++nextId);
+            fragment.setCanvas(canvas);
+            fragment.setDate(date.plusNanos(i * 1000L));
+            BufferedImage image = randomImage(width, height);
+            if (tileStore.isEnabled())
+                tileStore.write(canvas, fragment.getX(), fragment.getY(), image);
+            else
+                fragmentStorage.save(image, fragment.getId());
+            fragments.add(fragment);
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(any())).thenAnswer(i -> new ArrayList<>(fragments));
+
+        regions = new Fragment[REGION_COUNT];
+        for (int i = 0; i < REGION_COUNT; i++) {
+            int size = Math.min(regionSize, canvasSize);
+            regions[i] = new Fragment(random.nextInt(canvasSize - size + 1), random.nextInt(canvasSize - size + 1),
+                    size, size);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteData() throws IOException {
+        FileSystemUtils.deleteRecursively(dataDir);
+    }
+
+    /**
+     * Следующая из заранее выбранных областей, чтобы запросы не попадали все время в одни и те же фрагменты
+     */
+    protected Fragment nextRegion() {
+        nextRegion = (nextRegion + 1) % REGION_COUNT;
+        return regions[nextRegion];
+    }
+
+    private int randomSide(int side) {
+        return Math.max(1, Math.min(canvasSize, side / 2 + random.nextInt(side + 1)));
+    }
+
+    protected BufferedImage randomImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        random.nextBytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    protected MockMultipartFile toBmp(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", out);
+        return new MockMultipartFile("image", out.toByteArray());
+    }
+}
@@ -0,0 +1,206 @@
+package com.naname.chartographer.benchmark;
+
+import com.naname.chartographer.ChartographerApplication;
+import com.naname.chartographer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный тест: приложение целиком с HTTP-сервером на случайном порту и тайловым холстом.
+ * Одна операция - волна из concurrency одновременных GET областей regionSize x regionSize, время волны
+ * сравнивается для обработки запросов на виртуальных потоках и на пуле потоков Tomcat.
+ * <p>
+ * slowUploads - число медленных клиентов, которые все время измерения загружают фрагменты: тело запроса
+ * приходит частями в течение UPLOAD_SECONDS, и поток, разбирающий multipart, все это время заблокирован.
+ * Когда медленных загрузок больше, чем потоков Tomcat, чтения на пуле потоков ждут освобождения потока.
+ * <p>
+ * mvn -P jmh test-compile exec:exec -Djmh.args="ConcurrentReadBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Dspring.devtools.restart.enabled=false")
+public class ConcurrentReadBenchmark {
+
+    private static final int CANVAS_SIZE = 5000;
+    private static final int FRAGMENT_COUNT = 50;
+    private static final int UPLOAD_SECONDS = 10;
+    private static final int UPLOAD_PARTS = 20;
+    private static final int READ_TIMEOUT_SECONDS = 120;
+    private static final String BOUNDARY = "chartographer";
+
+    @Param({"true", "false"})
+    public boolean virtualThreads;
+
+    @Param({"1000"})
+    public int concurrency;
+
+    @Param({"256"})
+    public int regionSize;
+
+    @Param({"0", "400"})
+    public int slowUploads;
+
+    private final Random random = new Random(1);
+    private Path dataDir;
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private ExecutorService clients;
+    private int port;
+    private String canvasPath;
+    private volatile boolean stopped;
+
+    @Setup(Level.Trial)
+    public void setUpServer() throws Exception {
+        dataDir = Files.createTempDirectory("chartographer-load");
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        context = new SpringApplicationBuilder(ChartographerApplication.class)
+                .properties("server.port=0",
+                        "server.tomcat.accept-count=" + (concurrency + slowUploads),
+                        "spring.threads.virtual.enabled=" + virtualThreads,
+                        "chartographer.storage.mode=tiles",
+                        "logging.level.root=WARN")
+                .run();
+        port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(60)).build();
+        // клиенты на обычных потоках, чтобы не делить планировщик виртуальных потоков с сервером
+        clients = Executors.newCachedThreadPool();
+
+        String id = client.send(HttpRequest.newBuilder(uri("/chartas/?width=" + CANVAS_SIZE + "&height=" + CANVAS_SIZE))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString()).body();
+        canvasPath = "/chartas/" + id + "/";
+
+        for (int i = 0; i < FRAGMENT_COUNT; i++) {
+            int width = 200 + random.nextInt(1000);
+            int height = 200 + random.nextInt(1000);
+            String query = "?x=" + random.nextInt(CANVAS_SIZE - width) + "&y=" + random.nextInt(CANVAS_SIZE - height)
+                    + "&width=" + width + "&height=" + height;
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri(canvasPath + query))
+                    .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(multipart(randomBmp(width, height)))).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200)
+                throw new IllegalStateException("Upload failed with status " + response.statusCode());
+        }
+
+        byte[] upload = multipart(randomBmp(10, 10));
+        for (int i = 0; i < slowUploads; i++) {
+            clients.submit(() -> {
+                while (!stopped)
+                    slowUpload(upload);
+                return null;
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownServer() throws IOException {
+        stopped = true;
+        clients.shutdownNow();
+        context.close();
+        FileSystemUtils.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    public long readWave() throws Exception {
+        List<Future<Long>> responses = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            URI uri = uri(canvasPath + "?x=" + random.nextInt(CANVAS_SIZE - regionSize)
+                    + "&y=" + random.nextInt(CANVAS_SIZE - regionSize) + "&width=" + regionSize + "&height=" + regionSize);
+            responses.add(clients.submit(() -> read(uri)));
+        }
+        long bytes = 0;
+        for (Future<Long> response : responses)
+            bytes += response.get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return bytes;
+    }
+
+    private long read(URI uri) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(uri).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200)
+                throw new IllegalStateException("Read failed with status " + response.statusCode());
+            return body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Загрузить фрагмент 10x10 в угол холста, отправляя тело запроса частями в течение UPLOAD_SECONDS
+     */
+    private void slowUpload(byte[] body) {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST " + canvasPath + "?x=0&y=0&width=10&height=10 HTTP/1.1\r\n"
+                    + "Host: localhost\r\nConnection: close\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            int partSize = (body.length + UPLOAD_PARTS - 1) / UPLOAD_PARTS;
+            for (int offset = 0; offset < body.length && !stopped; offset += partSize) {
+                out.write(body, offset, Math.min(partSize, body.length - offset));
+                out.flush();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(UPLOAD_SECONDS) / UPLOAD_PARTS);
+            }
+            socket.getInputStream().transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            // сервер останавливается или закрыл соединение, следующая загрузка откроет новое
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private byte[] randomBmp(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        int color = random.nextInt(0x1000000);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, color ^ (x * 31 + y));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] multipart(byte[] image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"image.bmp\"\r\n"
+                + "Content-Type: image/bmp\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(image);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,60 @@
+package com.naname.chartographer.benchmark;
+
+import com.naname.chartographer.util.RasterUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение попиксельного копирования фрагмента (getRGB/setRGB, как было в FragmentService#paintFragments)
+ * с построчным копированием через {@link RasterUtil}. Фрагмент в формате TYPE_3BYTE_BGR, как его декодирует ImageIO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaintFragmentsBenchmark {
+
+    @Param({"500", "5000"})
+    public int size;
+
+    private BufferedImage fragmentImage;
+    private BufferedImage res;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        fragmentImage = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                fragmentImage.setRGB(j, i, random.nextInt());
+        res = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage perPixel() {
+        for (int i = 0; i < size; i++) {
+            int y0 = getInsertPosition(i, 0, size, size);
+            for (int j = 0; j < size; j++) {
+                int x0 = getInsertPosition(j, 0, size, size);
+                res.setRGB(x0, y0, fragmentImage.getRGB(j, i));
+            }
+        }
+        return res;
+    }
+
+    @Benchmark
+    public BufferedImage bulkRows() {
+        RasterUtil.copy(fragmentImage, 0, 0, res, 0, 0, size, size);
+        return res;
+    }
+
+    private static int getInsertPosition(int current, int coord, int fragmentDimension, int canvasDimension) {
+        return Math.min(fragmentDimension, canvasDimension - coord)
+                - (Math.min(coord + fragmentDimension, canvasDimension) - current);
+    }
+}
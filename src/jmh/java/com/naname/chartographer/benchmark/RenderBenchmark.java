@@ -0,0 +1,73 @@
+package com.naname.chartographer.benchmark;
+
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.web.ChartasController;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Чтение областей холста: поиск пересекающихся фрагментов, отрисовка в изображение
+ * и полный путь GET-запроса с кодированием BMP или PNG (тело ответа пишется в пустой поток)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark extends CanvasBenchmarkState {
+
+    private ChartasController controller;
+    private BufferedImage res;
+
+    @Setup(Level.Trial)
+    public void setUpRender() {
+        controller = new ChartasController(canvasService, fragmentService, Deflater.BEST_SPEED);
+        int size = Math.min(regionSize, canvasSize);
+        res = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public List<Fragment> getIncidentFragments() {
+        return fragmentService.getIncidentFragments(canvas, nextRegion());
+    }
+
+    @Benchmark
+    public BufferedImage paintFragments() throws IOException {
+        fragmentService.paintFragments(canvas, nextRegion(), res);
+        return res;
+    }
+
+    @Benchmark
+    public void writeFragments() throws IOException {
+        fragmentService.writeFragments(canvas, nextRegion(), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void getFragment() throws IOException {
+        getFragment(new HttpHeaders());
+    }
+
+    @Benchmark
+    public void getFragmentPng() throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(List.of(MediaType.IMAGE_PNG));
+        getFragment(headers);
+    }
+
+    private void getFragment(HttpHeaders headers) throws IOException {
+        Fragment region = nextRegion();
+        ResponseEntity<StreamingResponseBody> response = controller.getFragment(canvas.getId(),
+                new Fragment(region.getX(), region.getY(), region.getWidth(), region.getHeight()), 0, headers);
+        response.getBody().writeTo(OutputStream.nullOutputStream());
+    }
+}
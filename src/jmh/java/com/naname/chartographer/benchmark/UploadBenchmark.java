@@ -0,0 +1,49 @@
+package com.naname.chartographer.benchmark;
+
+import com.naname.chartographer.data.Fragment;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка фрагмента размером regionSize x regionSize: сохранение и удаление перекрытых им фрагментов.
+ * Загруженные за итерацию фрагменты удаляются после нее, чтобы не забивать диск
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark extends CanvasBenchmarkState {
+
+    private MockMultipartFile image;
+    private final List<Integer> uploaded = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUpImage() throws IOException {
+        int size = Math.min(regionSize, canvasSize);
+        image = toBmp(randomImage(size, size));
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeUploaded() throws IOException {
+        for (int id : uploaded)
+            fragmentService.removeFragment(canvas, id);
+        uploaded.clear();
+    }
+
+    @Benchmark
+    public Fragment saveFragment() throws IOException {
+        Fragment region = nextRegion();
+        Fragment fragment = new Fragment(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+        fragment.setCanvas(canvas);
+        Fragment createdFragment = fragmentService.saveFragment(image, fragment);
+        fragmentService.removeInnerFragments(canvas, createdFragment);
+        uploaded.add(createdFragment.getId());
+        return createdFragment;
+    }
+}
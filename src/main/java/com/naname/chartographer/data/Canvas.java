@@ -1,11 +1,11 @@
 package com.naname.chartographer.data;
 
+import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 import org.hibernate.Hibernate;
 
-import javax.persistence.*;
 import java.util.List;
 import java.util.Objects;
 
@@ -24,6 +24,11 @@ public class Canvas {
     private int height;
     private int width;
 
+    /**
+     * Счетчик изменений холста, увеличивается при каждом сохранении фрагментов. Из него строится ETag ответа GET
+     */
+    private long revision;
+
     @OneToMany(mappedBy = "canvas", cascade = CascadeType.ALL)
     @ToString.Exclude
     private List<Fragment> fragments;
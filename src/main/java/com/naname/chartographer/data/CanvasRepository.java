@@ -1,8 +1,15 @@
 package com.naname.chartographer.data;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface CanvasRepository extends CrudRepository<Canvas, Integer> {
+
+    @Modifying
+    @Query("update Canvas c set c.revision = c.revision + 1 where c.id = :id")
+    void incrementRevision(@Param("id") int id);
 }
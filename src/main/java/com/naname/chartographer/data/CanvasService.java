@@ -1,42 +1,131 @@
 package com.naname.chartographer.data;
 
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.TileStore;
+import jakarta.persistence.EntityNotFoundException;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import javax.persistence.EntityNotFoundException;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
  * Сервис для работы с холстами.
  */
 @Service
+@Slf4j
 public class CanvasService {
 
     private final CanvasRepository canvasRepository;
+    private final TileStore tileStore;
+    private final FragmentIndex fragmentIndex;
+    private final FragmentCache fragmentCache;
+    private final Pyramid pyramid;
+    private final RegionCache regionCache;
+    private final FragmentStorage fragmentStorage;
+    private final RegionLocks regionLocks;
 
     @Autowired
-    public CanvasService(CanvasRepository canvasRepository) {
+    public CanvasService(CanvasRepository canvasRepository, TileStore tileStore,
+                         FragmentIndex fragmentIndex, FragmentCache fragmentCache, Pyramid pyramid,
+                         RegionCache regionCache, FragmentStorage fragmentStorage, RegionLocks regionLocks) {
         this.canvasRepository = canvasRepository;
+        this.tileStore = tileStore;
+        this.fragmentIndex = fragmentIndex;
+        this.fragmentCache = fragmentCache;
+        this.pyramid = pyramid;
+        this.regionCache = regionCache;
+        this.fragmentStorage = fragmentStorage;
+        this.regionLocks = regionLocks;
     }
 
+    /**
+     * Сохранить холст. Пирамида пустого холста сразу считается построенной, чтобы не строить ее
+     * при первом чтении с отдалением
+     */
     @Transactional
     public Canvas saveCanvas(Canvas canvas) {
-        return canvasRepository.save(canvas);
+        Canvas saved = canvasRepository.save(canvas);
+        try {
+            pyramid.markBuilt(saved.getId());
+        } catch (IOException e) {
+            log.error("Can't mark pyramid of canvas " + saved.getId() + " cause: " + e.getMessage());
+        }
+        return saved;
     }
 
+    /**
+     * Холст с размерами и ревизией из {@link FragmentIndex}, база читается только при первом обращении к холсту.
+     * Возвращенный объект не связан с сессией Hibernate
+     *
+     * @throws EntityNotFoundException если холста нет
+     */
     public Canvas getCanvasById(int id) throws EntityNotFoundException {
-        Optional<Canvas> canvas = canvasRepository.findById(id);
-        if (canvas.isEmpty())
+        Canvas canvas = fragmentIndex.getCanvas(id, canvasRepository::findById);
+        if (canvas == null)
             throw new EntityNotFoundException();
-        return canvas.get();
+        return canvas;
     }
 
+    /**
+     * Удалить холст. Тайлы и файлы фрагментов удаляются только после коммита, так что при откате строки
+     * не остаются без пикселей. Удаление идет под блокировкой записи всего холста ({@link RegionLocks}),
+     * поэтому сохранение фрагмента, начатое раньше, не создаст тайлы и файлы заново после удаления.
+     * Файлы, которые удалить не удалось, подберет {@link FragmentCompactor}
+     *
+     * @throws EntityNotFoundException если холста нет
+     */
     @Transactional
     public void deleteCanvas(int id) {
         Optional<Canvas> canvas = canvasRepository.findById(id);
         if (canvas.isEmpty())
             throw new EntityNotFoundException();
+        List<Integer> fragmentIds = new ArrayList<>();
+        for (Fragment fragment : canvas.get().getFragments())
+            fragmentIds.add(fragment.getId());
         canvasRepository.deleteById(id);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteFiles(canvas.get(), fragmentIds);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                deleteFiles(canvas.get(), fragmentIds);
+            }
+        });
+    }
+
+    /**
+     * Удалить тайлы и файлы фрагментов удаленного холста и забыть его в кэшах
+     */
+    private void deleteFiles(Canvas canvas, List<Integer> fragmentIds) {
+        List<Rectangle> area = List.of(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        RegionLocks.Held held = regionLocks.lockWrite(canvas, area);
+        try {
+            int id = canvas.getId();
+            tileStore.delete(id);
+            fragmentIndex.evict(id);
+            pyramid.evict(id);
+            regionCache.evict(id);
+            for (int fragmentId : fragmentIds) {
+                fragmentCache.invalidate(fragmentId);
+                try {
+                    fragmentStorage.delete(fragmentId);
+                } catch (IOException e) {
+                    log.error("Can't delete fragment " + fragmentId + " cause: " + e.getMessage());
+                }
+            }
+        } finally {
+            held.close();
+        }
     }
 }
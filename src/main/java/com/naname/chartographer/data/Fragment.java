@@ -1,10 +1,10 @@
 package com.naname.chartographer.data;
 
+import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
 import org.hibernate.Hibernate;
 
-import javax.persistence.*;
 import java.time.ZonedDateTime;
 import java.util.Objects;
 
@@ -0,0 +1,15 @@
+package com.naname.chartographer.data;
+
+import java.util.List;
+
+/**
+ * Пакетные операции с фрагментами в обход JPA: при генерации id через IDENTITY Hibernate
+ * вставляет строки по одной
+ */
+public interface FragmentBatchRepository {
+
+    /**
+     * Вставить фрагменты одним пакетом JDBC и проставить им сгенерированные id
+     */
+    void insertAll(List<Fragment> fragments);
+}
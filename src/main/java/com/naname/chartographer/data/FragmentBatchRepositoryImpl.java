@@ -0,0 +1,59 @@
+package com.naname.chartographer.data;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Реализация {@link FragmentBatchRepository}, подключается Spring Data к {@link FragmentRepository} по имени.
+ * Выполняется в текущей транзакции JPA
+ */
+public class FragmentBatchRepositoryImpl implements FragmentBatchRepository {
+
+    private static final String INSERT = "INSERT INTO Fragment (canvas_id, x, y, width, height, date) "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int BATCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public FragmentBatchRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void insertAll(List<Fragment> fragments) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+                for (int from = 0; from < fragments.size(); from += BATCH_SIZE) {
+                    List<Fragment> batch = fragments.subList(from, Math.min(from + BATCH_SIZE, fragments.size()));
+                    for (Fragment fragment : batch) {
+                        statement.setInt(1, fragment.getCanvas().getId());
+                        statement.setInt(2, fragment.getX());
+                        statement.setInt(3, fragment.getY());
+                        statement.setInt(4, fragment.getWidth());
+                        statement.setInt(5, fragment.getHeight());
+                        statement.setTimestamp(6, Timestamp.from(fragment.getDate().toInstant()));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        for (Fragment fragment : batch) {
+                            if (!keys.next())
+                                throw new SQLException("Missing generated id for " + fragment);
+                            fragment.setId(keys.getInt(1));
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+    }
+}
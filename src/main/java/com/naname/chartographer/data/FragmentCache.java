@@ -0,0 +1,65 @@
+package com.naname.chartographer.data;
+
+import com.naname.chartographer.util.LruCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * Кэш декодированных изображений фрагментов по id фрагмента с ограничением на занимаемую память.
+ * Размер бюджета задается chartographer.cache.fragments.max-bytes, 0 выключает кэш.
+ */
+@Component
+public class FragmentCache {
+
+    private final LruCache<Integer, BufferedImage> cache;
+
+    @Autowired
+    public FragmentCache(@Value("${chartographer.cache.fragments.max-bytes:268435456}") long maxBytes) {
+        this.cache = new LruCache<>(maxBytes, FragmentCache::sizeOf);
+    }
+
+    public BufferedImage get(int id) {
+        return cache.get(id);
+    }
+
+    public void put(int id, BufferedImage image) {
+        cache.put(id, image);
+    }
+
+    public void invalidate(int id) {
+        cache.invalidate(id);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * Память, занятая закэшированными пикселями, в байтах
+     */
+    public long getSizeInBytes() {
+        return cache.getWeight();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
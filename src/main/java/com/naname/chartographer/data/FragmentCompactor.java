@@ -0,0 +1,325 @@
+package com.naname.chartographer.data;
+
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновое уплотнение истории фрагментов, запускается раз в chartographer.compaction.interval-ms (0 - выключено).
+ * <ul>
+ * <li>Фрагменты, от которых видна малая часть, заменяются фрагментом размером с видимую часть, а невидимые
+ * вовсе (закрытые несколькими более новыми) удаляются.</li>
+ * <li>Соседние маленькие фрагменты (до chartographer.compaction.merge-max-pixels пикселей), вместе образующие
+ * прямоугольник, сливаются в один, если между ними по дате нет фрагментов, пересекающих более старый.</li>
+ * <li>Удаляются файлы фрагментов и каталоги тайлов, на которые больше нет ссылок в базе.</li>
+ * </ul>
+ * Замена не меняет ни одного пикселя холста: новый фрагмент рисуется из текущего состояния холста, получает дату
+ * более нового из заменяемых, и строка нового фрагмента вставляется в одной транзакции с удалением старых.
+ * Файл нового фрагмента пишется до конца транзакции, при падении он останется без ссылок и будет удален
+ * следующим проходом. Обрезка и слияние работают только в режиме fragments, в режиме materialized фрагменты -
+ * история для повтора и пересборки и не меняются. Чтение и запись фрагментов ограничены
+ * chartographer.compaction.max-bytes-per-second.
+ */
+@Component
+@Slf4j
+public class FragmentCompactor implements DisposableBean {
+
+    private static final int MAX_REWRITE_PIXELS = 1 << 24;
+
+    private final FragmentService fragmentService;
+    private final FragmentRepository fragmentRepository;
+    private final CanvasRepository canvasRepository;
+    private final FragmentStorage fragmentStorage;
+    private final FragmentIndex fragmentIndex;
+    private final FragmentCache fragmentCache;
+    private final TileStore tileStore;
+    private final RegionLocks regionLocks;
+    private final TransactionTemplate transactionTemplate;
+    private final long interval;
+    private final long maxBytesPerSecond;
+    private final long mergeMaxPixels;
+    private final Duration orphanGrace;
+    private ScheduledExecutorService executor;
+
+    @Autowired
+    public FragmentCompactor(FragmentService fragmentService, FragmentRepository fragmentRepository,
+                             CanvasRepository canvasRepository, FragmentStorage fragmentStorage,
+                             FragmentIndex fragmentIndex, FragmentCache fragmentCache, TileStore tileStore,
+                             RegionLocks regionLocks, TransactionTemplate transactionTemplate,
+                             @Value("${chartographer.compaction.interval-ms:3600000}") long interval,
+                             @Value("${chartographer.compaction.max-bytes-per-second:16777216}") long maxBytesPerSecond,
+                             @Value("${chartographer.compaction.merge-max-pixels:65536}") long mergeMaxPixels,
+                             @Value("${chartographer.compaction.orphan-grace-ms:3600000}") long orphanGrace) {
+        this.fragmentService = fragmentService;
+        this.fragmentRepository = fragmentRepository;
+        this.canvasRepository = canvasRepository;
+        this.fragmentStorage = fragmentStorage;
+        this.fragmentIndex = fragmentIndex;
+        this.fragmentCache = fragmentCache;
+        this.tileStore = tileStore;
+        this.regionLocks = regionLocks;
+        this.transactionTemplate = transactionTemplate;
+        this.interval = interval;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.mergeMaxPixels = mergeMaxPixels;
+        this.orphanGrace = Duration.ofMillis(orphanGrace);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (interval <= 0)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fragment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                log.error("Can't compact fragments cause: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Выполнить один проход уплотнения по всем холстам
+     */
+    public void compact() throws IOException, InterruptedException {
+        if (!tileStore.isEnabled())
+            for (Canvas canvas : canvasRepository.findAll())
+                try {
+                    compact(canvas);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Can't compact canvas " + canvas.getId() + " cause: " + e.getMessage());
+                }
+        deleteOrphans();
+    }
+
+    /**
+     * Обрезать и слить фрагменты холста
+     */
+    void compact(Canvas canvas) throws IOException, InterruptedException {
+        int cropped = 0;
+        int removed = 0;
+        for (Fragment fragment : getAll(canvas)) {
+            Rectangle visible;
+            RegionLocks.Held held = regionLocks.lockWrite(canvas, List.of(toRectangle(fragment)));
+            try {
+                List<Fragment> incident = fragmentService.getIncidentFragments(canvas, fragment);
+                if (!incident.contains(fragment))
+                    continue;
+                visible = getVisibleBounds(canvas, fragment, incident);
+                if (visible == null) {
+                    fragmentService.removeFragment(canvas, fragment.getId());
+                    removed++;
+                    continue;
+                }
+                long area = (long) fragment.getWidth() * fragment.getHeight();
+                if ((long) visible.width * visible.height * 4 > area * 3
+                        || (long) visible.width * visible.height > MAX_REWRITE_PIXELS)
+                    continue;
+                replace(canvas, List.of(fragment), visible, fragment);
+                cropped++;
+            } finally {
+                held.close();
+            }
+            throttle(visible);
+        }
+
+        int merged = 0;
+        Set<Integer> replaced = new HashSet<>();
+        for (Fragment fragment : getAll(canvas)) {
+            if (replaced.contains(fragment.getId()) || !isSmall(fragment))
+                continue;
+            for (Fragment neighbour : fragmentService.getIncidentFragments(canvas, fragment)) {
+                Rectangle union = getUnion(fragment, neighbour);
+                if (union == null || replaced.contains(neighbour.getId()))
+                    continue;
+                RegionLocks.Held held = regionLocks.lockWrite(canvas, List.of(union));
+                try {
+                    Fragment newer = getMergeTarget(canvas, fragment, neighbour, union);
+                    if (newer == null)
+                        continue;
+                    replace(canvas, List.of(fragment, neighbour), union, newer);
+                } finally {
+                    held.close();
+                }
+                replaced.add(fragment.getId());
+                replaced.add(neighbour.getId());
+                merged++;
+                throttle(union);
+                break;
+            }
+        }
+        if (cropped + removed + merged > 0)
+            log.info("Compacted canvas " + canvas.getId() + ": cropped " + cropped + ", removed " + removed
+                    + ", merged " + merged + " fragments");
+    }
+
+    /**
+     * Удалить файлы фрагментов, которых нет в базе, и тайлы удаленных холстов, не изменявшиеся дольше
+     * chartographer.compaction.orphan-grace-ms
+     */
+    void deleteOrphans() throws IOException {
+        BitSet ids = new BitSet();
+        for (int id : fragmentRepository.findAllIds())
+            ids.set(id);
+        Instant before = Instant.now().minus(orphanGrace);
+        int files = fragmentStorage.deleteUnreferenced(ids::get, before);
+
+        int canvases = 0;
+        Path tiles = FileUtil.getTilesAbsolutePath().toPath();
+        if (Files.isDirectory(tiles))
+            // кроме каталогов холстов здесь лежит журнал режима materialized
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tiles, Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    String name = dir.getFileName().toString();
+                    if (!name.matches("\\d{1,9}") || canvasRepository.existsById(Integer.parseInt(name))
+                            || Files.getLastModifiedTime(dir).toInstant().isAfter(before))
+                        continue;
+                    tileStore.delete(Integer.parseInt(name));
+                    canvases++;
+                }
+            }
+        if (files + canvases > 0)
+            log.info("Deleted " + files + " unreferenced fragment files and tiles of " + canvases + " canvases");
+    }
+
+    private List<Fragment> getAll(Canvas canvas) {
+        return fragmentService.getIncidentFragments(canvas, new Fragment(0, 0, canvas.getWidth(), canvas.getHeight()));
+    }
+
+    /**
+     * Границы видимой части фрагмента в пределах холста, null если фрагмент не виден вовсе
+     */
+    private static Rectangle getVisibleBounds(Canvas canvas, Fragment fragment, List<Fragment> incident) {
+        Rectangle area = toRectangle(fragment).intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        Rectangle bounds = null;
+        for (Occlusion.Part part : Occlusion.getVisibleParts(incident, area))
+            if (part.getFragment().getId() == fragment.getId())
+                bounds = bounds == null ? part.getArea() : bounds.union(part.getArea());
+        return bounds;
+    }
+
+    private boolean isSmall(Fragment fragment) {
+        return (long) fragment.getWidth() * fragment.getHeight() <= mergeMaxPixels;
+    }
+
+    /**
+     * Прямоугольник, который вместе образуют два соседних фрагмента с общей стороной, null если не образуют
+     */
+    private static Rectangle getUnion(Fragment first, Fragment second) {
+        if (first.getId() == second.getId())
+            return null;
+        boolean sideBySide = first.getY() == second.getY() && first.getHeight() == second.getHeight()
+                && (first.getX() + first.getWidth() == second.getX() || second.getX() + second.getWidth() == first.getX());
+        boolean stacked = first.getX() == second.getX() && first.getWidth() == second.getWidth()
+                && (first.getY() + first.getHeight() == second.getY() || second.getY() + second.getHeight() == first.getY());
+        return sideBySide || stacked ? toRectangle(first).union(toRectangle(second)) : null;
+    }
+
+    /**
+     * Более новый из двух фрагментов, если их можно слить, иначе null. Слитый фрагмент получает дату более нового,
+     * поэтому между ними по дате не должно быть фрагментов, пересекающих более старый
+     */
+    private Fragment getMergeTarget(Canvas canvas, Fragment first, Fragment second, Rectangle union) {
+        if (!isSmall(first) || !isSmall(second))
+            return null;
+        List<Fragment> incident = fragmentService.getIncidentFragments(canvas,
+                new Fragment(union.x, union.y, union.width, union.height));
+        int firstIndex = incident.indexOf(first);
+        int secondIndex = incident.indexOf(second);
+        if (firstIndex < 0 || secondIndex < 0)
+            return null;
+        Fragment older = firstIndex < secondIndex ? first : second;
+        for (int i = Math.min(firstIndex, secondIndex) + 1; i < Math.max(firstIndex, secondIndex); i++)
+            if (toRectangle(incident.get(i)).intersects(toRectangle(older)))
+                return null;
+        return firstIndex < secondIndex ? second : first;
+    }
+
+    /**
+     * Заменить фрагменты одним фрагментом с областью area и датой фрагмента dated. Вызывается под блокировкой
+     * записи области
+     */
+    private void replace(Canvas canvas, List<Fragment> fragments, Rectangle area, Fragment dated) throws IOException {
+        BufferedImage image = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+        fragmentService.paintFragments(canvas, new Fragment(area.x, area.y, area.width, area.height), image);
+
+        Fragment replacement = new Fragment(area.x, area.y, area.width, area.height);
+        replacement.setCanvas(canvas);
+        replacement.setDate(dated.getDate());
+        List<Integer> ids = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments)
+            ids.add(fragment.getId());
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                fragmentRepository.save(replacement);
+                try {
+                    fragmentStorage.save(image, replacement.getId());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                fragmentRepository.deleteAllByIdInBatch(ids);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        for (int id : ids) {
+            fragmentIndex.remove(canvas.getId(), id);
+            fragmentCache.invalidate(id);
+            fragmentStorage.delete(id);
+        }
+        fragmentIndex.add(replacement);
+    }
+
+    /**
+     * Выдержать паузу, чтобы чтение и запись area укладывались в chartographer.compaction.max-bytes-per-second
+     */
+    private void throttle(Rectangle area) throws InterruptedException {
+        if (area == null || maxBytesPerSecond <= 0)
+            return;
+        long bytes = 2L * 3 * area.width * area.height;
+        Thread.sleep(bytes * 1000 / maxBytesPerSecond);
+    }
+
+    private static Rectangle toRectangle(Fragment fragment) {
+        return new Rectangle(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight());
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+}
@@ -0,0 +1,396 @@
+package com.naname.chartographer.data;
+
+import org.springframework.stereotype.Component;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Каталог холстов и фрагментов в памяти. База остается источником истины, каталог загружается из нее при первом
+ * обращении к холсту и дальше поддерживается при сохранении и удалении фрагментов и холстов, так что чтения
+ * не ходят в базу.
+ * <p>
+ * Холст хранится размерами и ревизией. Фрагменты холста хранятся массивами примитивов (координаты, размеры,
+ * порядковый ключ по дате) и раскладываются по ячейкам сетки CELL_SIZE x CELL_SIZE, поиск пересечений
+ * просматривает только ячейки, покрытые запрашиваемой областью, поэтому стоит O(ячеек + k log k),
+ * а не O(всех фрагментов холста). Найденные фрагменты отдаются копиями, созданными при загрузке, а не новыми
+ * сущностями.
+ */
+@Component
+public class FragmentIndex {
+
+    static final int CELL_SIZE = 512;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Map<Integer, CanvasIndex> canvases = new ConcurrentHashMap<>();
+    private final Map<Integer, CanvasEntry> canvasEntries = new ConcurrentHashMap<>();
+    // изменения холстов, индекс которых еще не загружен: id фрагмента -> фрагмент или null, если он удален.
+    // Загрузка может прочитать базу до коммита этих изменений, поэтому они применяются поверх загруженного
+    private final Map<Integer, Map<Integer, Fragment>> pending = new ConcurrentHashMap<>();
+    // холст загружается из базы под своей блокировкой, а не внутри ConcurrentHashMap.computeIfAbsent:
+    // запрос к базе не держит блокировку корзины карты и не занимает поток-носитель виртуального потока
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    public FragmentIndex() {
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Холст с размерами и ревизией из каталога. База читается только при первом обращении к холсту,
+     * дальше ревизия увеличивается через {@link #incrementRevision}. Каждый вызов возвращает новый объект,
+     * не связанный с сессией Hibernate
+     *
+     * @param id     id холста
+     * @param loader загрузчик холста из базы
+     * @return холст или null, если его нет
+     */
+    public Canvas getCanvas(int id, IntFunction<Optional<Canvas>> loader) {
+        CanvasEntry entry = canvasEntries.get(id);
+        if (entry == null) {
+            // увеличение ревизии берет ту же блокировку, поэтому дождется загрузки
+            Lock lock = getLock(id);
+            lock.lock();
+            try {
+                entry = canvasEntries.get(id);
+                if (entry == null) {
+                    entry = loader.apply(id).map(CanvasEntry::new).orElse(null);
+                    if (entry == null)
+                        return null;
+                    canvasEntries.put(id, entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        Canvas canvas = new Canvas(entry.width, entry.height);
+        canvas.setId(id);
+        canvas.setRevision(entry.revision);
+        return canvas;
+    }
+
+    /**
+     * Увеличить ревизию холста в каталоге. Вызывается после увеличения ревизии в базе
+     *
+     * @param canvasId id холста
+     */
+    public void incrementRevision(int canvasId) {
+        Lock lock = getLock(canvasId);
+        lock.lock();
+        try {
+            CanvasEntry entry = canvasEntries.get(canvasId);
+            if (entry != null)
+                entry.revision++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Список фрагментов холста, которые пересекаются с областью (касание границ тоже считается пересечением),
+     * упорядоченный по дате добавления
+     *
+     * @param canvas холст
+     * @param area   область
+     * @param loader загрузчик всех фрагментов холста, вызывается только при первом обращении к холсту
+     */
+    public List<Fragment> getIncidentFragments(Canvas canvas, Fragment area, Function<Canvas, List<Fragment>> loader) {
+        CanvasIndex index = canvases.get(canvas.getId());
+        if (index == null) {
+            Lock lock = getLock(canvas.getId());
+            lock.lock();
+            try {
+                index = canvases.get(canvas.getId());
+                if (index == null) {
+                    index = new CanvasIndex(canvas, loader.apply(canvas));
+                    Map<Integer, Fragment> changes = pending.remove(canvas.getId());
+                    if (changes != null)
+                        for (Map.Entry<Integer, Fragment> change : changes.entrySet())
+                            if (change.getValue() != null)
+                                index.add(change.getValue());
+                            else
+                                index.remove(change.getKey());
+                    canvases.put(canvas.getId(), index);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return index.query(area.getX(), area.getY(), area.getWidth(), area.getHeight());
+    }
+
+    /**
+     * Добавить сохраненный фрагмент в индекс его холста. Если индекс холста еще не загружен, фрагмент добавится
+     * в него сразу после загрузки: загрузка могла прочитать базу до коммита фрагмента
+     */
+    public void add(Fragment fragment) {
+        int canvasId = fragment.getCanvas().getId();
+        Lock lock = getLock(canvasId);
+        lock.lock();
+        try {
+            CanvasIndex index = canvases.get(canvasId);
+            if (index != null)
+                index.add(fragment);
+            else
+                pending.computeIfAbsent(canvasId, id -> new LinkedHashMap<>()).put(fragment.getId(), fragment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удалить фрагмент из индекса холста. Если индекс холста еще не загружен, фрагмент удалится из него
+     * сразу после загрузки
+     *
+     * @param canvasId id холста
+     * @param id       id фрагмента
+     */
+    public void remove(int canvasId, int id) {
+        Lock lock = getLock(canvasId);
+        lock.lock();
+        try {
+            CanvasIndex index = canvases.get(canvasId);
+            if (index != null)
+                index.remove(id);
+            else
+                pending.computeIfAbsent(canvasId, key -> new LinkedHashMap<>()).put(id, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Забыть холст и его фрагменты, например после удаления холста
+     *
+     * @param canvasId id холста
+     */
+    public void evict(int canvasId) {
+        Lock lock = getLock(canvasId);
+        lock.lock();
+        try {
+            canvases.remove(canvasId);
+            canvasEntries.remove(canvasId);
+            pending.remove(canvasId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lock getLock(int canvasId) {
+        return locks[Math.floorMod(canvasId, LOCK_STRIPES)];
+    }
+
+    private static class CanvasEntry {
+        private final int width;
+        private final int height;
+        private volatile long revision;
+
+        CanvasEntry(Canvas canvas) {
+            this.width = canvas.getWidth();
+            this.height = canvas.getHeight();
+            this.revision = canvas.getRevision();
+        }
+    }
+
+    /**
+     * Фрагменты одного холста. Фрагмент занимает слот - индекс в массивах геометрии, слоты удаленных фрагментов
+     * используются повторно. Порядок по дате (при равных датах - по id) задается рангом слота: новые фрагменты
+     * обычно новее всех остальных и получают следующий ранг, иначе ранги пересчитываются при следующем поиске.
+     * Фрагменты и области за границами холста прижимаются к крайним ячейкам, поэтому пересекающиеся
+     * прямоугольники всегда делят хотя бы одну ячейку.
+     */
+    private static class CanvasIndex {
+        private final Canvas canvas;
+        private final int columns;
+        private final int rows;
+        private final int[][] cells;
+        private final int[] cellSizes;
+        private final Map<Integer, Integer> slotsById = new HashMap<>();
+        private int[] freeSlots = new int[16];
+        private int freeCount;
+        private int slotCount;
+
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private int[] widths = new int[16];
+        private int[] heights = new int[16];
+        private int[] ids = new int[16];
+        private long[] sequences = new long[16];
+        private int[] ranks = new int[16];
+        private Fragment[] fragments = new Fragment[16];
+
+        private boolean ranked;
+        private int nextRank;
+        // ключ самого нового фрагмента, получившего ранг
+        private long lastSequence = Long.MIN_VALUE;
+        private int lastId = Integer.MIN_VALUE;
+
+        // буферы поиска: отметки просмотренных слотов и ключи сортировки (ранг << 32 | слот)
+        private int[] seen = new int[16];
+        private int stamp;
+        private long[] found = new long[16];
+
+        CanvasIndex(Canvas canvas, List<Fragment> fragments) {
+            this.canvas = canvas;
+            this.columns = canvas.getWidth() / CELL_SIZE + 1;
+            this.rows = canvas.getHeight() / CELL_SIZE + 1;
+            this.cells = new int[columns * rows][];
+            this.cellSizes = new int[columns * rows];
+            for (Fragment fragment : fragments)
+                put(fragment);
+        }
+
+        synchronized void add(Fragment fragment) {
+            if (!slotsById.containsKey(fragment.getId()))
+                put(fragment);
+        }
+
+        synchronized void remove(int id) {
+            Integer slot = slotsById.remove(id);
+            if (slot == null)
+                return;
+            forEachCell(xs[slot], ys[slot], widths[slot], heights[slot], cell -> {
+                int[] list = cells[cell];
+                for (int i = 0; i < cellSizes[cell]; i++)
+                    if (list[i] == slot) {
+                        list[i] = list[--cellSizes[cell]];
+                        break;
+                    }
+            });
+            fragments[slot] = null;
+            freeSlots = grow(freeSlots, freeCount + 1);
+            freeSlots[freeCount++] = slot;
+        }
+
+        synchronized List<Fragment> query(int x, int y, int width, int height) {
+            if (!ranked)
+                rank();
+            if (++stamp == 0) {
+                Arrays.fill(seen, 0);
+                stamp = 1;
+            }
+            int[] count = new int[1];
+            forEachCell(x, y, width, height, cell -> {
+                int[] list = cells[cell];
+                for (int i = 0; i < cellSizes[cell]; i++) {
+                    int slot = list[i];
+                    if (seen[slot] == stamp)
+                        continue;
+                    seen[slot] = stamp;
+                    if (xs[slot] + widths[slot] >= x && x + width >= xs[slot]
+                            && ys[slot] + heights[slot] >= y && y + height >= ys[slot]) {
+                        found = grow(found, count[0] + 1);
+                        found[count[0]++] = (long) ranks[slot] << 32 | slot;
+                    }
+                }
+            });
+            Arrays.sort(found, 0, count[0]);
+            List<Fragment> result = new ArrayList<>(count[0]);
+            for (int i = 0; i < count[0]; i++)
+                result.add(fragments[(int) found[i]]);
+            return result;
+        }
+
+        /**
+         * Фрагмент хранится копией, чтобы не держать в памяти сущности, привязанные к закрытой сессии Hibernate
+         */
+        private void put(Fragment source) {
+            Fragment fragment = new Fragment(source.getX(), source.getY(), source.getWidth(), source.getHeight());
+            fragment.setId(source.getId());
+            fragment.setDate(source.getDate());
+            fragment.setCanvas(canvas);
+
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount++;
+            if (slot == xs.length) {
+                int capacity = slot * 2;
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                fragments = Arrays.copyOf(fragments, capacity);
+                seen = Arrays.copyOf(seen, capacity);
+            }
+            xs[slot] = fragment.getX();
+            ys[slot] = fragment.getY();
+            widths[slot] = fragment.getWidth();
+            heights[slot] = fragment.getHeight();
+            ids[slot] = fragment.getId();
+            sequences[slot] = toSequence(fragment.getDate());
+            fragments[slot] = fragment;
+            slotsById.put(fragment.getId(), slot);
+
+            long sequence = sequences[slot];
+            if (ranked && nextRank < Integer.MAX_VALUE && (sequence > lastSequence
+                    || sequence == lastSequence && fragment.getId() > lastId)) {
+                ranks[slot] = nextRank++;
+                lastSequence = sequence;
+                lastId = fragment.getId();
+            } else
+                ranked = false;
+
+            forEachCell(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight(), cell -> {
+                cells[cell] = grow(cells[cell] == null ? new int[4] : cells[cell], cellSizes[cell] + 1);
+                cells[cell][cellSizes[cell]++] = slot;
+            });
+        }
+
+        /**
+         * Пересчитать ранги всех слотов по дате и id
+         */
+        private void rank() {
+            Integer[] order = slotsById.values().toArray(new Integer[0]);
+            Arrays.sort(order, this::compare);
+            for (int i = 0; i < order.length; i++)
+                ranks[order[i]] = i;
+            nextRank = order.length;
+            if (order.length > 0) {
+                lastSequence = sequences[order[order.length - 1]];
+                lastId = ids[order[order.length - 1]];
+            }
+            ranked = true;
+        }
+
+        private int compare(int first, int second) {
+            int bySequence = Long.compare(sequences[first], sequences[second]);
+            return bySequence != 0 ? bySequence : Integer.compare(ids[first], ids[second]);
+        }
+
+        /**
+         * Ключ порядка по дате, фрагменты без даты считаются самыми старыми
+         */
+        private static long toSequence(ZonedDateTime date) {
+            return date == null ? Long.MIN_VALUE : date.toEpochSecond() * 1_000_000_000L + date.getNano();
+        }
+
+        private void forEachCell(int x, int y, int width, int height, IntConsumer consumer) {
+            int startColumn = clamp(x / CELL_SIZE, columns);
+            int endColumn = clamp((x + width) / CELL_SIZE, columns);
+            int startRow = clamp(y / CELL_SIZE, rows);
+            int endRow = clamp((y + height) / CELL_SIZE, rows);
+            for (int row = startRow; row <= endRow; row++)
+                for (int column = startColumn; column <= endColumn; column++)
+                    consumer.accept(row * columns + column);
+        }
+
+        private static int clamp(int value, int size) {
+            return Math.max(0, Math.min(value, size - 1));
+        }
+
+        private static int[] grow(int[] array, int size) {
+            return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+        }
+
+        private static long[] grow(long[] array, int size) {
+            return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+        }
+    }
+}
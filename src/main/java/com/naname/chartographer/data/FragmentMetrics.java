@@ -0,0 +1,110 @@
+package com.naname.chartographer.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики отрисовки и хранения фрагментов, публикуются вместе с остальными метриками Micrometer
+ * (в Prometheus-формате на /actuator/prometheus). Время HTTP-запросов по эндпоинтам снимает Spring MVC
+ * (http.server.requests).
+ */
+@Component
+public class FragmentMetrics {
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> ioTimers = new ConcurrentHashMap<>();
+    private final Timer fragmentsQueryTimer;
+    private final DistributionSummary renderedFragments;
+    private final Counter decodedBytes;
+    private final Counter encodedBytes;
+
+    @Autowired
+    public FragmentMetrics(MeterRegistry registry, FragmentCache fragmentCache, RegionCache regionCache) {
+        this.registry = registry;
+        this.fragmentsQueryTimer = Timer.builder("chartographer.db.fragments")
+                .description("Загрузка фрагментов холста из базы")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.renderedFragments = DistributionSummary.builder("chartographer.render.fragments")
+                .description("Число фрагментов, видимых в запрошенной области")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.decodedBytes = Counter.builder("chartographer.image.decoded")
+                .description("Декодированные пиксели RGB")
+                .baseUnit("bytes")
+                .register(registry);
+        this.encodedBytes = Counter.builder("chartographer.image.encoded")
+                .description("Отданные изображения (BMP, PNG, raw)")
+                .baseUnit("bytes")
+                .register(registry);
+
+        FunctionCounter.builder("chartographer.cache.fragments.hits", fragmentCache, FragmentCache::getHits)
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.fragments.misses", fragmentCache, FragmentCache::getMisses)
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.fragments.evictions", fragmentCache,
+                FragmentCache::getEvictions).register(registry);
+        Gauge.builder("chartographer.cache.fragments.size", fragmentCache, FragmentCache::getSizeInBytes)
+                .baseUnit("bytes")
+                .register(registry);
+
+        FunctionCounter.builder("chartographer.cache.regions.hits", regionCache, RegionCache::getHits)
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.regions.misses", regionCache, RegionCache::getMisses)
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.regions.evictions", regionCache,
+                RegionCache::getEvictions).register(registry);
+        Gauge.builder("chartographer.cache.regions.size", regionCache, RegionCache::getSizeInBytes)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Выполнить файловую операцию, записав ее время в chartographer.storage.io с тегом operation
+     */
+    public <T> T timeIo(String operation, IoOperation<T> io) throws IOException {
+        Timer timer = ioTimers.computeIfAbsent(operation, op -> Timer.builder("chartographer.storage.io")
+                .description("Файловые операции с фрагментами и тайлами")
+                .tag("operation", op)
+                .publishPercentileHistogram()
+                .register(registry));
+        long start = System.nanoTime();
+        try {
+            return io.run();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public Timer getFragmentsQueryTimer() {
+        return fragmentsQueryTimer;
+    }
+
+    public void recordRenderedFragments(int count) {
+        renderedFragments.record(count);
+    }
+
+    public void recordDecoded(long bytes) {
+        decodedBytes.increment(bytes);
+    }
+
+    public void recordEncoded(long bytes) {
+        encodedBytes.increment(bytes);
+    }
+
+    @FunctionalInterface
+    public interface IoOperation<T> {
+        T run() throws IOException;
+    }
+}
@@ -1,12 +1,16 @@
 package com.naname.chartographer.data;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
 
 @Repository
-public interface FragmentRepository extends JpaRepository<Fragment, Integer> {
+public interface FragmentRepository extends JpaRepository<Fragment, Integer>, FragmentBatchRepository {
 
     List<Fragment> getFragmentsByCanvasOrderByDate(Canvas canvas);
+
+    @Query("select f.id from Fragment f")
+    List<Integer> findAllIds();
 }
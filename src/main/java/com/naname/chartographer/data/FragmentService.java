@@ -1,27 +1,57 @@
 package com.naname.chartographer.data;
 
+import com.naname.chartographer.image.BmpWriter;
+import com.naname.chartographer.image.ImageSizeException;
+import com.naname.chartographer.image.RasterReader;
+import com.naname.chartographer.image.RasterWriter;
+import com.naname.chartographer.storage.DecodedFragmentImage;
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentImage;
+import com.naname.chartographer.storage.FragmentImageReader;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.FragmentWriter;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.storage.TileJournal;
+import com.naname.chartographer.storage.TileWriter;
 import com.naname.chartographer.util.FileUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.file.SimplePathVisitor;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.ImageIO;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileVisitResult;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Сервис для обработки фрагментов
@@ -30,118 +60,819 @@ import java.util.stream.Collectors;
 @Slf4j
 public class FragmentService {
 
+    private static final int BAND_HEIGHT = 64;
+
     private final FragmentRepository fragmentRepository;
+    private final CanvasRepository canvasRepository;
+    private final TileStore tileStore;
+    private final FragmentIndex fragmentIndex;
+    private final FragmentCache fragmentCache;
+    private final FragmentStorage fragmentStorage;
+    private final RenderPool renderPool;
+    private final IoPool ioPool;
+    private final FragmentMetrics metrics;
+    private final Pyramid pyramid;
+    private final RegionCache regionCache;
+    private final TileJournal journal;
+    private final RegionLocks regionLocks;
 
     @Autowired
-    public FragmentService(FragmentRepository fragmentRepository) {
+    public FragmentService(FragmentRepository fragmentRepository, CanvasRepository canvasRepository,
+                           TileStore tileStore, FragmentIndex fragmentIndex, FragmentCache fragmentCache,
+                           FragmentStorage fragmentStorage, RenderPool renderPool, IoPool ioPool,
+                           FragmentMetrics metrics, Pyramid pyramid, RegionCache regionCache, TileJournal journal,
+                           RegionLocks regionLocks) {
         this.fragmentRepository = fragmentRepository;
+        this.canvasRepository = canvasRepository;
+        this.tileStore = tileStore;
+        this.fragmentIndex = fragmentIndex;
+        this.fragmentCache = fragmentCache;
+        this.fragmentStorage = fragmentStorage;
+        this.renderPool = renderPool;
+        this.ioPool = ioPool;
+        this.metrics = metrics;
+        this.pyramid = pyramid;
+        this.regionCache = regionCache;
+        this.journal = journal;
+        this.regionLocks = regionLocks;
     }
 
     /**
-     * Сохранить фрагмент. Дата нужна для определения более новых фрагментов
+     * Сохранить фрагмент. Дата нужна для определения более новых фрагментов.
+     * В тайловом режиме изображение сразу накладывается на тайлы холста и отдельным файлом не хранится.
+     * В режиме materialized изображение накладывается на тайлы через {@link TileJournal} и сохраняется еще и
+     * отдельным файлом - для повтора наложения из журнала и пересборки холста.
+     * Фрагмент сразу накладывается и на уменьшенные уровни {@link Pyramid}; для этого записанное изображение читается
+     * построчно, BMP - из временного raw-файла (см. {@link #getStagedPath}), так что целиком оно не декодируется.
+     * Ревизия холста увеличивается в той же транзакции, после записи изображения, тогда же из {@link RegionCache}
+     * удаляются пересекающиеся с фрагментом области. Запись идет под блокировкой области фрагмента ({@link RegionLocks}),
+     * дата фрагмента назначается уже под ней, так что перекрывающиеся фрагменты накладываются в порядке дат
+     * Изображение читается из запроса построчно, сохраняется только его часть, лежащая на холсте.
+     * На тайлы накладывается только изображение, целиком прочитанное и записанное в файл (см. {@link #writeTiles}),
+     * поэтому при любой ошибке чтения холст не меняется, а транзакция откатывается
      *
      * @param image связанный холст
      * @return созданный фрагмент
-     * @throws IOException если не удалось сохранить на диск
+     * @throws ImageSizeException если размеры изображения не совпадают с размерами фрагмента
+     * @throws IOException        если не удалось сохранить на диск
      */
-    @Transactional
+    @Transactional(rollbackFor = IOException.class)
     public Fragment saveFragment(MultipartFile image, Fragment fragment) throws IOException {
-        fragment.setDate(ZonedDateTime.now(ZoneId.of("Europe/Moscow")));
-        fragmentRepository.save(fragment);
-        saveImage(image, fragment.getId());
+        List<Rectangle> areas = List.of(toRectangle(fragment));
+        RegionLocks.Held held = regionLocks.lockWrite(fragment.getCanvas(), areas);
+        try {
+            fragment.setDate(ZonedDateTime.now(ZoneId.of("Europe/Moscow")));
+            fragmentRepository.save(fragment);
+            Path staged = getStagedPath(fragment);
+            try {
+                writeImage(image, fragment, staged);
+                applyImage(fragment, staged);
+            } finally {
+                deleteStaged(staged);
+            }
+            incrementRevision(fragment.getCanvas().getId());
+            fragmentIndex.add(fragment);
+            regionCache.invalidate(fragment.getCanvas().getId(), areas);
+        } finally {
+            held.close();
+        }
         return fragment;
     }
 
-    public List<Fragment> getFragments(Canvas canvas) {
-        return fragmentRepository.getFragmentsByCanvasOrderByDate(canvas);
+    /**
+     * Сохранить пачку фрагментов одного холста. Фрагменты вставляются в базу одним пакетом, их даты идут
+     * через микросекунду в порядке следования, так что более поздние фрагменты пачки накладываются поверх
+     * более ранних. Даты назначаются под блокировкой областей пачки. Файлы пишутся параллельно,
+     * тайлы и уровни пирамиды - по порядку
+     *
+     * @param canvas    холст
+     * @param fragments фрагменты с координатами и размерами
+     * @param images    изображения фрагментов в том же порядке
+     * @return сохраненные фрагменты
+     */
+    @Transactional(rollbackFor = IOException.class)
+    public List<Fragment> saveFragments(Canvas canvas, List<Fragment> fragments, List<MultipartFile> images)
+            throws IOException {
+        List<Rectangle> areas = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments)
+            areas.add(toRectangle(fragment));
+        RegionLocks.Held held = regionLocks.lockWrite(canvas, areas);
+        try {
+            // база хранит даты с точностью до микросекунды, иначе фрагменты из базы оказались бы старше самих себя
+            ZonedDateTime date = ZonedDateTime.now(ZoneId.of("Europe/Moscow")).truncatedTo(ChronoUnit.MICROS);
+            for (int i = 0; i < fragments.size(); i++) {
+                fragments.get(i).setCanvas(canvas);
+                fragments.get(i).setDate(date.plusNanos(1000L * i));
+            }
+            fragmentRepository.insertAll(fragments);
+
+            writeFragmentImages(canvas, fragments, images);
+            incrementRevision(canvas.getId());
+            for (Fragment fragment : fragments)
+                fragmentIndex.add(fragment);
+            regionCache.invalidate(canvas.getId(), areas);
+        } finally {
+            held.close();
+        }
+        return fragments;
     }
 
     /**
-     * Удалить из базы и диска изображения с заданным id (имя изображения совпадает с id)
-     *
-     * @param id связанный id фрагмента в базе
+     * Сохранить изображения пачки: файлы пишутся параллельно в {@link IoPool}, тайлы и уровни пирамиды - по порядку,
+     * после того как все изображения пачки прочитаны без ошибок
      */
-    public void removeFragment(int id) throws IOException {
-        Files.walkFileTree(FileUtil.getFragmentsAbsolutePath().toPath(), new SimplePathVisitor() {
+    private void writeFragmentImages(Canvas canvas, List<Fragment> fragments, List<MultipartFile> images)
+            throws IOException {
+        List<Path> staged = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments)
+            staged.add(getStagedPath(fragment));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(fragments.size());
+            for (int i = 0; i < fragments.size(); i++) {
+                MultipartFile image = images.get(i);
+                Fragment fragment = fragments.get(i);
+                Path file = staged.get(i);
+                tasks.add(() -> {
+                    writeImage(image, fragment, file);
+                    return null;
+                });
+            }
+            ioPool.invokeAll(tasks);
+
+            for (int i = 0; i < fragments.size(); i++)
+                applyImage(fragments.get(i), staged.get(i));
+        } finally {
+            for (Path file : staged)
+                deleteStaged(file);
+        }
+    }
+
+    /**
+     * Увеличить ревизию холста в базе и, после коммита, в {@link FragmentIndex}. Ревизия в памяти не обгоняет
+     * базу, поэтому ETag, выданный до перезапуска, не может совпасть с ETag другого содержимого после него
+     */
+    private void incrementRevision(int canvasId) {
+        canvasRepository.incrementRevision(canvasId);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            fragmentIndex.incrementRevision(canvasId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (file.getFileName().toString().equals(id + ".bmp"))
-                    Files.delete(file);
-                return FileVisitResult.TERMINATE;
+            public void afterCommit() {
+                fragmentIndex.incrementRevision(canvasId);
             }
         });
-        fragmentRepository.deleteById(id);
+    }
+
+    private static Rectangle toRectangle(Fragment fragment) {
+        return new Rectangle(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight());
+    }
+
+    /**
+     * Записать загруженное изображение фрагмента в файл фрагмента или, если staged не null, во временный
+     * raw-файл staged, а из него - в файл фрагмента, если файлы фрагментов хранятся. Изображение читается
+     * построчно (несжатый BMP - прямо из потока, не декодируясь целиком), строки за границами холста пропускаются
+     * и никуда не пишутся. Файл появляется, только если изображение прочитано целиком
+     *
+     * @throws ImageSizeException если размеры изображения не совпадают с размерами фрагмента
+     */
+    private void writeImage(MultipartFile image, Fragment fragment, Path staged) throws IOException {
+        metrics.timeIo("write", () -> {
+            try (InputStream in = image.getInputStream()) {
+                RasterReader reader = RasterReader.open(in);
+                if (reader.getWidth() != fragment.getWidth() || reader.getHeight() != fragment.getHeight())
+                    throw new ImageSizeException(reader.getWidth(), reader.getHeight(),
+                            fragment.getWidth(), fragment.getHeight());
+                int width = getVisibleWidth(fragment, reader.getWidth());
+                int height = getVisibleHeight(fragment, reader.getHeight());
+                try (FragmentWriter file = staged == null
+                        ? fragmentStorage.createWriter(fragment.getId(), width, height)
+                        : fragmentStorage.createWriter(staged, width, height)) {
+                    writeRows(reader, file, width, height);
+                }
+                metrics.recordDecoded(3L * width * height);
+                if (staged != null && keepsFragmentFiles())
+                    try (FragmentImage written = fragmentStorage.map(staged);
+                         FragmentWriter file = fragmentStorage.createWriter(fragment.getId(), width, height)) {
+                        writeRows(new FragmentImageReader(written), file, width, height);
+                    }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Наложить изображение, уже целиком записанное в файл, на тайлы холста или, в режиме fragments,
+     * на уровни пирамиды
+     */
+    private void applyImage(Fragment fragment, Path staged) throws IOException {
+        if (tileStore.isEnabled())
+            writeTiles(fragment, staged);
+        else if (pyramid.getLevels() > 0)
+            try (FragmentImage stored = openWritten(fragment, staged)) {
+                updatePyramid(fragment, stored);
+            }
+    }
+
+    /**
+     * Наложить на тайлы холста и уровни пирамиды изображение, уже целиком записанное в файл: временный
+     * raw-файл staged или, если он null (режим materialized), файл фрагмента. Наложение идет под защитой
+     * {@link TileJournal}
+     */
+    private void writeTiles(Fragment fragment, Path staged) throws IOException {
+        journal.append(fragment.getCanvas().getId(), fragment.getId(), () -> {
+            try (FragmentImage stored = openWritten(fragment, staged)) {
+                writeTiles(fragment, stored);
+            }
+        });
+    }
+
+    /**
+     * Открыть только что записанное изображение фрагмента без декодирования и мимо {@link FragmentCache}:
+     * временный raw-файл staged или, если он null, файл фрагмента в формате RAW или DEFLATE
+     */
+    private FragmentImage openWritten(Fragment fragment, Path staged) throws IOException {
+        if (staged != null)
+            return fragmentStorage.map(staged);
+        return fragmentStorage.open(fragment.getId(), fragmentStorage.getStoredFormat(fragment.getId()));
+    }
+
+    private void writeTiles(Fragment fragment, FragmentImage image) throws IOException {
+        metrics.timeIo("tile-write", () -> {
+            int width = getVisibleWidth(fragment, image.getWidth());
+            int height = getVisibleHeight(fragment, image.getHeight());
+            writeRows(new FragmentImageReader(image), new TileWriter(tileStore, pyramid, fragment.getCanvas(),
+                    fragment.getX(), fragment.getY(), width, height), width, height);
+            metrics.recordDecoded(3L * width * height);
+            return null;
+        });
+    }
+
+    /**
+     * Переписать строки изображения, лежащие на холсте (нижние width x height), в writer снизу вверх
+     */
+    private void writeRows(RasterReader reader, RasterWriter writer, int width, int height) throws IOException {
+        writer.writeHeader();
+        // строки идут снизу вверх, нижние строки за границей холста пропускаются
+        for (int i = height; i < reader.getHeight(); i++)
+            reader.skipRow();
+        int[] rgb = new int[width];
+        for (int i = 0; i < height; i++) {
+            reader.readRow(rgb, width);
+            writer.writeRow(rgb, 0);
+        }
+        writer.finish();
+    }
+
+    private static int getVisibleWidth(Fragment fragment, int width) {
+        return Math.min(width, fragment.getCanvas().getWidth() - fragment.getX());
+    }
+
+    private static int getVisibleHeight(Fragment fragment, int height) {
+        return Math.min(height, fragment.getCanvas().getHeight() - fragment.getY());
+    }
+
+    /**
+     * Временный raw-файл, через который записанное изображение фрагмента читается при сохранении. В тайловом
+     * режиме через него изображение накладывается на тайлы, отдельного файла у фрагмента нет. В остальных режимах
+     * он нужен, только если изображение будет прочитано (тайлы режима materialized или уровни пирамиды),
+     * а файлы фрагментов хранятся в BMP, который читается только декодированием целиком. Иначе null.
+     * Лежит в staging, оставшиеся после падения файлы удаляются при запуске
+     */
+    private Path getStagedPath(Fragment fragment) {
+        boolean read = tileStore.isEnabled() || pyramid.getLevels() > 0;
+        if (!read || keepsFragmentFiles() && fragmentStorage.getFormat() != FragmentFormat.BMP)
+            return null;
+        return FileUtil.getStagingAbsolutePath().toPath().resolve("fragment-" + fragment.getId() + ".raw");
+    }
+
+    /**
+     * Хранятся ли изображения фрагментов отдельными файлами: везде, кроме тайлового режима
+     */
+    private boolean keepsFragmentFiles() {
+        return !tileStore.isEnabled() || tileStore.isMaterialized();
+    }
+
+    private static void deleteStaged(Path staged) throws IOException {
+        if (staged != null)
+            Files.deleteIfExists(staged);
     }
 
     /**
-     * Сохраненить фрагмент на диск, название файла совпадает с id
+     * Повторить наложение сохраненного фрагмента из {@link TileJournal} после падения
      *
-     * @param id связанный id фрагмента в базе
+     * @param canvas   холст фрагмента
+     * @param fragment фрагмент, изображение которого сохранено отдельным файлом
+     */
+    public void replayFragment(Canvas canvas, Fragment fragment) throws IOException {
+        fragment.setCanvas(canvas);
+        try (FragmentImage stored = loadImage(fragment.getId())) {
+            writeTiles(fragment, stored);
+        }
+        fragmentCache.invalidate(fragment.getId());
+    }
+
+    private void updatePyramid(Fragment fragment, FragmentImage image) throws IOException {
+        metrics.timeIo("pyramid-write", () -> {
+            pyramid.update(fragment.getCanvas(), fragment, image);
+            return null;
+        });
+    }
+
+    /**
+     * Число уменьшенных уровней, доступных для чтения
      */
-    public void saveImage(MultipartFile multipartFile, int id) throws IOException {
-        Path imageFile = Path.of(FileUtil.getFragmentsAbsolutePath() + "/" + id + ".bmp");
+    public int getLevels() {
+        return pyramid.getLevels();
+    }
+
+    /**
+     * Построить уменьшенные уровни холста, если их еще нет (холст создан до появления пирамиды
+     * или число уровней увеличено). Фрагменты накладываются в порядке дат, в тайловом режиме уровни
+     * строятся по тайлам холста. На время построения весь холст блокируется на чтение, чтобы новые фрагменты
+     * не легли на уровни раньше более старых
+     */
+    private void buildPyramid(Canvas canvas) throws IOException {
+        if (pyramid.isBuilt(canvas.getId()))
+            return;
+        Lock buildLock = pyramid.getBuildLock(canvas.getId());
+        buildLock.lock();
         try {
-            Files.createFile(imageFile);
-        } catch (FileAlreadyExistsException e) {
-            log.info("Image " + imageFile + " already exists");
+            if (pyramid.isBuilt(canvas.getId()))
+                return;
+            log.info("Building pyramid of canvas " + canvas.getId());
+            RegionLocks.Held held = regionLocks.lockRead(canvas,
+                    new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            try {
+                if (tileStore.isEnabled())
+                    for (Point tile : tileStore.getTiles(canvas.getId())) {
+                        BufferedImage image = new BufferedImage(TileStore.TILE_SIZE, TileStore.TILE_SIZE,
+                                BufferedImage.TYPE_INT_RGB);
+                        tileStore.read(canvas, tile.x, tile.y, image);
+                        pyramid.update(canvas, new Fragment(tile.x, tile.y, TileStore.TILE_SIZE,
+                                TileStore.TILE_SIZE), new DecodedFragmentImage(image));
+                    }
+                else
+                    for (Fragment fragment : getFragments(canvas))
+                        try (FragmentImage image = loadImage(fragment.getId())) {
+                            pyramid.update(canvas, fragment, image);
+                        }
+                // построенные уровни не попадают в журнал, поэтому сбрасываются на диск до отметки о построении
+                if (tileStore.isMaterialized())
+                    tileStore.flush();
+                pyramid.markBuilt(canvas.getId());
+            } finally {
+                held.close();
+            }
+        } finally {
+            buildLock.unlock();
         }
+    }
+
+    public List<Fragment> getFragments(Canvas canvas) {
+        return metrics.getFragmentsQueryTimer()
+                .record(() -> fragmentRepository.getFragmentsByCanvasOrderByDate(canvas));
+    }
 
-        multipartFile.transferTo(imageFile);
+    /**
+     * Удалить из базы и диска изображения с заданным id (имя изображения совпадает с id)
+     *
+     * @param canvas холст фрагмента
+     * @param id     связанный id фрагмента в базе
+     */
+    public void removeFragment(Canvas canvas, int id) throws IOException {
+        if (!tileStore.isEnabled() || tileStore.isMaterialized())
+            metrics.timeIo("delete", () -> {
+                fragmentStorage.delete(id);
+                return null;
+            });
+        fragmentRepository.deleteById(id);
+        fragmentIndex.remove(canvas.getId(), id);
+        fragmentCache.invalidate(id);
     }
 
     /**
-     * Удалить фрагменты, которые перекрывает sourceFragment
+     * Удалить более старые фрагменты, которые перекрывает sourceFragment. Более новый фрагмент, сохраненный
+     * в ту же область, пока шел запрос, остается на месте
      */
     @Transactional
     public void removeInnerFragments(Canvas canvas, Fragment sourceFragment) throws IOException {
         List<Fragment> incidentFragments = getIncidentFragments(canvas, sourceFragment);
         incidentFragments.remove(sourceFragment);
-        for (Fragment fragment : incidentFragments) {
-            if (isSecondFragmentInner(sourceFragment, fragment)) {
+        List<Fragment> removed = new ArrayList<>();
+        for (Fragment fragment : incidentFragments)
+            if (isOlder(fragment, sourceFragment) && isSecondFragmentInner(sourceFragment, fragment))
+                removed.add(fragment);
+        if (removed.isEmpty())
+            return;
+
+        RegionLocks.Held held = regionLocks.lockWrite(canvas, List.of(toRectangle(sourceFragment)));
+        try {
+            for (Fragment fragment : removed) {
                 log.info("Removed " + fragment);
-                removeFragment(fragment.getId());
+                removeFragment(canvas, fragment.getId());
             }
+        } finally {
+            held.close();
+        }
+    }
+
+    /**
+     * Удалить фрагменты, которые перекрывает хотя бы один более новый фрагмент из sourceFragments.
+     * Перекрытые фрагменты собираются за один проход по пачке и удаляются из базы одним запросом
+     */
+    @Transactional
+    public void removeInnerFragments(Canvas canvas, List<Fragment> sourceFragments) throws IOException {
+        Set<Integer> removed = new LinkedHashSet<>();
+        List<Rectangle> areas = new ArrayList<>();
+        for (Fragment sourceFragment : sourceFragments)
+            for (Fragment fragment : getIncidentFragments(canvas, sourceFragment))
+                if (fragment.getId() != sourceFragment.getId() && isOlder(fragment, sourceFragment)
+                        && isSecondFragmentInner(sourceFragment, fragment) && removed.add(fragment.getId()))
+                    areas.add(toRectangle(fragment));
+        if (removed.isEmpty())
+            return;
+
+        log.info("Removed " + removed.size() + " fragments covered by the batch");
+        RegionLocks.Held held = regionLocks.lockWrite(canvas, areas);
+        try {
+            removeFragments(canvas, removed);
+        } finally {
+            held.close();
         }
     }
 
+    private void removeFragments(Canvas canvas, Set<Integer> removed) throws IOException {
+        fragmentRepository.deleteAllByIdInBatch(removed);
+        if (!tileStore.isEnabled() || tileStore.isMaterialized()) {
+            List<Callable<Void>> tasks = new ArrayList<>(removed.size());
+            for (int id : removed)
+                tasks.add(() -> metrics.timeIo("delete", () -> {
+                    fragmentStorage.delete(id);
+                    return null;
+                }));
+            ioPool.invokeAll(tasks);
+        }
+        for (int id : removed) {
+            fragmentIndex.remove(canvas.getId(), id);
+            fragmentCache.invalidate(id);
+        }
+    }
+
+    private boolean isOlder(Fragment first, Fragment second) {
+        int byDate = first.getDate().compareTo(second.getDate());
+        return byDate < 0 || byDate == 0 && first.getId() < second.getId();
+    }
+
     /**
      * Отрисовать фрагменты на запрашиваемой области.
-     * Хитрыми математическими вычислениями получает расположение фрагментов на области.
+     * Хитрыми математическими вычислениями получает расположение фрагментов на области,
+     * после чего видимая часть каждого фрагмента копируется строками через {@link FragmentImage#copyTo}.
+     * Читаются только видимые части фрагментов (см. {@link #getVisibleParts}).
+     * В тайловом режиме область читается из пересекающихся с ней тайлов.
      *
      * @param canvas         холст
      * @param sourceFragment запрашиваемая область
      * @param res            изображение, в которое запишется область
      */
     public void paintFragments(Canvas canvas, Fragment sourceFragment, BufferedImage res) throws IOException {
-        int y = sourceFragment.getY();
+        RegionLocks.Held held = regionLocks.lockRead(canvas, toRectangle(sourceFragment));
+        try {
+            if (tileStore.isEnabled())
+                tileStore.read(canvas, sourceFragment.getX(), sourceFragment.getY(), res);
+            else {
+                Map<Integer, FragmentImage> opened = new HashMap<>();
+                try {
+                    paintParts(canvas, sourceFragment, res, getVisibleParts(canvas, sourceFragment), opened);
+                } finally {
+                    closeAll(opened);
+                }
+            }
+        } finally {
+            held.close();
+        }
+    }
+
+    /**
+     * Отрисовать запрашиваемую область и записать ее в out в формате BMP.
+     * Область рисуется полосами по BAND_HEIGHT строк снизу вверх, и полосы сразу уходят в out,
+     * поэтому в памяти держится несколько полос, а не все изображение.
+     * До {@link RenderPool#getParallelism()} соседних полос рисуются одновременно. Видимые части фрагментов
+     * вычисляются один раз на всю область и не пересекаются, поэтому полосы независимы друг от друга.
+     *
+     * @param canvas         холст
+     * @param sourceFragment запрашиваемая область
+     * @param out            поток ответа
+     */
+    public void writeFragments(Canvas canvas, Fragment sourceFragment, OutputStream out) throws IOException {
+        writeFragments(canvas, 0, sourceFragment, out);
+    }
+
+    /**
+     * Записать в out область уровня level пирамиды (0 - сам холст), координаты и размеры - в пикселях уровня.
+     * Уменьшенные уровни читаются из тайлов, поэтому область любого уровня стоит как область того же
+     * размера на холсте. Небольшие области по пути копируются в {@link RegionCache}
+     */
+    public void writeFragments(Canvas canvas, int level, Fragment sourceFragment, OutputStream out)
+            throws IOException {
+        long size = BmpWriter.getFileSize(sourceFragment.getWidth(), sourceFragment.getHeight());
+        if (!regionCache.isCacheable(size)) {
+            writeFragments(canvas, level, sourceFragment,
+                    new BmpWriter(out, sourceFragment.getWidth(), sourceFragment.getHeight()));
+            return;
+        }
+        long generation = regionCache.getGeneration(canvas.getId());
+        ByteArrayOutputStream copy = new ByteArrayOutputStream((int) size);
+        writeFragments(canvas, level, sourceFragment, new BmpWriter(new TeeOutputStream(out, copy),
+                sourceFragment.getWidth(), sourceFragment.getHeight()));
+        regionCache.put(canvas.getId(), level, sourceFragment, copy.toByteArray(), generation);
+    }
+
+    /**
+     * Готовый ответ для области уровня level из {@link RegionCache}, null если его там нет
+     */
+    public byte[] getCachedRegion(Canvas canvas, int level, Fragment sourceFragment) {
+        return regionCache.get(canvas.getId(), level, sourceFragment);
+    }
+
+    /**
+     * Отрисовать область уровня level и записать ее через writer в его формате. Полосы рисуются в том
+     * порядке, в котором writer принимает строки. В ответ попадает состояние холста на момент снимка
+     * ({@link #takeSnapshot}); блокировка области держится только на время снимка, поэтому медленный клиент
+     * не задерживает сохранение пересекающихся фрагментов
+     */
+    public void writeFragments(Canvas canvas, int level, Fragment sourceFragment, RasterWriter writer)
+            throws IOException {
+        if (level > 0)
+            buildPyramid(canvas);
+        Map<Integer, FragmentImage> opened = new ConcurrentHashMap<>();
+        try (RenderSnapshot snapshot = takeSnapshot(canvas, level, List.of(sourceFragment))) {
+            try {
+                render(canvas, level, sourceFragment, writer, snapshot.parts.get(0), snapshot.tiles, opened, Set.of());
+            } finally {
+                closeAll(opened);
+            }
+        }
+    }
+
+    /**
+     * Отрисовать несколько областей уровня level одним запросом. Области рисуются по очереди из одного снимка,
+     * так что все они показывают одно состояние холста. Пересекающиеся с областями фрагменты открываются
+     * (BMP декодируются) один раз на весь запрос: фрагмент под несколькими соседними областями читается с диска
+     * однажды. Области известны заранее, поэтому фрагмент закрывается, как только его не использует ни одна
+     * из оставшихся областей, и открытыми держатся только фрагменты, нужные дальше
+     *
+     * @param regions области в пикселях уровня
+     * @param writers писатель i-й области, запрашивается непосредственно перед ее отрисовкой
+     */
+    public void writeRegions(Canvas canvas, int level, List<Fragment> regions, RegionWriters writers)
+            throws IOException {
+        if (level > 0)
+            buildPyramid(canvas);
+        Map<Integer, FragmentImage> opened = new ConcurrentHashMap<>();
+        try (RenderSnapshot snapshot = takeSnapshot(canvas, level, regions)) {
+            // фрагменты, которые понадобятся областям после i-й
+            List<Set<Integer>> later = new ArrayList<>(Collections.nCopies(regions.size(), Set.of()));
+            Set<Integer> used = new HashSet<>();
+            for (int i = regions.size() - 1; i > 0; i--) {
+                for (Occlusion.Part part : snapshot.parts.get(i))
+                    used.add(part.getFragment().getId());
+                later.set(i - 1, Set.copyOf(used));
+            }
+            try {
+                for (int i = 0; i < regions.size(); i++)
+                    try (RasterWriter writer = writers.get(i)) {
+                        render(canvas, level, regions.get(i), writer, snapshot.parts.get(i), snapshot.tiles,
+                                opened, later.get(i));
+                    }
+            } finally {
+                closeAll(opened);
+            }
+        }
+    }
+
+    /**
+     * Снять под блокировкой чтения согласованное состояние областей уровня level и отпустить блокировку.
+     * Из тайлов области читаются через {@link TileStore.Snapshot}, в режиме фрагментов вычисляются видимые части,
+     * а их файлы закрепляются ({@link FragmentStorage#pin}), чтобы не пропасть при удалении фрагментов до отрисовки
+     *
+     * @param regions области в пикселях уровня
+     */
+    private RenderSnapshot takeSnapshot(Canvas canvas, int level, List<Fragment> regions) throws IOException {
+        List<Rectangle> areas = new ArrayList<>(regions.size());
+        for (Fragment region : regions)
+            areas.add(new Rectangle(region.getX() << level, region.getY() << level,
+                    region.getWidth() << level, region.getHeight() << level));
+        RenderSnapshot snapshot = new RenderSnapshot();
+        try {
+            RegionLocks.Held held = regionLocks.lockRead(canvas, areas);
+            try {
+                if (level > 0 || tileStore.isEnabled()) {
+                    List<Rectangle> levelAreas = new ArrayList<>(regions.size());
+                    for (Fragment region : regions) {
+                        levelAreas.add(toRectangle(region));
+                        snapshot.parts.add(List.of());
+                    }
+                    snapshot.tiles = tileStore.openSnapshot(canvas, level, levelAreas);
+                } else
+                    for (Fragment region : regions) {
+                        List<Occlusion.Part> parts = getVisibleParts(canvas, region);
+                        for (Occlusion.Part part : parts)
+                            if (snapshot.pinned.add(part.getFragment().getId()))
+                                fragmentStorage.pin(part.getFragment().getId());
+                        snapshot.parts.add(parts);
+                    }
+            } finally {
+                held.close();
+            }
+        } catch (RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param parts  видимые части фрагментов в области, если она рисуется не из тайлов
+     * @param tiles  снимок тайлов, если область рисуется из тайлов
+     * @param opened открытые фрагменты, общие для областей запроса. Оставшиеся открытыми после ошибки
+     *               закрывает вызывающий
+     * @param keep   фрагменты, нужные следующим областям запроса: они остаются открытыми
+     */
+    private void render(Canvas canvas, int level, Fragment sourceFragment, RasterWriter writer,
+                        List<Occlusion.Part> parts, TileStore.Snapshot tiles, Map<Integer, FragmentImage> opened,
+                        Set<Integer> keep) throws IOException {
         int x = sourceFragment.getX();
+        int y = sourceFragment.getY();
         int width = sourceFragment.getWidth();
         int height = sourceFragment.getHeight();
-        List<Fragment> incidentFragments = getIncidentFragments(canvas, sourceFragment);
+        boolean bottomUp = writer.isBottomUp();
+        // открытые фрагменты нужны нескольким полосам подряд, закрываются, когда полосы уходят за
+        // их последнюю видимую строку (верхнюю при записи снизу вверх, нижнюю - сверху вниз)
+        Map<Integer, Integer> lastRows = new HashMap<>();
+        for (Occlusion.Part part : parts) {
+            Rectangle area = part.getArea();
+            if (bottomUp)
+                lastRows.merge(part.getFragment().getId(), area.y, Math::min);
+            else
+                lastRows.merge(part.getFragment().getId(), area.y + area.height, Math::max);
+        }
+        if (tiles == null)
+            metrics.recordRenderedFragments(lastRows.size());
 
-        for (Fragment fragment : incidentFragments) {
-            BufferedImage fragmentImage = ImageIO.read(loadImageFromFile(fragment.getId()));
+        writer.writeHeader();
+        int bandCount = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        BufferedImage[] bands = new BufferedImage[Math.min(renderPool.getParallelism(), bandCount)];
+        for (int k = 0; k < bands.length; k++)
+            bands[k] = new BufferedImage(width, Math.min(BAND_HEIGHT, height), BufferedImage.TYPE_INT_RGB);
 
-            int startY = Math.max(fragment.getY(), y);
-            int startX = Math.max(fragment.getX(), x);
+        int windowHeight = BAND_HEIGHT * bands.length;
+        for (int done = 0; done < height; done += windowHeight) {
+            int windowTop = bottomUp ? Math.max(0, height - done - windowHeight) : done;
+            int windowBottom = bottomUp ? height - done : Math.min(height, done + windowHeight);
+            // полосы окна в порядке записи
+            List<int[]> rows = new ArrayList<>(bands.length);
+            for (int k = 0; k < bands.length; k++) {
+                int top = bottomUp ? windowBottom - (k + 1) * BAND_HEIGHT : windowTop + k * BAND_HEIGHT;
+                int bottom = top + BAND_HEIGHT;
+                if (bottom <= windowTop || top >= windowBottom)
+                    break;
+                rows.add(new int[]{Math.max(top, windowTop), Math.min(bottom, windowBottom)});
+            }
 
-            int endY = Math.min(y + height, Math.min(fragment.getY() + fragment.getHeight(), canvas.getHeight()));
-            int endX = Math.min(x + width, Math.min(fragment.getX() + fragment.getWidth(), canvas.getWidth()));
+            List<Callable<Void>> tasks = new ArrayList<>(rows.size());
+            for (int k = 0; k < rows.size(); k++) {
+                BufferedImage band = bands[k];
+                int top = rows.get(k)[0];
+                int bottom = rows.get(k)[1];
+                tasks.add(() -> {
+                    paintBand(canvas, new Fragment(x, y + top, width, bottom - top), band, parts, tiles,
+                            opened);
+                    return null;
+                });
+            }
+            renderPool.invokeAll(tasks);
 
-            for (int i = startY; i < endY; i++) {
-                //int y0 = Math.min(height, canvas.getHeight() - y) - (Math.min(y + height, canvas.getHeight()) - i);
-                int y0 = getInsertPosition(i, y, fragment.getHeight(), canvas.getHeight());
-                int y1 = i - fragment.getY();
-                for (int j = startX; j < endX; j++) {
-                    //int x0 = Math.min(width, canvas.getWidth() - x) - (Math.min(x + width, canvas.getWidth()) - j);
-                    int x0 = getInsertPosition(j, x, fragment.getWidth(), canvas.getWidth());
-                    int x1 = j - fragment.getX();
-                    res.setRGB(x0, y0, fragmentImage.getRGB(x1, y1));
+            for (int k = 0; k < rows.size(); k++) {
+                int bandHeight = rows.get(k)[1] - rows.get(k)[0];
+                int[] pixels = ((DataBufferInt) bands[k].getRaster().getDataBuffer()).getData();
+                for (int i = 0; i < bandHeight; i++)
+                    writer.writeRow(pixels, (bottomUp ? bandHeight - 1 - i : i) * width);
+            }
+            for (Map.Entry<Integer, Integer> lastRow : lastRows.entrySet())
+                if (!keep.contains(lastRow.getKey())
+                        && (bottomUp ? lastRow.getValue() >= y + windowTop : lastRow.getValue() <= y + windowBottom)) {
+                    FragmentImage image = opened.remove(lastRow.getKey());
+                    if (image != null)
+                        image.close();
                 }
+        }
+        writer.finish();
+        metrics.recordEncoded(writer.getSize());
+    }
+
+    /**
+     * Отрисовать одну полосу с нуля в верхние строки band
+     *
+     * @param bandArea область полосы в пикселях уровня
+     * @param tiles    снимок тайлов уровня или null, если полоса рисуется из фрагментов
+     */
+    private void paintBand(Canvas canvas, Fragment bandArea, BufferedImage band, List<Occlusion.Part> parts,
+                           TileStore.Snapshot tiles, Map<Integer, FragmentImage> opened) throws IOException {
+        Arrays.fill(((DataBufferInt) band.getRaster().getDataBuffer()).getData(), 0);
+        BufferedImage res = band.getSubimage(0, 0, bandArea.getWidth(), bandArea.getHeight());
+        if (tiles != null)
+            metrics.timeIo("tile-read", () -> {
+                tiles.read(bandArea.getX(), bandArea.getY(), res);
+                return null;
+            });
+        else
+            paintParts(canvas, bandArea, res, parts, opened);
+    }
+
+    /**
+     * Видимые в области части фрагментов. Части, закрытые более новыми фрагментами, и фрагменты,
+     * которые не видны вовсе, не читаются с диска и не копируются
+     */
+    public List<Occlusion.Part> getVisibleParts(Canvas canvas, Fragment sourceFragment) {
+        Rectangle area = new Rectangle(sourceFragment.getX(), sourceFragment.getY(),
+                sourceFragment.getWidth(), sourceFragment.getHeight())
+                .intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        return Occlusion.getVisibleParts(getIncidentFragments(canvas, sourceFragment), area);
+    }
+
+    /**
+     * Скопировать в область те из видимых частей фрагментов, что пересекаются с ней
+     *
+     * @param opened открытые в рамках запроса фрагменты, общие для полос, рисуемых параллельно
+     */
+    private void paintParts(Canvas canvas, Fragment sourceFragment, BufferedImage res,
+                            List<Occlusion.Part> parts, Map<Integer, FragmentImage> opened) throws IOException {
+        int y = sourceFragment.getY();
+        int x = sourceFragment.getX();
+        Rectangle area = new Rectangle(x, y, sourceFragment.getWidth(), sourceFragment.getHeight());
+
+        for (Occlusion.Part part : parts) {
+            Rectangle visible = part.getArea().intersection(area);
+            if (visible.isEmpty())
+                continue;
+
+            Fragment fragment = part.getFragment();
+            // файл открывается вне computeIfAbsent, чтобы чтение с диска не держало блокировку карты;
+            // если соседняя полоса успела открыть тот же фрагмент, лишняя копия закрывается
+            FragmentImage fragmentImage = opened.get(fragment.getId());
+            if (fragmentImage == null) {
+                FragmentImage loaded = loadImage(fragment.getId());
+                fragmentImage = opened.putIfAbsent(fragment.getId(), loaded);
+                if (fragmentImage == null)
+                    fragmentImage = loaded;
+                else
+                    loaded.close();
             }
+            int endY = Math.min(visible.y + visible.height, fragment.getY() + fragmentImage.getHeight());
+            int endX = Math.min(visible.x + visible.width, fragment.getX() + fragmentImage.getWidth());
+            if (visible.x >= endX || visible.y >= endY)
+                continue;
+
+            int y0 = getInsertPosition(visible.y, y, fragment.getHeight(), canvas.getHeight());
+            int x0 = getInsertPosition(visible.x, x, fragment.getWidth(), canvas.getWidth());
+            fragmentImage.copyTo(visible.x - fragment.getX(), visible.y - fragment.getY(),
+                    res, x0, y0, endX - visible.x, endY - visible.y);
         }
     }
 
+    private void closeAll(Map<Integer, FragmentImage> opened) throws IOException {
+        for (FragmentImage image : opened.values())
+            image.close();
+        opened.clear();
+    }
+
+    /**
+     * Открыть пиксели фрагмента. Фрагменты в формате RAW отображаются в память без декодирования,
+     * в формате DEFLATE открываются без распаковки (блоки строк распаковываются при копировании), BMP декодируются, и повторные чтения одного фрагмента берутся из {@link FragmentCache}.
+     * Возвращенный объект нужно закрыть
+     *
+     * @param id фрагмента
+     */
+    public FragmentImage loadImage(int id) throws IOException {
+        FragmentFormat stored = fragmentStorage.getStoredFormat(id);
+        if (stored == FragmentFormat.RAW)
+            return metrics.timeIo("map", () -> fragmentStorage.map(id));
+        if (stored == FragmentFormat.DEFLATE)
+            return metrics.timeIo("open", () -> fragmentStorage.open(id, stored));
+
+        BufferedImage image = fragmentCache.get(id);
+        if (image == null) {
+            image = metrics.timeIo("read", () -> ImageIO.read(loadImageFromFile(id)));
+            if (image == null)
+                throw new IOException("Unsupported image format of fragment " + id);
+            metrics.recordDecoded(3L * image.getWidth() * image.getHeight());
+            fragmentCache.put(id, image);
+        }
+        return new DecodedFragmentImage(image);
+    }
+
     /**
      * Загрузить изображения с диска
      *
@@ -149,20 +880,7 @@ public class FragmentService {
      * @return файл-изображение
      */
     public File loadImageFromFile(int id) throws IOException {
-        final Path[] imageFile = new Path[1]; // чтобы изменить переменную во внутреннем классе, оборачиваем ее в массив
-        Files.walkFileTree(FileUtil.getFragmentsAbsolutePath().toPath(), new SimplePathVisitor() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                if (file.getFileName().toString().equals(id + ".bmp")) {
-                    imageFile[0] = Path.of(FileUtil.getFragmentsAbsolutePath() + "/" + id + ".bmp");
-                    return FileVisitResult.TERMINATE;
-                }
-                return FileVisitResult.CONTINUE;
-            }
-        });
-        if (imageFile[0] == null)
-            throw new FileNotFoundException("File " + FileUtil.getFragmentsAbsolutePath() + id + ".bmp not found");
-        return imageFile[0].toFile();
+        return fragmentStorage.load(id);
     }
 
     /**
@@ -179,8 +897,8 @@ public class FragmentService {
     }
 
     /**
-     * Метод убирает дублирование в #paintFragments (изначальный вариант закоментирован).
      * Предназначен для нахождения координат в запрашиваемой области, куда надо вставлять пиксель фрагмента.
+     * В #paintFragments вызывается один раз на фрагмент для его первой видимой строки и столбца.
      *
      * @param current           текущий пиксель фрагмента
      * @param coord             x или y
@@ -194,14 +912,40 @@ public class FragmentService {
     }
 
     /**
-     * Список фрагментов, которые пересекаются с sourceFragment
+     * Список фрагментов, которые пересекаются с sourceFragment, упорядоченный по дате.
+     * Ищет по пространственному индексу, из базы фрагменты холста читаются только при первом обращении
      */
     public List<Fragment> getIncidentFragments(Canvas canvas, Fragment sourceFragment) {
-        return getFragments(canvas).stream()
-                .filter(f -> f.getX() + f.getWidth() >= sourceFragment.getX()
-                        && sourceFragment.getX() + sourceFragment.getWidth() >= f.getX()
-                        && f.getY() + f.getHeight() >= sourceFragment.getY()
-                        && sourceFragment.getY() + sourceFragment.getHeight() >= f.getY())
-                .collect(Collectors.toList());
+        return fragmentIndex.getIncidentFragments(canvas, sourceFragment, this::getFragments);
+    }
+
+    /**
+     * Состояние областей, снятое {@link #takeSnapshot}. Закрытие отпускает снимок тайлов и закрепленные фрагменты
+     */
+    private class RenderSnapshot implements Closeable {
+
+        private final List<List<Occlusion.Part>> parts = new ArrayList<>();
+        private final Set<Integer> pinned = new HashSet<>();
+        private TileStore.Snapshot tiles;
+
+        @Override
+        public void close() throws IOException {
+            if (tiles != null)
+                tiles.close();
+            for (int id : pinned)
+                if (fragmentStorage.unpin(id))
+                    fragmentCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Писатели областей {@link #writeRegions}
+     */
+    @FunctionalInterface
+    public interface RegionWriters {
+        /**
+         * Писатель области с номером index. Он закрывается после отрисовки области, в том числе при ошибке
+         */
+        RasterWriter get(int index) throws IOException;
     }
 }
@@ -0,0 +1,32 @@
+package com.naname.chartographer.data;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул потоков для файлового ввода-вывода пачек: записи изображений и удаления файлов фрагментов.
+ * Отделен от {@link RenderPool}, чтобы большая пачка не занимала потоки отрисовки GET.
+ * Размер пула задается chartographer.io.threads
+ */
+@Component
+public class IoPool extends TaskPool {
+
+    @Autowired
+    public IoPool(@Value("${chartographer.io.threads:4}") int threads) {
+        super(createExecutor(threads));
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package com.naname.chartographer.data;
+
+import lombok.Getter;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Отсечение перекрытых частей фрагментов. Фрагменты перебираются от новых к старым, и для каждого остаются только
+ * те прямоугольники, которые еще не закрыты более новыми фрагментами. Как только область закрыта полностью,
+ * более старые фрагменты не рассматриваются вовсе.
+ */
+public class Occlusion {
+
+    private Occlusion() {
+    }
+
+    /**
+     * Видимые части фрагментов в области. Части не пересекаются, поэтому их можно рисовать в любом порядке
+     *
+     * @param fragments фрагменты, упорядоченные по дате (от старых к новым)
+     * @param area      область, обычно уже обрезанная по границам холста
+     * @return видимые части, сгруппированные по фрагментам от новых к старым
+     */
+    public static List<Part> getVisibleParts(List<Fragment> fragments, Rectangle area) {
+        List<Part> parts = new ArrayList<>();
+        List<Rectangle> uncovered = new ArrayList<>();
+        if (!area.isEmpty())
+            uncovered.add(area);
+
+        for (int i = fragments.size() - 1; i >= 0 && !uncovered.isEmpty(); i--) {
+            Fragment fragment = fragments.get(i);
+            Rectangle bounds = new Rectangle(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight());
+            List<Rectangle> next = new ArrayList<>(uncovered.size());
+            for (Rectangle rect : uncovered) {
+                Rectangle visible = rect.intersection(bounds);
+                if (visible.isEmpty()) {
+                    next.add(rect);
+                    continue;
+                }
+                parts.add(new Part(fragment, visible));
+                subtract(rect, visible, next);
+            }
+            uncovered = next;
+        }
+        return parts;
+    }
+
+    /**
+     * Разбить rect без inner (inner лежит внутри rect) на не более чем 4 прямоугольника
+     */
+    private static void subtract(Rectangle rect, Rectangle inner, List<Rectangle> result) {
+        int innerBottom = inner.y + inner.height;
+        int innerRight = inner.x + inner.width;
+        if (inner.y > rect.y)
+            result.add(new Rectangle(rect.x, rect.y, rect.width, inner.y - rect.y));
+        if (innerBottom < rect.y + rect.height)
+            result.add(new Rectangle(rect.x, innerBottom, rect.width, rect.y + rect.height - innerBottom));
+        if (inner.x > rect.x)
+            result.add(new Rectangle(rect.x, inner.y, inner.x - rect.x, inner.height));
+        if (innerRight < rect.x + rect.width)
+            result.add(new Rectangle(innerRight, inner.y, rect.x + rect.width - innerRight, inner.height));
+    }
+
+    /**
+     * Видимый прямоугольник фрагмента в координатах холста
+     */
+    @Getter
+    public static class Part {
+        private final Fragment fragment;
+        private final Rectangle area;
+
+        Part(Fragment fragment, Rectangle area) {
+            this.fragment = fragment;
+            this.area = area;
+        }
+    }
+}
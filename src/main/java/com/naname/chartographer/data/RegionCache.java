@@ -0,0 +1,120 @@
+package com.naname.chartographer.data;
+
+import com.naname.chartographer.util.LruCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш готовых ответов GET /chartas/{id}: BMP-байты области по холсту, уровню пирамиды и координатам области.
+ * Размер бюджета задается chartographer.cache.regions.max-bytes, 0 выключает кэш. Кэшируются только области
+ * не больше 1/16 бюджета, чтобы одна большая область не вытесняла все остальные.
+ * <p>
+ * Сохранение фрагмента удаляет из кэша только пересекающиеся с ним области, остальные остаются верными.
+ * Каждое удаление увеличивает поколение холста: отрисовка, начатая до записи, могла прочитать старые пиксели,
+ * и ее результат не кладется в кэш (см. {@link #put}).
+ */
+@Component
+public class RegionCache {
+
+    private final long maxEntryBytes;
+    private final LruCache<Key, byte[]> cache;
+    private final Map<Integer, Long> generations = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RegionCache(@Value("${chartographer.cache.regions.max-bytes:67108864}") long maxBytes) {
+        this.maxEntryBytes = maxBytes / 16;
+        this.cache = new LruCache<>(maxBytes, bmp -> bmp.length);
+    }
+
+    /**
+     * Поместится ли в кэш ответ размером size байт
+     */
+    public boolean isCacheable(long size) {
+        return size > 0 && size <= maxEntryBytes;
+    }
+
+    /**
+     * Текущее поколение холста, запоминается до начала отрисовки и передается в {@link #put}
+     */
+    public long getGeneration(int canvasId) {
+        return generations.getOrDefault(canvasId, 0L);
+    }
+
+    public byte[] get(int canvasId, int level, Fragment region) {
+        return cache.get(new Key(canvasId, level, region));
+    }
+
+    /**
+     * Положить ответ в кэш, если с начала его отрисовки холст не менялся
+     *
+     * @param generation поколение холста до начала отрисовки
+     */
+    public synchronized void put(int canvasId, int level, Fragment region, byte[] bmp, long generation) {
+        if (generation == getGeneration(canvasId))
+            cache.put(new Key(canvasId, level, region), bmp);
+    }
+
+    /**
+     * Удалить области холста, пересекающиеся хотя бы с одной из областей areas (в пикселях холста)
+     */
+    public synchronized void invalidate(int canvasId, List<Rectangle> areas) {
+        generations.merge(canvasId, 1L, Long::sum);
+        cache.invalidateIf(key -> key.canvasId == canvasId && areas.stream().anyMatch(key::intersects));
+    }
+
+    /**
+     * Удалить все области холста
+     */
+    public synchronized void evict(int canvasId) {
+        generations.merge(canvasId, 1L, Long::sum);
+        cache.invalidateIf(key -> key.canvasId == canvasId);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * Память, занятая закэшированными ответами, в байтах
+     */
+    public long getSizeInBytes() {
+        return cache.getWeight();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
+    /**
+     * Область уровня level, координаты и размеры - в пикселях уровня
+     */
+    private record Key(int canvasId, int level, int x, int y, int width, int height) {
+
+        Key(int canvasId, int level, Fragment region) {
+            this(canvasId, level, region.getX(), region.getY(), region.getWidth(), region.getHeight());
+        }
+
+        /**
+         * Пересекается ли область с областью холста area. Пиксель уровня level покрывает
+         * 2^level x 2^level пикселей холста
+         */
+        boolean intersects(Rectangle area) {
+            return new Rectangle(x << level, y << level, width << level, height << level).intersects(area);
+        }
+    }
+}
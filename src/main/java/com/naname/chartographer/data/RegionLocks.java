@@ -0,0 +1,114 @@
+package com.naname.chartographer.data;
+
+import com.naname.chartographer.storage.TileStore;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Блокировки областей холстов. Холст разбит на ячейки CELL_SIZE x CELL_SIZE (как тайлы {@link TileStore}),
+ * ячейки всех холстов распределены по STRIPES блокировкам чтения-записи.
+ * Отрисовка берет блокировки чтения ячеек области, сохранение и удаление фрагментов - блокировки записи ячеек
+ * фрагментов. Чтения и записи в непересекающихся ячейках идут параллельно, а отрисовка не видит наполовину
+ * наложенный фрагмент и не теряет файлы удаляемых фрагментов.
+ * <p>
+ * Блокировки одной операции берутся сразу и по возрастанию номеров, поэтому взаимных блокировок нет.
+ */
+@Component
+public class RegionLocks {
+
+    public static final int CELL_SIZE = TileStore.TILE_SIZE;
+    private static final int STRIPES = 1024;
+
+    private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+
+    public RegionLocks() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Взять блокировки чтения ячеек холста, пересекающихся с областью area (в пикселях холста)
+     *
+     * @return взятые блокировки, снимаются через close
+     */
+    public Held lockRead(Canvas canvas, Rectangle area) {
+        return lock(canvas, List.of(area), false);
+    }
+
+    /**
+     * Взять блокировки чтения ячеек холста, пересекающихся хотя бы с одной из областей areas (в пикселях холста)
+     *
+     * @return взятые блокировки, снимаются через close
+     */
+    public Held lockRead(Canvas canvas, List<Rectangle> areas) {
+        return lock(canvas, areas, false);
+    }
+
+    /**
+     * Взять блокировки записи ячеек холста, пересекающихся хотя бы с одной из областей areas (в пикселях холста)
+     *
+     * @return взятые блокировки, снимаются через close
+     */
+    public Held lockWrite(Canvas canvas, List<Rectangle> areas) {
+        return lock(canvas, areas, true);
+    }
+
+    private Held lock(Canvas canvas, List<Rectangle> areas, boolean write) {
+        BitSet indexes = getStripes(canvas, areas);
+        Lock[] locks = new Lock[indexes.cardinality()];
+        int count = 0;
+        try {
+            for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+                Lock lock = write ? stripes[i].writeLock() : stripes[i].readLock();
+                lock.lock();
+                locks[count++] = lock;
+            }
+        } catch (RuntimeException e) {
+            unlock(locks, count);
+            throw e;
+        }
+        return () -> unlock(locks, locks.length);
+    }
+
+    private BitSet getStripes(Canvas canvas, List<Rectangle> areas) {
+        Rectangle bounds = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        BitSet indexes = new BitSet(STRIPES);
+        for (Rectangle area : areas) {
+            Rectangle clipped = area.intersection(bounds);
+            if (clipped.isEmpty())
+                continue;
+            int lastX = (clipped.x + clipped.width - 1) / CELL_SIZE;
+            int lastY = (clipped.y + clipped.height - 1) / CELL_SIZE;
+            for (int cy = clipped.y / CELL_SIZE; cy <= lastY && indexes.cardinality() < STRIPES; cy++)
+                for (int cx = clipped.x / CELL_SIZE; cx <= lastX; cx++)
+                    indexes.set(getStripe(canvas.getId(), cx, cy));
+        }
+        return indexes;
+    }
+
+    private static int getStripe(int canvasId, int cx, int cy) {
+        int hash = (canvasId * 31 + cx) * 31 + cy;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash * 0x9E3779B1, STRIPES);
+    }
+
+    private static void unlock(Lock[] locks, int count) {
+        for (int i = count - 1; i >= 0; i--)
+            locks[i].unlock();
+    }
+
+    /**
+     * Взятые блокировки области
+     */
+    @FunctionalInterface
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
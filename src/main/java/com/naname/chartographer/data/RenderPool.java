@@ -0,0 +1,32 @@
+package com.naname.chartographer.data;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Общий ограниченный пул потоков для параллельной отрисовки полос запрашиваемой области.
+ * Размер пула задается chartographer.render.threads (0 - по числу ядер),
+ * а число полос одного запроса, рисуемых одновременно, - chartographer.render.parallelism.
+ */
+@Component
+public class RenderPool extends TaskPool {
+
+    private final int parallelism;
+
+    @Autowired
+    public RenderPool(@Value("${chartographer.render.threads:0}") int threads,
+                      @Value("${chartographer.render.parallelism:4}") int parallelism) {
+        super(new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors()));
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Сколько полос одного запроса можно рисовать одновременно
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+}
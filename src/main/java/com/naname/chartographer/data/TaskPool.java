@@ -0,0 +1,73 @@
+package com.naname.chartographer.data;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ограниченный пул потоков, который выполняет группу задач и ждет их завершения
+ */
+public abstract class TaskPool implements DisposableBean {
+
+    private final ExecutorService pool;
+
+    protected TaskPool(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Выполнить задачи и дождаться их завершения. Одна задача выполняется в вызывающем потоке
+     *
+     * @throws IOException первая ошибка ввода-вывода среди задач
+     */
+    public void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            call(tasks.get(0));
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            // не submit: ForkJoinPool оборачивает исключение задачи в копии и RuntimeException,
+            // а FutureTask отдает его как есть
+            FutureTask<Void> future = new FutureTask<>(task);
+            pool.execute(future);
+            futures.add(future);
+        }
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tasks interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Void> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.naname.chartographer.data;
+
+import com.naname.chartographer.storage.TileJournal;
+import com.naname.chartographer.storage.TileStore;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Фоновый сброс тайлов режима materialized на диск. При запуске заново накладывает фрагменты, оставшиеся
+ * в {@link TileJournal} после падения, затем раз в chartographer.materialized.flush-interval-ms сбрасывает
+ * грязные тайлы {@link TileStore} и удаляет из журнала покрытые сбросом записи. При остановке тайлы сбрасываются
+ * еще раз, так что после штатной остановки журнал пуст.
+ */
+@Component
+@Slf4j
+public class TileFlusher implements DisposableBean {
+
+    private final TileStore tileStore;
+    private final TileJournal journal;
+    private final FragmentService fragmentService;
+    private final CanvasRepository canvasRepository;
+    private final FragmentRepository fragmentRepository;
+    private final long interval;
+    // сбросы по таймеру и по запросу идут по одному
+    private final Lock lock = new ReentrantLock();
+    private ScheduledExecutorService executor;
+
+    @Autowired
+    public TileFlusher(TileStore tileStore, TileJournal journal, FragmentService fragmentService,
+                       CanvasRepository canvasRepository, FragmentRepository fragmentRepository,
+                       @Value("${chartographer.materialized.flush-interval-ms:5000}") long interval) {
+        this.tileStore = tileStore;
+        this.journal = journal;
+        this.fragmentService = fragmentService;
+        this.canvasRepository = canvasRepository;
+        this.fragmentRepository = fragmentRepository;
+        this.interval = Math.max(1, interval);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!tileStore.isMaterialized())
+            return;
+        replay();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tile-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                log.error("Can't flush tiles cause: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Сбросить грязные тайлы на диск и удалить из журнала записи, наложенные до начала сброса
+     *
+     * @return число сброшенных тайлов
+     */
+    public int flush() throws IOException {
+        lock.lock();
+        try {
+            long position = journal.checkpoint();
+            int flushed = tileStore.flush();
+            journal.truncate(position);
+            return flushed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Наложить по порядку фрагменты из журнала. Фрагменты, удаленные вместе с холстом или перекрытые более
+     * новыми фрагментами, пропускаются: более новые фрагменты тоже есть в журнале
+     */
+    void replay() throws IOException {
+        List<TileJournal.Entry> entries = journal.read();
+        if (entries.isEmpty())
+            return;
+        log.info("Replaying " + entries.size() + " journaled fragments");
+        for (TileJournal.Entry entry : entries) {
+            Canvas canvas = canvasRepository.findById(entry.canvasId()).orElse(null);
+            Fragment fragment = fragmentRepository.findById(entry.fragmentId()).orElse(null);
+            if (canvas == null || fragment == null)
+                continue;
+            try {
+                fragmentService.replayFragment(canvas, fragment);
+            } catch (IOException e) {
+                log.error("Can't replay fragment " + entry.fragmentId() + " cause: " + e.getMessage());
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void destroy() throws IOException, InterruptedException {
+        if (executor == null)
+            return;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        flush();
+    }
+}
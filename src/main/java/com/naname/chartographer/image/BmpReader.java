@@ -0,0 +1,109 @@
+package com.naname.chartographer.image;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Потоковое чтение несжатого 24- или 32-битного BMP со строками снизу вверх. Заголовок разбирается сразу,
+ * строки пикселей читаются из потока по одной, так что в памяти держится только одна строка.
+ * Остальные варианты BMP (палитра, RLE, битовые маски, строки сверху вниз) не поддерживаются, их декодирует ImageIO
+ */
+public class BmpReader implements RasterReader {
+
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int MAX_HEADER_SIZE = 1024;
+    private static final int BI_RGB = 0;
+
+    private final InputStream in;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+    private final int rowSize;
+    private byte[] row;
+    private int rowsLeft;
+
+    private BmpReader(InputStream in, int width, int height, int bitCount) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = bitCount / 8;
+        this.rowSize = (int) (((long) width * bitCount + 31) / 32 * 4);
+        this.rowsLeft = height;
+    }
+
+    /**
+     * Разобрать заголовок BMP и перейти к первой строке пикселей
+     *
+     * @return объект чтения или null, если это не BMP или вариант BMP, который не читается потоково.
+     * Тогда поток возвращается к началу
+     */
+    public static BmpReader open(BufferedInputStream in) throws IOException {
+        in.mark(MAX_HEADER_SIZE);
+        byte[] fileHeader = in.readNBytes(FILE_HEADER_SIZE);
+        byte[] infoHeader = in.readNBytes(40);
+        if (fileHeader.length < FILE_HEADER_SIZE || fileHeader[0] != 'B' || fileHeader[1] != 'M'
+                || infoHeader.length < 40) {
+            in.reset();
+            return null;
+        }
+        long dataOffset = getInt(fileHeader, 10) & 0xFFFFFFFFL;
+        int headerSize = getInt(infoHeader, 0);
+        int width = getInt(infoHeader, 4);
+        int height = getInt(infoHeader, 8);
+        int planes = getShort(infoHeader, 12);
+        int bitCount = getShort(infoHeader, 14);
+        int compression = getInt(infoHeader, 16);
+        long consumed = FILE_HEADER_SIZE + 40;
+        if (headerSize < 40 || dataOffset < FILE_HEADER_SIZE + headerSize || dataOffset > MAX_HEADER_SIZE
+                || width <= 0 || height <= 0 || planes != 1 || (bitCount != 24 && bitCount != 32)
+                || compression != BI_RGB || (long) width * bitCount > Integer.MAX_VALUE) {
+            in.reset();
+            return null;
+        }
+        in.skipNBytes(dataOffset - consumed);
+        return new BmpReader(in, width, height, bitCount);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int[] rgb, int count) throws IOException {
+        byte[] row = nextRow();
+        for (int j = 0, k = 0; j < count; j++, k += bytesPerPixel)
+            rgb[j] = (row[k + 2] & 0xFF) << 16 | (row[k + 1] & 0xFF) << 8 | row[k] & 0xFF;
+    }
+
+    @Override
+    public void skipRow() throws IOException {
+        nextRow();
+    }
+
+    private byte[] nextRow() throws IOException {
+        if (rowsLeft == 0)
+            throw new IOException("No more rows in image");
+        if (row == null)
+            row = new byte[rowSize];
+        if (in.readNBytes(row, 0, rowSize) < rowSize)
+            throw new IOException("Unexpected end of image");
+        rowsLeft--;
+        return row;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return buffer[offset] & 0xFF | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16 | buffer[offset + 3] << 24;
+    }
+
+    private static int getShort(byte[] buffer, int offset) {
+        return buffer[offset] & 0xFF | (buffer[offset + 1] & 0xFF) << 8;
+    }
+}
@@ -0,0 +1,97 @@
+package com.naname.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Потоковая запись 24-битного BMP. Сначала пишется заголовок, затем строки пикселей снизу вверх,
+ * как того требует формат. В памяти держится только одна строка.
+ */
+public class BmpWriter implements RasterWriter {
+
+    public static final int HEADER_SIZE = 54;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] row;
+
+    public BmpWriter(OutputStream out, int width, int height) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.row = new byte[getRowSize(width)];
+    }
+
+    /**
+     * Размер строки в байтах с выравниванием до 4 байт
+     */
+    public static int getRowSize(int width) {
+        return (width * 3 + 3) & ~3;
+    }
+
+    /**
+     * Размер BMP-файла в байтах
+     */
+    public static long getFileSize(int width, int height) {
+        return HEADER_SIZE + (long) getRowSize(width) * height;
+    }
+
+    /**
+     * Записать заголовок файла (BITMAPFILEHEADER + BITMAPINFOHEADER)
+     */
+    @Override
+    public void writeHeader() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = 'B';
+        header[1] = 'M';
+        putInt(header, 2, (int) getFileSize(width, height));
+        putInt(header, 10, HEADER_SIZE);
+        putInt(header, 14, 40);
+        putInt(header, 18, width);
+        putInt(header, 22, height);
+        header[26] = 1;
+        header[28] = 24;
+        putInt(header, 34, getRowSize(width) * height);
+        out.write(header);
+    }
+
+    /**
+     * Записать очередную строку. Строки передаются снизу вверх
+     *
+     * @param rgb    пиксели в формате 0xRRGGBB
+     * @param offset индекс первого пикселя строки в rgb
+     */
+    @Override
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        for (int j = 0, k = 0; j < width; j++) {
+            int pixel = rgb[offset + j];
+            row[k++] = (byte) pixel;
+            row[k++] = (byte) (pixel >> 8);
+            row[k++] = (byte) (pixel >> 16);
+        }
+        out.write(row);
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return true;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public long getSize() {
+        return getFileSize(width, height);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
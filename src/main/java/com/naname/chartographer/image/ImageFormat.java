@@ -0,0 +1,84 @@
+package com.naname.chartographer.image;
+
+import org.springframework.http.MediaType;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Формат ответа GET /chartas/{id}, выбирается по заголовку Accept
+ */
+public enum ImageFormat {
+    /**
+     * Несжатый BMP, формат по умолчанию
+     */
+    BMP(MediaType.valueOf("image/bmp")),
+    /**
+     * PNG, сжимается на лету с уровнем chartographer.png.compression-level
+     */
+    PNG(MediaType.IMAGE_PNG),
+    /**
+     * Пиксели RGB без сжатия в формате raw-файлов фрагментов, сжимается через Content-Encoding: deflate
+     */
+    RAW(MediaType.valueOf("application/vnd.chartographer.raw"));
+
+    private final MediaType mediaType;
+
+    ImageFormat(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public RasterWriter createWriter(OutputStream out, int width, int height, int compressionLevel) {
+        switch (this) {
+            case PNG:
+                return new PngWriter(out, width, height, compressionLevel);
+            case RAW:
+                return new RawWriter(out, width, height);
+            default:
+                return new BmpWriter(out, width, height);
+        }
+    }
+
+    /**
+     * Выбрать формат по заголовку Accept: форматы перебираются по убыванию q, при равных q побеждает
+     * более конкретный тип, а из подходящих под шаблон (*&#47;* или image/*) - идущий раньше в этом перечислении.
+     * Без заголовка отдается BMP
+     *
+     * @return формат или null, если ни один не подходит
+     */
+    public static ImageFormat negotiate(List<MediaType> accept) {
+        if (accept.isEmpty())
+            return BMP;
+        List<MediaType> sorted = new ArrayList<>(accept);
+        sorted.sort(Comparator.comparingDouble(MediaType::getQualityValue).reversed()
+                .thenComparingInt(ImageFormat::getWildcards));
+        for (MediaType acceptable : sorted) {
+            if (acceptable.getQualityValue() == 0)
+                continue;
+            for (ImageFormat format : values())
+                if (acceptable.includes(format.mediaType) && !isExcluded(accept, format))
+                    return format;
+        }
+        return null;
+    }
+
+    private static int getWildcards(MediaType mediaType) {
+        return (mediaType.isWildcardType() ? 1 : 0) + (mediaType.isWildcardSubtype() ? 1 : 0);
+    }
+
+    /**
+     * Запрещен ли именно этот формат явным q=0
+     */
+    private static boolean isExcluded(List<MediaType> accept, ImageFormat format) {
+        for (MediaType acceptable : accept)
+            if (acceptable.getQualityValue() == 0 && acceptable.equalsTypeAndSubtype(format.mediaType))
+                return true;
+        return false;
+    }
+}
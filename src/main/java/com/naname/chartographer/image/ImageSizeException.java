@@ -0,0 +1,15 @@
+package com.naname.chartographer.image;
+
+import java.io.IOException;
+
+/**
+ * Размеры загруженного изображения не совпадают с размерами фрагмента из запроса
+ */
+public class ImageSizeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ImageSizeException(int width, int height, int expectedWidth, int expectedHeight) {
+        super("Image is " + width + "x" + height + ", fragment is " + expectedWidth + "x" + expectedHeight);
+    }
+}
@@ -0,0 +1,166 @@
+package com.naname.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Потоковая запись 24-битного PNG. Строки передаются сверху вниз, фильтруются фильтром Up (разность с
+ * предыдущей строкой, однородный фон превращается в нули) и сжимаются deflate на лету. Сжатые данные уходят
+ * в out чанками IDAT по CHUNK_SIZE байт, так что в памяти держатся две строки и один чанк.
+ * Объект нужно закрыть, out при этом не закрывается.
+ */
+public class PngWriter implements RasterWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final byte FILTER_UP = 2;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater;
+    private final DeflaterOutputStream idat;
+    private final byte[] filtered;
+    private byte[] row;
+    private byte[] previous;
+    private long size;
+
+    /**
+     * @param compressionLevel уровень deflate от 0 (без сжатия) до 9, 1 - самый быстрый
+     */
+    public PngWriter(OutputStream out, int width, int height, int compressionLevel) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.deflater = new Deflater(compressionLevel);
+        this.idat = new DeflaterOutputStream(new ChunkOutputStream(), deflater, CHUNK_SIZE);
+        this.row = new byte[1 + width * 3];
+        this.previous = new byte[1 + width * 3];
+        this.filtered = new byte[1 + width * 3];
+    }
+
+    /**
+     * Записать сигнатуру и чанк IHDR
+     */
+    @Override
+    public void writeHeader() throws IOException {
+        out.write(SIGNATURE);
+        size += SIGNATURE.length;
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = 2;
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Записать очередную строку. Строки передаются сверху вниз
+     */
+    @Override
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        for (int j = 0, k = 1; j < width; j++) {
+            int pixel = rgb[offset + j];
+            row[k++] = (byte) (pixel >> 16);
+            row[k++] = (byte) (pixel >> 8);
+            row[k++] = (byte) pixel;
+        }
+        filtered[0] = FILTER_UP;
+        for (int k = 1; k < row.length; k++)
+            filtered[k] = (byte) (row[k] - previous[k]);
+        idat.write(filtered);
+
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    /**
+     * Дописать остаток сжатых данных и чанк IEND
+     */
+    @Override
+    public void finish() throws IOException {
+        idat.finish();
+        idat.flush();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /**
+     * Освободить память deflate. Вызывается и после finish, и если запись прервалась
+     */
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[4];
+        putInt(buffer, 0, length);
+        out.write(buffer);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(buffer, 0, (int) crc.getValue());
+        out.write(buffer);
+        size += 12 + length;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Собирает сжатые данные в чанки IDAT
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, CHUNK_SIZE - length);
+                System.arraycopy(b, off, chunk, length, count);
+                length += count;
+                off += count;
+                len -= count;
+                if (length == CHUNK_SIZE)
+                    flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0)
+                writeChunk("IDAT", chunk, length);
+            length = 0;
+        }
+    }
+}
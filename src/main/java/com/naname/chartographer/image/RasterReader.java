@@ -0,0 +1,78 @@
+package com.naname.chartographer.image;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Построчное чтение изображения снизу вверх, в порядке строк BMP. Пара к {@link RasterWriter}
+ */
+public interface RasterReader {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Прочитать очередную строку
+     *
+     * @param rgb   пиксели в формате 0xRRGGBB
+     * @param count сколько первых пикселей строки нужно, остальные пропускаются
+     */
+    void readRow(int[] rgb, int count) throws IOException;
+
+    /**
+     * Пропустить очередную строку
+     */
+    void skipRow() throws IOException;
+
+    /**
+     * Открыть загруженное изображение. Несжатый BMP читается из потока по строке ({@link BmpReader}),
+     * остальные форматы декодируются целиком через ImageIO. Поток закрывает вызывающий
+     *
+     * @throws IOException если поток не является изображением
+     */
+    static RasterReader open(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        RasterReader reader = BmpReader.open(buffered);
+        if (reader != null)
+            return reader;
+        BufferedImage image = ImageIO.read(buffered);
+        if (image == null)
+            throw new IOException("Unsupported image format");
+        return of(image);
+    }
+
+    /**
+     * Построчное чтение декодированного изображения
+     */
+    static RasterReader of(BufferedImage image) {
+        return new RasterReader() {
+            private int next = image.getHeight() - 1;
+
+            @Override
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            @Override
+            public void readRow(int[] rgb, int count) {
+                image.getRGB(0, next--, count, 1, rgb, 0, count);
+                for (int j = 0; j < count; j++)
+                    rgb[j] &= 0xFFFFFF;
+            }
+
+            @Override
+            public void skipRow() {
+                next--;
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+package com.naname.chartographer.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Потоковая запись изображения построчно. В памяти держится не больше нескольких строк,
+ * порядок строк задает формат (см. {@link #isBottomUp()}).
+ */
+public interface RasterWriter extends Closeable {
+
+    /**
+     * Записать заголовок изображения, вызывается один раз до первой строки
+     */
+    void writeHeader() throws IOException;
+
+    /**
+     * Записать очередную строку
+     *
+     * @param rgb    пиксели в формате 0xRRGGBB
+     * @param offset индекс первого пикселя строки в rgb
+     */
+    void writeRow(int[] rgb, int offset) throws IOException;
+
+    /**
+     * Передаются ли строки снизу вверх, иначе сверху вниз
+     */
+    boolean isBottomUp();
+
+    /**
+     * Дописать изображение после последней строки. Поток, в который идет запись, не закрывается
+     */
+    void finish() throws IOException;
+
+    /**
+     * Число записанных байт
+     */
+    long getSize();
+
+    /**
+     * Освободить ресурсы, занятые записью, в том числе если finish не был вызван. Поток, в который идет запись,
+     * не закрывается
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,67 @@
+package com.naname.chartographer.image;
+
+import com.naname.chartographer.storage.MappedFragmentImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Потоковая запись изображения в формате raw-файлов фрагментов ({@link MappedFragmentImage}): заголовок
+ * с сигнатурой CHRW, шириной и высотой, затем строки пикселей RGB сверху вниз без выравнивания.
+ * Формат для внутренних клиентов, которым не нужно декодировать изображение
+ */
+public class RawWriter implements RasterWriter {
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] row;
+
+    public RawWriter(OutputStream out, int width, int height) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.row = new byte[width * 3];
+    }
+
+    /**
+     * Размер изображения в байтах
+     */
+    public static long getFileSize(int width, int height) {
+        return MappedFragmentImage.HEADER_SIZE + 3L * width * height;
+    }
+
+    @Override
+    public void writeHeader() throws IOException {
+        out.write(ByteBuffer.allocate(MappedFragmentImage.HEADER_SIZE)
+                .putInt(MappedFragmentImage.MAGIC).putInt(width).putInt(height).putInt(0)
+                .array());
+    }
+
+    @Override
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        for (int j = 0, k = 0; j < width; j++) {
+            int pixel = rgb[offset + j];
+            row[k++] = (byte) (pixel >> 16);
+            row[k++] = (byte) (pixel >> 8);
+            row[k++] = (byte) pixel;
+        }
+        out.write(row);
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public long getSize() {
+        return getFileSize(width, height);
+    }
+}
@@ -0,0 +1,38 @@
+package com.naname.chartographer.ingest;
+
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * Задача асинхронной загрузки фрагментов. Состояние отдается клиенту на GET /chartas/jobs/{id}
+ */
+@Getter
+public class IngestJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final int canvasId;
+    private final Instant created = Instant.now();
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant finished;
+    private volatile String error;
+
+    public IngestJob(String id, int canvasId) {
+        this.id = id;
+        this.canvasId = canvasId;
+    }
+
+    void start() {
+        status = Status.RUNNING;
+    }
+
+    void finish(String error) {
+        this.error = error;
+        this.status = error == null ? Status.DONE : Status.FAILED;
+        this.finished = Instant.now();
+    }
+}
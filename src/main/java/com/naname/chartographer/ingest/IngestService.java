@@ -0,0 +1,197 @@
+package com.naname.chartographer.ingest;
+
+import com.naname.chartographer.util.FileUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронная загрузка фрагментов. Запрос только сохраняет изображения в staging и ставит задачу в очередь,
+ * сохранение, наложение и удаление перекрытых фрагментов выполняют фоновые потоки, так что загрузки
+ * не занимают потоки Tomcat, нужные для чтения.
+ * Каждый поток обслуживает свою очередь, задачи одного холста всегда попадают в одну очередь и выполняются
+ * в порядке поступления. Очереди ограничены, при переполнении задача отклоняется.
+ */
+@Service
+@Slf4j
+public class IngestService implements DisposableBean {
+
+    private static final Duration JOB_TTL = Duration.ofHours(1);
+
+    private final ThreadPoolExecutor[] lanes;
+    private final Map<String, IngestJob> jobs = new ConcurrentHashMap<>();
+    private final MeterRegistry registry;
+    private final Counter rejected;
+
+    @Autowired
+    public IngestService(@Value("${chartographer.ingest.threads:2}") int threads,
+                         @Value("${chartographer.ingest.queue-capacity:256}") int queueCapacity,
+                         MeterRegistry registry) {
+        int laneCount = Math.max(1, threads);
+        int laneCapacity = Math.max(1, queueCapacity / laneCount);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++)
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity), runnable -> {
+                Thread thread = new Thread(runnable, "ingest-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        this.registry = registry;
+        this.rejected = Counter.builder("chartographer.ingest.rejected")
+                .description("Задачи загрузки, отклоненные из-за переполненной очереди")
+                .register(registry);
+    }
+
+    /**
+     * Зарегистрировать метрику очереди и удалить изображения, оставшиеся в staging с прошлого запуска:
+     * задачи в памяти не переживают перезапуск
+     */
+    @PostConstruct
+    public void start() {
+        Gauge.builder("chartographer.ingest.queue", this, IngestService::getQueueDepth)
+                .description("Принятые и еще не начатые задачи загрузки")
+                .register(registry);
+        try {
+            FileUtils.cleanDirectory(FileUtil.getStagingAbsolutePath());
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Can't clear staging directory cause: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Принять задачу: сохранить изображения в staging и поставить задачу в очередь холста
+     *
+     * @param canvasId id холста
+     * @param images   загруженные изображения, задача получит их копии в том же порядке
+     * @param task     обработка изображений
+     * @throws RejectedExecutionException если очередь холста заполнена
+     */
+    public IngestJob submit(int canvasId, List<MultipartFile> images, IngestTask task) throws IOException {
+        evictFinished();
+        ThreadPoolExecutor lane = lanes[Math.floorMod(canvasId, lanes.length)];
+        if (lane.getQueue().remainingCapacity() == 0) {
+            rejected.increment();
+            throw new RejectedExecutionException("Ingest queue is full");
+        }
+
+        IngestJob job = new IngestJob(UUID.randomUUID().toString(), canvasId);
+        List<StagedFile> staged = new ArrayList<>(images.size());
+        try {
+            for (int i = 0; i < images.size(); i++)
+                staged.add(StagedFile.stage(images.get(i), getStagingPath(job, i)));
+        } catch (IOException e) {
+            deleteStaged(staged);
+            throw e;
+        }
+
+        jobs.put(job.getId(), job);
+        try {
+            lane.execute(() -> run(job, staged, task));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            deleteStaged(staged);
+            rejected.increment();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Задача по id, null если ее нет или она завершилась больше часа назад
+     */
+    public IngestJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Число принятых и еще не начатых задач во всех очередях
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes)
+            depth += lane.getQueue().size();
+        return depth;
+    }
+
+    /**
+     * Выполнить задачу. Staging-файлы удаляются до того, как задача помечается завершенной,
+     * чтобы клиент, дождавшийся статуса, не застал их на диске
+     */
+    private void run(IngestJob job, List<StagedFile> staged, IngestTask task) {
+        job.start();
+        String error = null;
+        try {
+            task.run(new ArrayList<>(staged));
+        } catch (Exception e) {
+            log.error("Can't ingest job " + job.getId() + " cause: " + e.getMessage());
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        } finally {
+            deleteStaged(staged);
+        }
+        job.finish(error);
+    }
+
+    private Path getStagingPath(IngestJob job, int index) {
+        return FileUtil.getStagingAbsolutePath().toPath().resolve(job.getId() + "-" + index);
+    }
+
+    private void deleteStaged(List<StagedFile> staged) {
+        for (StagedFile file : staged) {
+            try {
+                file.delete();
+            } catch (IOException e) {
+                log.error("Can't delete staged file " + file.getPath() + " cause: " + e.getMessage());
+            }
+        }
+    }
+
+    private void evictFinished() {
+        Instant expired = Instant.now().minus(JOB_TTL);
+        jobs.values().removeIf(job -> job.getFinished() != null && job.getFinished().isBefore(expired));
+    }
+
+    /**
+     * Дождаться принятых задач при остановке приложения
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes)
+            lane.shutdown();
+        for (ThreadPoolExecutor lane : lanes)
+            lane.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Обработка принятых изображений
+     */
+    @FunctionalInterface
+    public interface IngestTask {
+        void run(List<MultipartFile> images) throws IOException;
+    }
+}
@@ -0,0 +1,94 @@
+package com.naname.chartographer.ingest;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Загруженное изображение, сохраненное в каталог staging до обработки. Временные файлы multipart-запроса
+ * удаляются по его завершении, поэтому асинхронная обработка работает с копией.
+ * transferTo переносит файл, а не копирует его
+ */
+public class StagedFile implements MultipartFile {
+
+    private final String name;
+    private final Path path;
+
+    public StagedFile(String name, Path path) {
+        this.name = name;
+        this.path = path;
+    }
+
+    /**
+     * Скопировать загруженный файл в path
+     */
+    public static StagedFile stage(MultipartFile multipartFile, Path path) throws IOException {
+        multipartFile.transferTo(path);
+        return new StagedFile(multipartFile.getName(), path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return path.getFileName().toString();
+    }
+
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getSize() == 0;
+    }
+
+    @Override
+    public long getSize() {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException {
+        transferTo(dest.toPath());
+    }
+
+    @Override
+    public void transferTo(Path dest) throws IOException {
+        Files.move(path, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Удалить файл, если он не был перенесен
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,358 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.image.RasterWriter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Фрагмент в формате {@link FragmentFormat#DEFLATE}: заголовок HEADER_SIZE байт (сигнатура CHRZ, ширина, высота,
+ * число строк в блоке), индекс смещений блоков и сами блоки. Блок - BLOCK_ROWS строк пикселей RGB сверху вниз,
+ * сжатых deflate независимо от остальных, так что при копировании области распаковываются только блоки,
+ * в которые попадают ее строки. Индекс читается при открытии, блоки - позиционным чтением, поэтому
+ * копировать из одного объекта можно из нескольких потоков одновременно. Inflater и буферы блока
+ * переиспользуются между копированиями, у каждого потока, копирующего одновременно с другими, - свои.
+ */
+public class CompressedFragmentImage implements FragmentImage {
+
+    public static final int HEADER_SIZE = 16;
+    public static final int MAGIC = 'C' << 24 | 'H' << 16 | 'R' << 8 | 'Z';
+    public static final int BLOCK_ROWS = 32;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int blockRows;
+    private final long[] offsets;
+    private final Queue<Decoder> decoders = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    public CompressedFragmentImage(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getInt() != MAGIC)
+                throw new IOException("File " + file + " is not a compressed fragment");
+            this.width = header.getInt();
+            this.height = header.getInt();
+            this.blockRows = header.getInt();
+            if (width <= 0 || height <= 0 || blockRows <= 0)
+                throw new IOException("File " + file + " has a broken header");
+
+            ByteBuffer index = ByteBuffer.allocate((getBlockCount(height, blockRows) + 1) * Long.BYTES);
+            readFully(index, HEADER_SIZE);
+            this.offsets = new long[index.capacity() / Long.BYTES];
+            index.asLongBuffer().get(offsets);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Записать изображение в сжатый файл
+     *
+     * @param level уровень deflate, см. {@link Deflater}
+     */
+    public static void write(BufferedImage image, Path file, int level) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int blockCount = getBlockCount(height, BLOCK_ROWS);
+        long[] offsets = new long[blockCount + 1];
+        Deflater deflater = new Deflater(level);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER_SIZE + (long) offsets.length * Long.BYTES;
+            int[] rgb = new int[width];
+            byte[] block = new byte[width * 3 * BLOCK_ROWS];
+            byte[] compressed = new byte[block.length / 2 + 64];
+            for (int b = 0; b < blockCount; b++) {
+                offsets[b] = position;
+                int rows = Math.min(BLOCK_ROWS, height - b * BLOCK_ROWS);
+                for (int i = 0, k = 0; i < rows; i++) {
+                    image.getRGB(0, b * BLOCK_ROWS + i, width, 1, rgb, 0, width);
+                    for (int pixel : rgb) {
+                        block[k++] = (byte) (pixel >> 16);
+                        block[k++] = (byte) (pixel >> 8);
+                        block[k++] = (byte) pixel;
+                    }
+                }
+                position = deflate(deflater, block, rows * width * 3, compressed, out, position);
+            }
+            offsets[blockCount] = position;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * Long.BYTES);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(BLOCK_ROWS);
+            header.asLongBuffer().put(offsets);
+            writeFully(out, header.rewind(), 0);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Построчная запись сжатого файла снизу вверх, как строки идут в BMP. Блоки сжимаются по мере заполнения
+     * и пишутся в spill в порядке поступления, а в {@link RasterWriter#finish()} переносятся в out сверху вниз,
+     * как того требует индекс. В памяти держится один блок
+     *
+     * @param spill временный файл для сжатых блоков, открытый на чтение и запись
+     * @param level уровень deflate, см. {@link Deflater}
+     */
+    public static RasterWriter createWriter(FileChannel out, FileChannel spill, int width, int height, int level) {
+        return new BlockWriter(out, spill, width, height, level);
+    }
+
+    /**
+     * Сжать length байт block и записать в out с позиции position
+     *
+     * @return позиция после сжатого блока
+     */
+    private static long deflate(Deflater deflater, byte[] block, int length, byte[] compressed, FileChannel out,
+                                long position) throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(compressed);
+            writeFully(out, ByteBuffer.wrap(compressed, 0, count), position);
+            position += count;
+        }
+        return position;
+    }
+
+    private static int getBlockCount(int height, int blockRows) {
+        return (height + blockRows - 1) / blockRows;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += out.write(buffer, position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0)
+                throw new IOException("Unexpected end of compressed fragment");
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void copyTo(int srcX, int srcY, BufferedImage dst, int dstX, int dstY, int width, int height)
+            throws IOException {
+        int rowSize = this.width * 3;
+        Decoder decoder = decoders.poll();
+        if (decoder == null)
+            decoder = new Decoder(rowSize * blockRows, rowSize);
+        try {
+            int[] rgb = dst.getType() == BufferedImage.TYPE_INT_RGB ? null : decoder.getRgb(this.width);
+            for (int b = srcY / blockRows; b * blockRows < srcY + height; b++) {
+                int blockTop = b * blockRows;
+                int rows = Math.min(blockRows, this.height - blockTop);
+                inflate(decoder, b, rows * rowSize);
+
+                int first = Math.max(srcY, blockTop);
+                int last = Math.min(srcY + height, blockTop + rows);
+                for (int y = first; y < last; y++) {
+                    System.arraycopy(decoder.block, (y - blockTop) * rowSize + srcX * 3, decoder.row, 0, width * 3);
+                    MappedFragmentImage.copyRow(decoder.row, dst, dstX, dstY + y - srcY, width, rgb);
+                }
+            }
+        } finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * Вернуть decoder для следующих копирований. После закрытия изображения он больше не нужен
+     */
+    private void release(Decoder decoder) {
+        if (closed) {
+            decoder.inflater.end();
+            return;
+        }
+        decoders.offer(decoder);
+        // close мог пройти по очереди между проверкой и offer
+        if (closed)
+            endDecoders();
+    }
+
+    private void endDecoders() {
+        for (Decoder decoder; (decoder = decoders.poll()) != null; )
+            decoder.inflater.end();
+    }
+
+    /**
+     * Прочитать и распаковать блок b в decoder.block
+     */
+    private void inflate(Decoder decoder, int b, int length) throws IOException {
+        ByteBuffer compressed = decoder.getCompressed((int) (offsets[b + 1] - offsets[b]));
+        readFully(compressed, offsets[b]);
+        Inflater inflater = decoder.inflater;
+        byte[] block = decoder.block;
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int done = 0;
+            while (done < length && !inflater.finished()) {
+                int count = inflater.inflate(block, done, length - done);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                done += count;
+            }
+            if (done < length)
+                throw new IOException("Compressed fragment block " + b + " is truncated");
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed fragment block " + b + " is broken", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        endDecoders();
+        channel.close();
+    }
+
+    /**
+     * Inflater и буферы одного копирования
+     */
+    private static class Decoder {
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] block;
+        private final byte[] row;
+        private ByteBuffer compressed;
+        private int[] rgb;
+
+        Decoder(int blockSize, int rowSize) {
+            this.block = new byte[blockSize];
+            this.row = new byte[rowSize];
+        }
+
+        /**
+         * Пустой буфер под сжатый блок размером size, растет под самый большой прочитанный блок
+         */
+        ByteBuffer getCompressed(int size) {
+            if (compressed == null || compressed.capacity() < size)
+                compressed = ByteBuffer.allocate(size);
+            return compressed.clear().limit(size);
+        }
+
+        int[] getRgb(int width) {
+            if (rgb == null)
+                rgb = new int[width];
+            return rgb;
+        }
+    }
+
+    private static class BlockWriter implements RasterWriter {
+
+        private final FileChannel out;
+        private final FileChannel spill;
+        private final int width;
+        private final int height;
+        private final Deflater deflater;
+        private final byte[] block;
+        private final byte[] compressed;
+        // начало сжатого блока b в spill - spillOffsets[b], конец - spillEnds[b]
+        private final long[] spillOffsets;
+        private final long[] spillEnds;
+        private long spillPosition;
+        private long size;
+        private int next;
+
+        BlockWriter(FileChannel out, FileChannel spill, int width, int height, int level) {
+            this.out = out;
+            this.spill = spill;
+            this.width = width;
+            this.height = height;
+            this.deflater = new Deflater(level);
+            this.block = new byte[width * 3 * BLOCK_ROWS];
+            this.compressed = new byte[block.length / 2 + 64];
+            this.spillOffsets = new long[getBlockCount(height, BLOCK_ROWS)];
+            this.spillEnds = new long[spillOffsets.length];
+            this.next = height - 1;
+        }
+
+        @Override
+        public void writeHeader() {
+            // заголовок содержит индекс и пишется в finish
+        }
+
+        @Override
+        public void writeRow(int[] rgb, int offset) throws IOException {
+            int b = next / BLOCK_ROWS;
+            int blockTop = b * BLOCK_ROWS;
+            for (int j = 0, k = (next - blockTop) * width * 3; j < width; j++) {
+                int pixel = rgb[offset + j];
+                block[k++] = (byte) (pixel >> 16);
+                block[k++] = (byte) (pixel >> 8);
+                block[k++] = (byte) pixel;
+            }
+            if (next-- == blockTop) {
+                int rows = Math.min(BLOCK_ROWS, height - blockTop);
+                spillOffsets[b] = spillPosition;
+                spillPosition = deflate(deflater, block, rows * width * 3, compressed, spill, spillPosition);
+                spillEnds[b] = spillPosition;
+            }
+        }
+
+        @Override
+        public boolean isBottomUp() {
+            return true;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            deflater.end();
+            long[] offsets = new long[spillOffsets.length + 1];
+            long position = HEADER_SIZE + (long) offsets.length * Long.BYTES;
+            for (int b = 0; b < spillOffsets.length; b++) {
+                offsets[b] = position;
+                out.position(position);
+                for (long done = spillOffsets[b]; done < spillEnds[b]; )
+                    done += spill.transferTo(done, spillEnds[b] - done, out);
+                position += spillEnds[b] - spillOffsets[b];
+            }
+            offsets[spillOffsets.length] = position;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * Long.BYTES);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(BLOCK_ROWS);
+            header.asLongBuffer().put(offsets);
+            writeFully(out, header.rewind(), 0);
+            size = position;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.util.RasterUtil;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Фрагмент, целиком декодированный в память
+ */
+public class DecodedFragmentImage implements FragmentImage {
+
+    private final BufferedImage image;
+
+    public DecodedFragmentImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void copyTo(int srcX, int srcY, BufferedImage dst, int dstX, int dstY, int width, int height) {
+        RasterUtil.copy(image, srcX, srcY, dst, dstX, dstY, width, height);
+    }
+}
@@ -0,0 +1,30 @@
+package com.naname.chartographer.storage;
+
+/**
+ * Формат файла фрагмента на диске
+ */
+public enum FragmentFormat {
+    /**
+     * Загруженный BMP как есть, при чтении декодируется через ImageIO
+     */
+    BMP("bmp"),
+    /**
+     * Небольшой заголовок и упакованные пиксели RGB, при чтении отображается в память без декодирования
+     */
+    RAW("raw"),
+    /**
+     * Пиксели RGB блоками строк, каждый блок сжат deflate отдельно. При чтении распаковываются только
+     * блоки с нужными строками (см. {@link CompressedFragmentImage})
+     */
+    DEFLATE("zraw");
+
+    private final String extension;
+
+    FragmentFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+}
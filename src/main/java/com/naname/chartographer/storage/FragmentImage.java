@@ -0,0 +1,30 @@
+package com.naname.chartographer.storage;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Пиксели сохраненного фрагмента, из которых можно копировать прямоугольные области
+ */
+public interface FragmentImage extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Скопировать область width x height в dst. Область должна целиком лежать внутри фрагмента и dst.
+     *
+     * @param srcX координата левого верхнего угла области во фрагменте
+     * @param srcY координата левого верхнего угла области во фрагменте
+     * @param dst  изображение, в которое копируется область
+     * @param dstX координата левого верхнего угла области в dst
+     * @param dstY координата левого верхнего угла области в dst
+     */
+    void copyTo(int srcX, int srcY, BufferedImage dst, int dstX, int dstY, int width, int height) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,60 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.image.RasterReader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+
+/**
+ * Построчное чтение сохраненного фрагмента снизу вверх. Строки копируются из фрагмента полосами по
+ * {@link CompressedFragmentImage#BLOCK_ROWS}, выровненными так же, как блоки сжатых фрагментов, поэтому
+ * каждый блок распаковывается один раз, а в памяти держится одна полоса
+ */
+public class FragmentImageReader implements RasterReader {
+
+    private static final int BAND_ROWS = CompressedFragmentImage.BLOCK_ROWS;
+
+    private final FragmentImage image;
+    private final BufferedImage band;
+    private final int[] pixels;
+    private int next;
+    private int bandTop;
+
+    public FragmentImageReader(FragmentImage image) {
+        this.image = image;
+        this.band = new BufferedImage(image.getWidth(), Math.min(BAND_ROWS, image.getHeight()),
+                BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        this.next = image.getHeight() - 1;
+        this.bandTop = image.getHeight();
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void readRow(int[] rgb, int count) throws IOException {
+        if (next < 0)
+            throw new IOException("Unexpected end of image");
+        int row = next--;
+        if (row < bandTop) {
+            int bandBottom = row + 1;
+            bandTop = row / BAND_ROWS * BAND_ROWS;
+            image.copyTo(0, bandTop, band, 0, 0, image.getWidth(), bandBottom - bandTop);
+        }
+        System.arraycopy(pixels, (row - bandTop) * image.getWidth(), rgb, 0, count);
+    }
+
+    @Override
+    public void skipRow() {
+        next--;
+    }
+}
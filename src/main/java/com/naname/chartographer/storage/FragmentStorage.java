@@ -0,0 +1,310 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.util.FileUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Файловое хранилище фрагментов. Путь к файлу вычисляется прямо из id фрагмента, а файлы раскладываются
+ * по вложенным каталогам по младшим байтам id (например, id 0x1a2b3c → 3c/2b/1715004.bmp),
+ * чтобы ни один каталог не разрастался.
+ * Новые фрагменты сохраняются в формате chartographer.storage.format, ранее сохраненные читаются в своем формате.
+ */
+@Component
+@Slf4j
+public class FragmentStorage {
+
+    private static final Pattern FLAT_NAME = Pattern.compile("\\d{1,9}\\.bmp");
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d{1,9})\\.(?:bmp|raw|zraw)((?:\\.blocks)?\\.tmp)?");
+
+    private final FragmentFormat format;
+    private final Map<Integer, Pin> pins = new ConcurrentHashMap<>();
+
+    @Autowired
+    public FragmentStorage(@Value("${chartographer.storage.format:bmp}") FragmentFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Формат, в котором сохраняются новые фрагменты
+     */
+    public FragmentFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Путь к BMP-файлу фрагмента
+     *
+     * @param id id фрагмента
+     */
+    public Path getPath(int id) {
+        return getPath(id, FragmentFormat.BMP);
+    }
+
+    /**
+     * Путь к файлу фрагмента в заданном формате
+     *
+     * @param id id фрагмента
+     */
+    public Path getPath(int id, FragmentFormat format) {
+        String hex = String.format("%08x", id);
+        return FileUtil.getFragmentsAbsolutePath().toPath()
+                .resolve(hex.substring(6, 8))
+                .resolve(hex.substring(4, 6))
+                .resolve(id + "." + format.getExtension());
+    }
+
+    /**
+     * Сохранить декодированное изображение фрагмента в формате chartographer.storage.format.
+     * Файл пишется через временный, так что читатели никогда не видят его частично записанным
+     *
+     * @param id id фрагмента
+     */
+    public void save(BufferedImage image, int id) throws IOException {
+        Path imageFile = getPath(id, format);
+        Files.createDirectories(imageFile.getParent());
+        Path tmp = imageFile.resolveSibling(imageFile.getFileName() + ".tmp");
+        if (format == FragmentFormat.BMP) {
+            if (!ImageIO.write(image, "bmp", tmp.toFile()))
+                throw new IOException("Can't encode fragment " + id);
+        } else if (format == FragmentFormat.RAW)
+            MappedFragmentImage.write(image, tmp);
+        else
+            CompressedFragmentImage.write(image, tmp, Deflater.BEST_SPEED);
+        Files.move(tmp, imageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Начать построчную запись фрагмента в формате chartographer.storage.format, строки передаются снизу вверх.
+     * Возвращенный объект нужно закрыть, файл фрагмента появляется после {@link FragmentWriter#finish()}
+     *
+     * @param id id фрагмента
+     */
+    public FragmentWriter createWriter(int id, int width, int height) throws IOException {
+        Path imageFile = getPath(id, format);
+        Files.createDirectories(imageFile.getParent());
+        return new FragmentWriter(imageFile, format, width, height);
+    }
+
+    /**
+     * Начать построчную запись изображения в raw-файл вне каталога фрагментов, например во временный файл
+     * в staging. Строки передаются снизу вверх, файл появляется после {@link FragmentWriter#finish()}
+     *
+     * @param file путь к файлу
+     */
+    public FragmentWriter createWriter(Path file, int width, int height) throws IOException {
+        Files.createDirectories(file.getParent());
+        return new FragmentWriter(file, FragmentFormat.RAW, width, height);
+    }
+
+    /**
+     * Формат, в котором сохранен фрагмент
+     *
+     * @param id id фрагмента
+     * @throws FileNotFoundException если файла нет ни в одном формате
+     */
+    public FragmentFormat getStoredFormat(int id) throws FileNotFoundException {
+        if (Files.exists(getPath(id, format)))
+            return format;
+        for (FragmentFormat other : FragmentFormat.values())
+            if (other != format && Files.exists(getPath(id, other)))
+                return other;
+        throw new FileNotFoundException("File " + getPath(id, format) + " not found");
+    }
+
+    /**
+     * BMP-файл изображения фрагмента
+     *
+     * @param id id фрагмента
+     * @throws FileNotFoundException если файла нет
+     */
+    public File load(int id) throws FileNotFoundException {
+        Path imageFile = getPath(id);
+        if (!Files.exists(imageFile))
+            throw new FileNotFoundException("File " + imageFile + " not found");
+        return imageFile.toFile();
+    }
+
+    /**
+     * Открыть фрагмент, сохраненный в формате RAW. Возвращенный объект нужно закрыть
+     *
+     * @param id id фрагмента
+     */
+    public FragmentImage map(int id) throws IOException {
+        return map(getPath(id, FragmentFormat.RAW));
+    }
+
+    /**
+     * Открыть raw-файл, записанный {@link #createWriter(Path, int, int)}. Возвращенный объект нужно закрыть
+     *
+     * @param file путь к файлу
+     */
+    public FragmentImage map(Path file) throws IOException {
+        return new MappedFragmentImage(file);
+    }
+
+    /**
+     * Открыть фрагмент, сохраненный в формате RAW или DEFLATE, без декодирования всего изображения.
+     * Возвращенный объект нужно закрыть
+     *
+     * @param id     id фрагмента
+     * @param format формат, в котором сохранен фрагмент
+     */
+    public FragmentImage open(int id, FragmentFormat format) throws IOException {
+        if (format == FragmentFormat.DEFLATE)
+            return new CompressedFragmentImage(getPath(id, FragmentFormat.DEFLATE));
+        return map(id);
+    }
+
+    /**
+     * Удалить файл фрагмента, если он есть. Если фрагмент закреплен ({@link #pin}), файл удаляется
+     * при снятии последнего закрепления
+     *
+     * @param id id фрагмента
+     */
+    public void delete(int id) throws IOException {
+        boolean[] pinned = new boolean[1];
+        pins.computeIfPresent(id, (key, pin) -> {
+            pin.deleted = true;
+            pinned[0] = true;
+            return pin;
+        });
+        if (!pinned[0])
+            deleteFiles(id);
+    }
+
+    /**
+     * Закрепить файл фрагмента: пока закрепление не снято {@link #unpin}, файл не удаляется,
+     * так что читатель может открыть его и после удаления фрагмента
+     *
+     * @param id id фрагмента
+     */
+    public void pin(int id) {
+        pins.compute(id, (key, pin) -> {
+            if (pin == null)
+                pin = new Pin();
+            pin.count++;
+            return pin;
+        });
+    }
+
+    /**
+     * Снять закрепление фрагмента. Если фрагмент удалили, пока он был закреплен, и это последнее закрепление,
+     * файл удаляется
+     *
+     * @param id id фрагмента
+     * @return удален ли файл фрагмента
+     */
+    public boolean unpin(int id) throws IOException {
+        boolean[] deleted = new boolean[1];
+        pins.computeIfPresent(id, (key, pin) -> {
+            if (--pin.count > 0)
+                return pin;
+            deleted[0] = pin.deleted;
+            return null;
+        });
+        if (deleted[0])
+            deleteFiles(id);
+        return deleted[0];
+    }
+
+    private void deleteFiles(int id) throws IOException {
+        for (FragmentFormat format : FragmentFormat.values())
+            Files.deleteIfExists(getPath(id, format));
+    }
+
+    /**
+     * Удалить файлы фрагментов, на которые больше нет ссылок, и оставшиеся после падения временные файлы.
+     * Файлы новее before не трогаются: фрагмент мог быть записан в еще не завершенной транзакции.
+     * Закрепленные файлы тоже не трогаются. Если каталог данных не задан, ничего не удаляется: корнем каталога
+     * фрагментов тогда будет директория запуска приложения
+     *
+     * @param isReferenced есть ли фрагмент с таким id в базе
+     * @param before       удаляются только файлы, измененные раньше
+     * @return число удаленных файлов
+     */
+    public int deleteUnreferenced(IntPredicate isReferenced, Instant before) throws IOException {
+        if (!FileUtil.isDataDirectorySet()) {
+            log.warn("Data directory is not set, unreferenced fragment files are not deleted");
+            return 0;
+        }
+        Path root = FileUtil.getFragmentsAbsolutePath().toPath();
+        if (!Files.isDirectory(root))
+            return 0;
+
+        int deleted = 0;
+        // файлы лежат на глубине 3: <байт>/<байт>/<id>.<расширение>
+        try (Stream<Path> files = Files.walk(root, 3)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches() || root.equals(file.getParent()) || !Files.isRegularFile(file))
+                    continue;
+                int id = Integer.parseInt(matcher.group(1));
+                if (pins.containsKey(id))
+                    continue;
+                boolean orphan = matcher.group(2) != null || !isReferenced.test(id);
+                if (orphan && Files.getLastModifiedTime(file).toInstant().isBefore(before)) {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Перенести фрагменты, сохраненные в корне каталога фрагментов (старый плоский формат {@code <id>.bmp}),
+     * во вложенные каталоги. Если каталог данных не задан, ничего не переносится
+     */
+    @PostConstruct
+    public void migrateFlatLayout() {
+        if (!FileUtil.isDataDirectorySet())
+            return;
+        Path root = FileUtil.getFragmentsAbsolutePath().toPath();
+        if (!Files.isDirectory(root))
+            return;
+
+        int moved = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*.bmp")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!FLAT_NAME.matcher(name).matches() || !Files.isRegularFile(file))
+                    continue;
+                Path target = getPath(Integer.parseInt(name.substring(0, name.length() - ".bmp".length())));
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                moved++;
+            }
+        } catch (IOException e) {
+            log.error("Can't migrate fragments cause: " + e.getMessage());
+        }
+        if (moved > 0)
+            log.info("Moved " + moved + " fragments to nested directories");
+    }
+
+    private static class Pin {
+        private int count;
+        private boolean deleted;
+    }
+}
@@ -0,0 +1,107 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.image.BmpWriter;
+import com.naname.chartographer.image.RasterWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Построчная запись файла фрагмента в заданном формате, строки передаются снизу вверх, как они идут в BMP.
+ * Пишется временный файл, под своим именем он появляется только в {@link #finish()}, так что читатели
+ * не видят его частично записанным. Закрытие без finish удаляет временные файлы
+ */
+public class FragmentWriter implements RasterWriter {
+
+    private final Path file;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final FileChannel spill;
+    private final OutputStream stream;
+    private final RasterWriter writer;
+    private boolean finished;
+
+    FragmentWriter(Path file, FragmentFormat format, int width, int height) throws IOException {
+        this.file = file;
+        this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (format == FragmentFormat.BMP) {
+                this.spill = null;
+                this.stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+                this.writer = new BmpWriter(stream, width, height);
+            } else if (format == FragmentFormat.RAW) {
+                this.spill = null;
+                this.stream = null;
+                this.writer = MappedFragmentImage.createWriter(channel, width, height);
+            } else {
+                this.spill = FileChannel.open(file.resolveSibling(file.getFileName() + ".blocks.tmp"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+                this.stream = null;
+                this.writer = CompressedFragmentImage.createWriter(channel, spill, width, height,
+                        Deflater.BEST_SPEED);
+            }
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeHeader() throws IOException {
+        writer.writeHeader();
+    }
+
+    @Override
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        writer.writeRow(rgb, offset);
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return true;
+    }
+
+    /**
+     * Дописать файл и переместить его на место файла фрагмента
+     */
+    @Override
+    public void finish() throws IOException {
+        writer.finish();
+        closeFiles();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+    }
+
+    @Override
+    public long getSize() {
+        return writer.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        closeFiles();
+        if (!finished)
+            Files.deleteIfExists(tmp);
+    }
+
+    private void closeFiles() throws IOException {
+        if (stream != null)
+            stream.close();
+        channel.close();
+        if (spill != null)
+            spill.close();
+    }
+}
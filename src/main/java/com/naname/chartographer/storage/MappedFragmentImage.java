@@ -0,0 +1,197 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.image.RasterWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Фрагмент в формате {@link FragmentFormat#RAW}: заголовок HEADER_SIZE байт (сигнатура CHRW, ширина, высота, резерв)
+ * и строки пикселей RGB по 3 байта сверху вниз без выравнивания.
+ * При копировании в память отображаются только нужные строки файла, пиксели не декодируются.
+ */
+public class MappedFragmentImage implements FragmentImage {
+
+    public static final int HEADER_SIZE = 16;
+    public static final int MAGIC = 'C' << 24 | 'H' << 16 | 'R' << 8 | 'W';
+    private static final int MAP_ROWS = 256;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+
+    public MappedFragmentImage(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new IOException("File " + file + " is not a raw fragment");
+            this.width = header.getInt();
+            this.height = header.getInt();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Записать изображение в raw-файл
+     */
+    public static void write(BufferedImage image, Path file) throws IOException {
+        int width = image.getWidth();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(width).putInt(image.getHeight()).putInt(0);
+            writeFully(out, header.flip());
+
+            int[] rgb = new int[width];
+            ByteBuffer row = ByteBuffer.allocate(width * 3);
+            for (int i = 0; i < image.getHeight(); i++) {
+                image.getRGB(0, i, width, 1, rgb, 0, width);
+                row.clear();
+                for (int pixel : rgb)
+                    row.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+                writeFully(out, row.flip());
+            }
+        }
+    }
+
+    /**
+     * Построчная запись raw-файла снизу вверх, как строки идут в BMP: каждая строка пишется сразу на свое место
+     */
+    public static RasterWriter createWriter(FileChannel out, int width, int height) {
+        return new RowWriter(out, width, height);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += out.write(buffer, position);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void copyTo(int srcX, int srcY, BufferedImage dst, int dstX, int dstY, int width, int height)
+            throws IOException {
+        long rowSize = this.width * 3L;
+        byte[] row = new byte[width * 3];
+        int[] rgb = dst.getType() == BufferedImage.TYPE_INT_RGB ? null : new int[width];
+
+        // отображаем строки порциями, чтобы не упираться в ограничение 2 ГБ на один MappedByteBuffer
+        for (int chunk = 0; chunk < height; chunk += MAP_ROWS) {
+            int rowCount = Math.min(MAP_ROWS, height - chunk);
+            ByteBuffer rows = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + (srcY + chunk) * rowSize, rowCount * rowSize);
+            for (int i = 0; i < rowCount; i++) {
+                rows.position((int) (i * rowSize + srcX * 3L));
+                rows.get(row);
+                copyRow(row, dst, dstX, dstY + chunk + i, width, rgb);
+            }
+        }
+    }
+
+    /**
+     * Записать строку RGB в dst
+     *
+     * @param rgb буфер строки для изображений, отличных от TYPE_INT_RGB, null для TYPE_INT_RGB
+     */
+    static void copyRow(byte[] row, BufferedImage dst, int dstX, int dstY, int width, int[] rgb) {
+        if (rgb == null) {
+            unpackRow(row, dst, dstX, dstY, width);
+            return;
+        }
+        for (int j = 0, s = 0; j < width; j++, s += 3)
+            rgb[j] = (row[s] & 0xFF) << 16 | (row[s + 1] & 0xFF) << 8 | row[s + 2] & 0xFF;
+        dst.setRGB(dstX, dstY, width, 1, rgb, 0, width);
+    }
+
+    /**
+     * Распаковать строку RGB прямо в массив пикселей изображения TYPE_INT_RGB
+     */
+    private static void unpackRow(byte[] row, BufferedImage dst, int dstX, int dstY, int width) {
+        WritableRaster raster = dst.getRaster();
+        int[] dstData = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int dstStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int dstOffset = raster.getDataBuffer().getOffset()
+                + (dstY - raster.getSampleModelTranslateY()) * dstStride
+                + dstX - raster.getSampleModelTranslateX();
+        for (int j = 0, s = 0; j < width; j++, s += 3)
+            dstData[dstOffset + j] = (row[s] & 0xFF) << 16 | (row[s + 1] & 0xFF) << 8 | row[s + 2] & 0xFF;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class RowWriter implements RasterWriter {
+
+        private final FileChannel out;
+        private final int width;
+        private final int height;
+        private final ByteBuffer row;
+        private int next;
+
+        RowWriter(FileChannel out, int width, int height) {
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            this.row = ByteBuffer.allocate(width * 3);
+            this.next = height - 1;
+        }
+
+        @Override
+        public void writeHeader() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(0);
+            writeFully(out, header.flip(), 0);
+        }
+
+        @Override
+        public void writeRow(int[] rgb, int offset) throws IOException {
+            row.clear();
+            for (int j = 0; j < width; j++) {
+                int pixel = rgb[offset + j];
+                row.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+            }
+            writeFully(out, row.flip(), HEADER_SIZE + next-- * (long) row.capacity());
+        }
+
+        @Override
+        public boolean isBottomUp() {
+            return true;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public long getSize() {
+            return HEADER_SIZE + 3L * width * height;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.Fragment;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Пирамида уменьшенных копий холста для чтения с отдалением. Уровень level (1..levels) в 2^level раз меньше
+ * холста по каждой стороне, его пиксель (x;y) равен пикселю холста (x * 2^level; y * 2^level).
+ * Из-за такой выборки по точкам новый фрагмент просто накладывается на каждый уровень поверх старых,
+ * так же как на сам холст, и пересчитывать уровни целиком не нужно.
+ * Уровни хранятся и читаются тайлами {@link TileStore}, построенная пирамида отмечается файлом в каталоге тайлов холста.
+ */
+@Component
+@Slf4j
+public class Pyramid {
+
+    private static final String MARKER = "pyramid";
+
+    private final TileStore tileStore;
+    private final int levels;
+    private final Set<Integer> built = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Lock> locks = new ConcurrentHashMap<>();
+
+    @Autowired
+    public Pyramid(TileStore tileStore, @Value("${chartographer.pyramid.levels:4}") int levels) {
+        this.tileStore = tileStore;
+        this.levels = Math.max(0, levels);
+    }
+
+    /**
+     * Число уменьшенных уровней, 0 - пирамида не строится
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Блокировка построения уровней холста, чтобы уровни строил один поток. Порядок наложения фрагментов
+     * она не задает: его обеспечивает вызывающий, накладывая перекрывающиеся фрагменты по очереди в порядке дат
+     */
+    public Lock getBuildLock(int canvasId) {
+        return locks.computeIfAbsent(canvasId, id -> new ReentrantLock());
+    }
+
+    /**
+     * Построены ли все уровни холста. Для холстов, созданных до появления пирамиды (или до увеличения
+     * числа уровней), уровни нужно построить заново по уже загруженным фрагментам
+     */
+    public boolean isBuilt(int canvasId) {
+        if (built.contains(canvasId))
+            return true;
+        try {
+            if (Integer.parseInt(Files.readString(getMarkerPath(canvasId)).trim()) >= levels) {
+                built.add(canvasId);
+                return true;
+            }
+        } catch (NoSuchFileException | NumberFormatException e) {
+            return false;
+        } catch (IOException e) {
+            log.error("Can't read pyramid marker of canvas " + canvasId + " cause: " + e.getMessage());
+        }
+        return false;
+    }
+
+    public void markBuilt(int canvasId) throws IOException {
+        Path marker = getMarkerPath(canvasId);
+        Files.createDirectories(marker.getParent());
+        Files.writeString(marker, String.valueOf(levels));
+        built.add(canvasId);
+    }
+
+    /**
+     * Забыть о холсте после его удаления, тайлы удаляются вместе с тайлами холста
+     */
+    public void evict(int canvasId) {
+        built.remove(canvasId);
+        locks.remove(canvasId);
+    }
+
+    /**
+     * Наложить фрагмент на все уровни. Размеры фрагмента ограничиваются размерами изображения.
+     * Фрагменты, не пересекающиеся на холсте, можно накладывать одновременно: каждый меняет только свои пиксели
+     * уровней, а общие тайлы переписываются {@link TileStore} атомарно
+     *
+     * @param canvas   холст
+     * @param fragment положение и размеры фрагмента на холсте
+     * @param image    пиксели фрагмента
+     */
+    public void update(Canvas canvas, Fragment fragment, FragmentImage image) throws IOException {
+        int x = fragment.getX();
+        int y = fragment.getY();
+        int endX = Math.min(x + Math.min(fragment.getWidth(), image.getWidth()), canvas.getWidth());
+        int endY = Math.min(y + Math.min(fragment.getHeight(), image.getHeight()), canvas.getHeight());
+
+        for (int level = 1; level <= levels; level++) {
+            int scale = 1 << level;
+            // пиксели уровня, точки выборки которых попадают во фрагмент
+            int left = TileStore.getLevelSize(x, level);
+            int top = TileStore.getLevelSize(y, level);
+            int width = TileStore.getLevelSize(endX, level) - left;
+            int bottom = TileStore.getLevelSize(endY, level);
+            if (width <= 0 || top >= bottom)
+                continue;
+
+            BufferedImage row = new BufferedImage((width - 1) * scale + 1, 1, BufferedImage.TYPE_INT_RGB);
+            int[] rowPixels = ((DataBufferInt) row.getRaster().getDataBuffer()).getData();
+            BufferedImage strip = new BufferedImage(width, Math.min(TileStore.TILE_SIZE, bottom - top),
+                    BufferedImage.TYPE_INT_RGB);
+            int[] stripPixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+
+            // полосы выровнены по тайлам уровня, чтобы каждый тайл переписывался один раз
+            for (int stripTop = top, stripBottom; stripTop < bottom; stripTop = stripBottom) {
+                stripBottom = Math.min(bottom, (stripTop / TileStore.TILE_SIZE + 1) * TileStore.TILE_SIZE);
+                for (int i = stripTop; i < stripBottom; i++) {
+                    Arrays.fill(rowPixels, 0);
+                    image.copyTo(left * scale - x, i * scale - y, row, 0, 0, row.getWidth(), 1);
+                    int offset = (i - stripTop) * width;
+                    for (int j = 0; j < width; j++)
+                        stripPixels[offset + j] = rowPixels[j * scale];
+                }
+                tileStore.write(canvas, level, left, stripTop,
+                        strip.getSubimage(0, 0, width, stripBottom - stripTop));
+            }
+        }
+    }
+
+    private Path getMarkerPath(int canvasId) {
+        return tileStore.getCanvasPath(canvasId).resolve(MARKER);
+    }
+}
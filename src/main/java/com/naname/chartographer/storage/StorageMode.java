@@ -0,0 +1,20 @@
+package com.naname.chartographer.storage;
+
+/**
+ * Способ хранения пикселей холста
+ */
+public enum StorageMode {
+    /**
+     * Каждый фрагмент хранится отдельным файлом, запрашиваемая область собирается из фрагментов при чтении
+     */
+    FRAGMENTS,
+    /**
+     * Холст разбит на тайлы фиксированного размера, фрагмент накладывается на тайлы сразу при сохранении
+     */
+    TILES,
+    /**
+     * Холст хранится тайлами, как в TILES, но записанные тайлы сбрасываются на диск в фоне, а потерю
+     * несброшенных тайлов при падении покрывает журнал. Фрагменты хранятся еще и отдельными файлами
+     */
+    MATERIALIZED
+}
@@ -0,0 +1,164 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.util.FileUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Журнал режима {@link StorageMode#MATERIALIZED}: id холстов и фрагментов, наложенных на тайлы в памяти, но, возможно,
+ * еще не сброшенных на диск. Запись в журнал синхронно сбрасывается на диск до наложения фрагмента, так что после
+ * падения достаточно заново наложить фрагменты из журнала по порядку.
+ * <p>
+ * Сброс тайлов: {@link #checkpoint()} запоминает конец журнала, когда ни одно наложение не выполняется, затем
+ * тайлы сбрасываются на диск, и {@link #truncate} удаляет записи до запомненной позиции - их тайлы уже на диске.
+ * В остальных режимах журнал не ведется.
+ */
+@Component
+public class TileJournal {
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final boolean enabled;
+    private final Path file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // запись в файл журнала с fsync; не synchronized, чтобы ожидающие виртуальные потоки не занимали носители
+    private final Lock fileLock = new ReentrantLock();
+    private FileOutputStream out;
+
+    @Autowired
+    public TileJournal(@Value("${chartographer.storage.mode:fragments}") StorageMode mode) {
+        this(mode, FileUtil.getTilesAbsolutePath().toPath().resolve("materialized.journal"));
+    }
+
+    public TileJournal(StorageMode mode, Path file) {
+        this.enabled = mode == StorageMode.MATERIALIZED;
+        this.file = file;
+    }
+
+    public Path getPath() {
+        return file;
+    }
+
+    /**
+     * Записать в журнал фрагмент и наложить его. Пока наложение выполняется, {@link #checkpoint()} ждет
+     *
+     * @param write наложение фрагмента на тайлы и уровни пирамиды
+     */
+    public void append(int canvasId, int fragmentId, JournaledWrite write) throws IOException {
+        if (!enabled) {
+            write.run();
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            byte[] entry = ByteBuffer.allocate(ENTRY_SIZE).putInt(canvasId).putInt(fragmentId).array();
+            fileLock.lock();
+            try {
+                if (out == null) {
+                    Files.createDirectories(file.getParent());
+                    out = new FileOutputStream(file.toFile(), true);
+                }
+                out.write(entry);
+                out.getFD().sync();
+            } finally {
+                fileLock.unlock();
+            }
+            write.run();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Дождаться окончания начатых наложений и вернуть текущий конец журнала
+     */
+    public long checkpoint() throws IOException {
+        lock.writeLock().lock();
+        try {
+            return size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Удалить записи до позиции position, полученной от {@link #checkpoint()}
+     */
+    public void truncate(long position) throws IOException {
+        if (position == 0)
+            return;
+        lock.writeLock().lock();
+        try {
+            byte[] journal = readBytes();
+            byte[] tail = Arrays.copyOfRange(journal, (int) Math.min(position, journal.length), journal.length);
+            fileLock.lock();
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(tmp, tail);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Записи журнала по порядку. Недописанная при падении последняя запись пропускается
+     */
+    public List<Entry> read() throws IOException {
+        ByteBuffer journal = ByteBuffer.wrap(readBytes());
+        List<Entry> entries = new ArrayList<>(journal.remaining() / ENTRY_SIZE);
+        while (journal.remaining() >= ENTRY_SIZE)
+            entries.add(new Entry(journal.getInt(), journal.getInt()));
+        return entries;
+    }
+
+    private long size() throws IOException {
+        try {
+            return Files.size(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private byte[] readBytes() throws IOException {
+        try {
+            return Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return new byte[0];
+        }
+    }
+
+    public record Entry(int canvasId, int fragmentId) {
+    }
+
+    /**
+     * Наложение фрагмента, выполняемое под защитой журнала
+     */
+    @FunctionalInterface
+    public interface JournaledWrite {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,413 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.util.FileUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Тайловое хранилище холстов. Холст разбит на квадратные тайлы TILE_SIZE x TILE_SIZE, каждый тайл хранится
+ * отдельным файлом с пикселями в формате RGB (3 байта на пиксель, строки сверху вниз).
+ * Незаписанные тайлы на диске отсутствуют и считаются черными.
+ * Кроме самого холста (уровень 0) здесь же хранятся уменьшенные уровни {@link Pyramid}: уровень level
+ * в 2^level раз меньше холста по каждой стороне и лежит в подкаталоге L{level}.
+ * <p>
+ * В режиме {@link StorageMode#MATERIALIZED} записанные тайлы сначала остаются в памяти (грязные тайлы) и читаются
+ * оттуда, а на диск сбрасываются {@link #flush()} в фоне или при превышении chartographer.materialized.max-dirty-tiles.
+ * Потерю несброшенных тайлов при падении покрывает {@link TileJournal}.
+ */
+@Component
+@Slf4j
+public class TileStore {
+
+    public static final int TILE_SIZE = 256;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 3;
+    private static final int LOCK_STRIPES = 64;
+    private static final Pattern TILE_NAME = Pattern.compile("(\\d+)_(\\d+)\\.tile");
+    // отметка в снимке для тайла, которого не было на момент снимка
+    private static final byte[] ABSENT = new byte[0];
+
+    private final boolean enabled;
+    private final boolean materialized;
+    private final int maxDirtyTiles;
+    // ReentrantLock, а не synchronized: под блокировкой идет файловый ввод-вывод, а виртуальный поток,
+    // заблокированный внутри synchronized, занимает поток-носитель
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+    private final Map<Path, byte[]> dirty = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Snapshot>> snapshots = new ConcurrentHashMap<>();
+
+    public TileStore(StorageMode mode) {
+        this(mode, 512);
+    }
+
+    @Autowired
+    public TileStore(@Value("${chartographer.storage.mode:fragments}") StorageMode mode,
+                     @Value("${chartographer.materialized.max-dirty-tiles:512}") int maxDirtyTiles) {
+        this.enabled = mode == StorageMode.TILES || mode == StorageMode.MATERIALIZED;
+        this.materialized = mode == StorageMode.MATERIALIZED;
+        this.maxDirtyTiles = maxDirtyTiles;
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Читается ли холст из тайлов (chartographer.storage.mode=tiles или materialized)
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Сбрасываются ли тайлы на диск отложенно, а фрагменты хранятся еще и отдельными файлами
+     * (chartographer.storage.mode=materialized)
+     */
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    /**
+     * Наложить изображение на тайлы холста. Часть изображения вне холста игнорируется.
+     *
+     * @param canvas холст
+     * @param x      координата левого верхнего угла изображения на холсте
+     * @param y      координата левого верхнего угла изображения на холсте
+     * @param image  накладываемое изображение
+     */
+    public void write(Canvas canvas, int x, int y, BufferedImage image) throws IOException {
+        write(canvas, 0, x, y, image);
+    }
+
+    /**
+     * Наложить изображение на тайлы уровня level, координаты и размеры - в пикселях уровня
+     */
+    public void write(Canvas canvas, int level, int x, int y, BufferedImage image) throws IOException {
+        int endX = Math.min(x + image.getWidth(), getLevelSize(canvas.getWidth(), level));
+        int endY = Math.min(y + image.getHeight(), getLevelSize(canvas.getHeight(), level));
+        int[] row = new int[TILE_SIZE];
+
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < endY; ty++) {
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < endX; tx++) {
+                int left = Math.max(x, tx * TILE_SIZE);
+                int top = Math.max(y, ty * TILE_SIZE);
+                int right = Math.min(endX, (tx + 1) * TILE_SIZE);
+                int bottom = Math.min(endY, (ty + 1) * TILE_SIZE);
+
+                Lock lock = getLock(canvas.getId(), level, tx, ty);
+                lock.lock();
+                try {
+                    Path tile = getTilePath(canvas.getId(), level, tx, ty);
+                    // грязный тайл копируется, чтобы читатели видели его целиком до или после записи
+                    byte[] pixels = dirty.get(tile);
+                    boolean shared = pixels != null;
+                    if (pixels == null)
+                        pixels = readTile(tile);
+                    shared |= capture(canvas.getId(), level, tx, ty, tile, pixels);
+                    if (pixels == null)
+                        pixels = new byte[TILE_BYTES];
+                    else if (shared)
+                        pixels = pixels.clone();
+
+                    for (int i = top; i < bottom; i++) {
+                        image.getRGB(left - x, i - y, right - left, 1, row, 0, TILE_SIZE);
+                        int offset = ((i - ty * TILE_SIZE) * TILE_SIZE + left - tx * TILE_SIZE) * 3;
+                        for (int j = 0; j < right - left; j++) {
+                            pixels[offset++] = (byte) (row[j] >> 16);
+                            pixels[offset++] = (byte) (row[j] >> 8);
+                            pixels[offset++] = (byte) row[j];
+                        }
+                    }
+                    if (materialized)
+                        dirty.put(tile, pixels);
+                    else
+                        writeTile(tile, pixels);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (dirty.size() > maxDirtyTiles)
+            flush();
+    }
+
+    /**
+     * Сбросить на диск грязные тайлы, записанные до начала вызова
+     *
+     * @return число сброшенных тайлов
+     */
+    public int flush() throws IOException {
+        int flushed = 0;
+        for (Path tile : new ArrayList<>(dirty.keySet())) {
+            Lock lock = getLock(tile);
+            lock.lock();
+            try {
+                byte[] pixels = dirty.get(tile);
+                if (pixels == null)
+                    continue;
+                writeTile(tile, pixels);
+                dirty.remove(tile);
+                flushed++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * Число тайлов, записанных в память и еще не сброшенных на диск
+     */
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Прочитать область холста из тайлов. Левый верхний угол области - (x;y), размеры совпадают с размерами res.
+     * Пиксели вне холста и незаписанных тайлов не изменяются.
+     *
+     * @param canvas холст
+     * @param x      координата левого верхнего угла области
+     * @param y      координата левого верхнего угла области
+     * @param res    изображение, в которое запишется область
+     */
+    public void read(Canvas canvas, int x, int y, BufferedImage res) throws IOException {
+        read(canvas, 0, x, y, res);
+    }
+
+    /**
+     * Прочитать область уровня level, координаты и размеры - в пикселях уровня
+     */
+    public void read(Canvas canvas, int level, int x, int y, BufferedImage res) throws IOException {
+        read(canvas, level, x, y, res, null);
+    }
+
+    /**
+     * Снять снимок областей уровня level: пока снимок открыт, {@link Snapshot#read} возвращает тайлы
+     * в том виде, в каком они были при его открытии. Писатель перед заменой тайла, пересекающегося с областями
+     * снимка, оставляет в снимке его прежнее содержимое, так что читатель снимка не держит блокировок.
+     * Открывать снимок нужно, пока записи в области не идут (под блокировкой чтения областей)
+     *
+     * @param areas области в пикселях уровня
+     */
+    public Snapshot openSnapshot(Canvas canvas, int level, List<Rectangle> areas) {
+        Snapshot snapshot = new Snapshot(canvas, level, areas);
+        snapshots.compute(canvas.getId(), (id, open) -> {
+            if (open == null)
+                open = ConcurrentHashMap.newKeySet();
+            open.add(snapshot);
+            return open;
+        });
+        return snapshot;
+    }
+
+    /**
+     * Сохранить прежнее содержимое тайла во всех открытых снимках, которые его покрывают
+     *
+     * @return попал ли тайл хотя бы в один снимок (тогда pixels больше нельзя менять)
+     */
+    private boolean capture(int canvasId, int level, int tx, int ty, Path tile, byte[] pixels) {
+        Set<Snapshot> open = snapshots.get(canvasId);
+        if (open == null)
+            return false;
+        boolean captured = false;
+        for (Snapshot snapshot : open)
+            if (snapshot.covers(level, tx, ty)) {
+                snapshot.captured.putIfAbsent(tile, pixels != null ? pixels : ABSENT);
+                captured = true;
+            }
+        return captured;
+    }
+
+    private void read(Canvas canvas, int level, int x, int y, BufferedImage res, Snapshot snapshot)
+            throws IOException {
+        int endX = Math.min(x + res.getWidth(), getLevelSize(canvas.getWidth(), level));
+        int endY = Math.min(y + res.getHeight(), getLevelSize(canvas.getHeight(), level));
+        int[] row = new int[TILE_SIZE];
+
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < endY; ty++) {
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < endX; tx++) {
+                Path tile = getTilePath(canvas.getId(), level, tx, ty);
+                byte[] pixels = dirty.get(tile);
+                if (pixels == null)
+                    pixels = readTile(tile);
+                // снимок проверяется после чтения: если тайл заменили между ними, прежний уже лежит в снимке
+                if (snapshot != null && snapshot.captured.containsKey(tile))
+                    pixels = snapshot.captured.get(tile);
+                if (pixels == null || pixels == ABSENT)
+                    continue;
+
+                int left = Math.max(x, tx * TILE_SIZE);
+                int top = Math.max(y, ty * TILE_SIZE);
+                int right = Math.min(endX, (tx + 1) * TILE_SIZE);
+                int bottom = Math.min(endY, (ty + 1) * TILE_SIZE);
+
+                for (int i = top; i < bottom; i++) {
+                    int offset = ((i - ty * TILE_SIZE) * TILE_SIZE + left - tx * TILE_SIZE) * 3;
+                    for (int j = 0; j < right - left; j++, offset += 3)
+                        row[j] = (pixels[offset] & 0xFF) << 16 | (pixels[offset + 1] & 0xFF) << 8 | pixels[offset + 2] & 0xFF;
+                    res.setRGB(left - x, i - y, right - left, 1, row, 0, TILE_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Удалить все тайлы холста
+     *
+     * @param canvasId id холста
+     */
+    public void delete(int canvasId) {
+        Path canvasPath = getCanvasPath(canvasId);
+        for (Path tile : new ArrayList<>(dirty.keySet()))
+            if (tile.startsWith(canvasPath)) {
+                Lock lock = getLock(tile);
+                lock.lock();
+                try {
+                    dirty.remove(tile);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        try {
+            FileUtils.deleteDirectory(getCanvasPath(canvasId).toFile());
+        } catch (IOException e) {
+            log.error("Can't delete tiles of canvas " + canvasId + " cause: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Записанные тайлы холста (уровня 0), на диске или в памяти, в виде координат левых верхних углов
+     *
+     * @param canvasId id холста
+     */
+    public List<Point> getTiles(int canvasId) throws IOException {
+        Set<Path> files = new LinkedHashSet<>();
+        Path dir = getCanvasPath(canvasId);
+        if (Files.isDirectory(dir))
+            try (Stream<Path> list = Files.list(dir)) {
+                list.forEach(files::add);
+            }
+        for (Path tile : dirty.keySet())
+            if (dir.equals(tile.getParent()))
+                files.add(tile);
+
+        List<Point> tiles = new ArrayList<>();
+        for (Path file : files) {
+            Matcher matcher = TILE_NAME.matcher(file.getFileName().toString());
+            if (matcher.matches())
+                tiles.add(new Point(Integer.parseInt(matcher.group(1)) * TILE_SIZE,
+                        Integer.parseInt(matcher.group(2)) * TILE_SIZE));
+        }
+        return tiles;
+    }
+
+    /**
+     * Размер стороны уровня level для стороны холста size
+     */
+    public static int getLevelSize(int size, int level) {
+        return (int) (((long) size + (1L << level) - 1) >> level);
+    }
+
+    /**
+     * Каталог тайлов холста, в нем же лежат подкаталоги уменьшенных уровней
+     */
+    public Path getCanvasPath(int canvasId) {
+        return FileUtil.getTilesAbsolutePath().toPath().resolve(String.valueOf(canvasId));
+    }
+
+    private Path getTilePath(int canvasId, int level, int tx, int ty) {
+        Path dir = level == 0 ? getCanvasPath(canvasId) : getCanvasPath(canvasId).resolve("L" + level);
+        return dir.resolve(tx + "_" + ty + ".tile");
+    }
+
+    private Lock getLock(int canvasId, int level, int tx, int ty) {
+        return getLock(getTilePath(canvasId, level, tx, ty));
+    }
+
+    private Lock getLock(Path tile) {
+        return locks[Math.floorMod(tile.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Снимок областей одного уровня холста, см. {@link #openSnapshot}. Нужно закрыть после чтения
+     */
+    public class Snapshot implements AutoCloseable {
+
+        private final Canvas canvas;
+        private final int level;
+        private final List<Rectangle> areas;
+        private final Map<Path, byte[]> captured = new ConcurrentHashMap<>();
+
+        private Snapshot(Canvas canvas, int level, List<Rectangle> areas) {
+            this.canvas = canvas;
+            this.level = level;
+            this.areas = areas;
+        }
+
+        /**
+         * Прочитать область уровня снимка в том виде, в каком она была при открытии снимка,
+         * см. {@link TileStore#read(Canvas, int, int, int, BufferedImage)}
+         */
+        public void read(int x, int y, BufferedImage res) throws IOException {
+            TileStore.this.read(canvas, level, x, y, res, this);
+        }
+
+        private boolean covers(int level, int tx, int ty) {
+            if (level != this.level)
+                return false;
+            Rectangle tile = new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            for (Rectangle area : areas)
+                if (area.intersects(tile))
+                    return true;
+            return false;
+        }
+
+        @Override
+        public void close() {
+            snapshots.computeIfPresent(canvas.getId(), (id, open) -> {
+                open.remove(this);
+                return open.isEmpty() ? null : open;
+            });
+        }
+    }
+
+    private byte[] readTile(Path tile) throws IOException {
+        try {
+            return Files.readAllBytes(tile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Записать тайл через временный файл, чтобы читатели никогда не видели частично записанный тайл
+     */
+    private void writeTile(Path tile, byte[] pixels) throws IOException {
+        Files.createDirectories(tile.getParent());
+        Path tmp = tile.resolveSibling(tile.getFileName() + ".tmp");
+        Files.write(tmp, pixels);
+        Files.move(tmp, tile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
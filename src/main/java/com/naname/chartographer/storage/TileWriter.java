@@ -0,0 +1,82 @@
+package com.naname.chartographer.storage;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.image.RasterWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+
+/**
+ * Построчное наложение изображения на тайлы холста и уровни пирамиды, строки передаются снизу вверх.
+ * Строки копятся в полосе до верхней границы ряда тайлов, затем полоса накладывается целиком, так что каждый
+ * тайл переписывается один раз, а в памяти держится не больше {@link TileStore#TILE_SIZE} строк
+ */
+public class TileWriter implements RasterWriter {
+
+    private final TileStore tileStore;
+    private final Pyramid pyramid;
+    private final Canvas canvas;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final BufferedImage band;
+    private final int[] pixels;
+    private int next;
+    private int bandBottom;
+
+    /**
+     * @param x      координата левого верхнего угла изображения на холсте
+     * @param y      координата левого верхнего угла изображения на холсте
+     * @param width  ширина изображения
+     * @param height высота изображения
+     */
+    public TileWriter(TileStore tileStore, Pyramid pyramid, Canvas canvas, int x, int y, int width, int height) {
+        this.tileStore = tileStore;
+        this.pyramid = pyramid;
+        this.canvas = canvas;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.band = new BufferedImage(width, Math.min(TileStore.TILE_SIZE, height), BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        this.next = height - 1;
+        this.bandBottom = height;
+    }
+
+    @Override
+    public void writeHeader() {
+    }
+
+    @Override
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        int row = next--;
+        // верхняя строка полосы - первая строка ряда тайлов холста или самого изображения
+        int bandTop = Math.max(0, Math.floorDiv(y + row, TileStore.TILE_SIZE) * TileStore.TILE_SIZE - y);
+        System.arraycopy(rgb, offset, pixels, (row - bandTop) * width, width);
+        if (row == bandTop) {
+            BufferedImage rows = band.getSubimage(0, 0, width, bandBottom - bandTop);
+            tileStore.write(canvas, x, y + bandTop, rows);
+            pyramid.update(canvas, new Fragment(x, y + bandTop, width, bandBottom - bandTop),
+                    new DecodedFragmentImage(rows));
+            bandBottom = bandTop;
+        }
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return true;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public long getSize() {
+        return 3L * width * height;
+    }
+}
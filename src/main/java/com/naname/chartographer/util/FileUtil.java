@@ -13,17 +13,25 @@ import java.nio.file.Path;
 public class FileUtil {
     private static File databaseAbsolutePath;
     private static File fragmentsAbsolutePath;
+    private static File tilesAbsolutePath;
+    private static File stagingAbsolutePath;
 
     public static void createDirectoriesToSaveData(String path) {
         Path dir = Path.of(path).normalize();
         databaseAbsolutePath = Path.of(dir + File.separator + "database").toFile().getAbsoluteFile();
         fragmentsAbsolutePath = Path.of(dir + File.separator + "fragments").toFile().getAbsoluteFile();
+        tilesAbsolutePath = Path.of(dir + File.separator + "tiles").toFile().getAbsoluteFile();
+        stagingAbsolutePath = Path.of(dir + File.separator + "staging").toFile().getAbsoluteFile();
 
         try {
             Files.createDirectories(databaseAbsolutePath.toPath());
             log.info("Database location: " + databaseAbsolutePath);
             Files.createDirectories(fragmentsAbsolutePath.toPath());
             log.info("Fragments location: " + fragmentsAbsolutePath);
+            Files.createDirectories(tilesAbsolutePath.toPath());
+            log.info("Tiles location: " + tilesAbsolutePath);
+            Files.createDirectories(stagingAbsolutePath.toPath());
+            log.info("Staging location: " + stagingAbsolutePath);
         } catch (IOException e) {
             log.error("Can't create directory cause: " + e.getMessage());
         }
@@ -36,10 +44,33 @@ public class FileUtil {
         return databaseAbsolutePath != null ? databaseAbsolutePath : Path.of("database").toFile().getAbsoluteFile();
     }
 
+    /**
+     * Задан ли каталог данных. Если нет, фрагменты лежат прямо в директории, из которой приложение запущено,
+     * вперемешку с чужими файлами
+     */
+    public static boolean isDataDirectorySet() {
+        return fragmentsAbsolutePath != null;
+    }
+
     /**
      * Получить путь к сохраненным фрагментам, если он null, то вернется директория, из которой приложение запущено
      */
     public static File getFragmentsAbsolutePath() {
         return fragmentsAbsolutePath != null ? fragmentsAbsolutePath : Path.of("").toFile().getAbsoluteFile();
     }
+
+    /**
+     * Получить путь к тайлам холстов, если он null, то вернется директория, из которой приложение запущено + '/tiles'
+     */
+    public static File getTilesAbsolutePath() {
+        return tilesAbsolutePath != null ? tilesAbsolutePath : Path.of("tiles").toFile().getAbsoluteFile();
+    }
+
+    /**
+     * Получить путь к принятым, но еще не обработанным загрузкам, если он null, то вернется директория,
+     * из которой приложение запущено + '/staging'
+     */
+    public static File getStagingAbsolutePath() {
+        return stagingAbsolutePath != null ? stagingAbsolutePath : Path.of("staging").toFile().getAbsoluteFile();
+    }
 }
@@ -0,0 +1,78 @@
+package com.naname.chartographer.util;
+
+import java.awt.image.*;
+
+/**
+ * Быстрое копирование прямоугольных областей между изображениями.
+ * Для типичных форматов (TYPE_INT_RGB и TYPE_3BYTE_BGR, в котором ImageIO декодирует 24-битные BMP) строки копируются
+ * напрямую между массивами пикселей без ColorModel и без выделения памяти.
+ */
+public class RasterUtil {
+
+    private RasterUtil() {
+    }
+
+    /**
+     * Скопировать область width x height из src в dst. Область должна целиком лежать внутри обоих изображений.
+     *
+     * @param src  исходное изображение
+     * @param srcX координата левого верхнего угла области в src
+     * @param srcY координата левого верхнего угла области в src
+     * @param dst  изображение, в которое копируется область
+     * @param dstX координата левого верхнего угла области в dst
+     * @param dstY координата левого верхнего угла области в dst
+     */
+    public static void copy(BufferedImage src, int srcX, int srcY,
+                            BufferedImage dst, int dstX, int dstY, int width, int height) {
+        if (width <= 0 || height <= 0)
+            return;
+        if (dst.getType() == BufferedImage.TYPE_INT_RGB && src.getType() == BufferedImage.TYPE_INT_RGB)
+            copyIntToInt(src.getRaster(), srcX, srcY, dst.getRaster(), dstX, dstY, width, height);
+        else if (dst.getType() == BufferedImage.TYPE_INT_RGB && src.getType() == BufferedImage.TYPE_3BYTE_BGR)
+            copyBgrToInt(src.getRaster(), srcX, srcY, dst.getRaster(), dstX, dstY, width, height);
+        else {
+            int[] row = new int[width];
+            for (int i = 0; i < height; i++) {
+                src.getRGB(srcX, srcY + i, width, 1, row, 0, width);
+                dst.setRGB(dstX, dstY + i, width, 1, row, 0, width);
+            }
+        }
+    }
+
+    private static void copyIntToInt(WritableRaster src, int srcX, int srcY,
+                                     WritableRaster dst, int dstX, int dstY, int width, int height) {
+        int[] srcData = ((DataBufferInt) src.getDataBuffer()).getData();
+        int[] dstData = ((DataBufferInt) dst.getDataBuffer()).getData();
+        int srcStride = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        int dstStride = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        int srcOffset = offset(src, srcX, srcY, srcStride, 1);
+        int dstOffset = offset(dst, dstX, dstY, dstStride, 1);
+
+        for (int i = 0; i < height; i++, srcOffset += srcStride, dstOffset += dstStride)
+            System.arraycopy(srcData, srcOffset, dstData, dstOffset, width);
+    }
+
+    private static void copyBgrToInt(WritableRaster src, int srcX, int srcY,
+                                     WritableRaster dst, int dstX, int dstY, int width, int height) {
+        byte[] srcData = ((DataBufferByte) src.getDataBuffer()).getData();
+        int[] dstData = ((DataBufferInt) dst.getDataBuffer()).getData();
+        int srcStride = ((ComponentSampleModel) src.getSampleModel()).getScanlineStride();
+        int dstStride = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        int srcOffset = offset(src, srcX, srcY, srcStride, 3);
+        int dstOffset = offset(dst, dstX, dstY, dstStride, 1);
+
+        for (int i = 0; i < height; i++, srcOffset += srcStride, dstOffset += dstStride) {
+            for (int j = 0, s = srcOffset; j < width; j++, s += 3)
+                dstData[dstOffset + j] = (srcData[s + 2] & 0xFF) << 16 | (srcData[s + 1] & 0xFF) << 8 | srcData[s] & 0xFF;
+        }
+    }
+
+    /**
+     * Индекс первого элемента пикселя (x;y) в массиве данных растра с учетом смещения подызображений
+     */
+    private static int offset(Raster raster, int x, int y, int stride, int pixelStride) {
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY()) * stride
+                + (x - raster.getSampleModelTranslateX()) * pixelStride;
+    }
+}
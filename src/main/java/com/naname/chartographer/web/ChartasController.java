@@ -4,19 +4,35 @@ import com.naname.chartographer.data.Canvas;
 import com.naname.chartographer.data.CanvasService;
 import com.naname.chartographer.data.Fragment;
 import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.image.BmpWriter;
+import com.naname.chartographer.image.ImageFormat;
+import com.naname.chartographer.image.ImageSizeException;
+import com.naname.chartographer.image.RasterWriter;
+import com.naname.chartographer.image.RawWriter;
+import com.naname.chartographer.storage.TileStore;
+import jakarta.persistence.EntityNotFoundException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import javax.imageio.ImageIO;
-import javax.persistence.EntityNotFoundException;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * Основной контроллер приложения
@@ -26,13 +42,27 @@ import java.io.IOException;
 @RequestMapping("/chartas")
 public class ChartasController {
 
+    /**
+     * Наибольшее число областей в одном запросе GET /chartas/{id}/regions
+     */
+    static final int MAX_REGIONS = 64;
+
+    /**
+     * Наибольшее число фрагментов в одной пачке POST /chartas/{id}/batch. Общий размер пачки ограничен
+     * spring.servlet.multipart.max-request-size (см. {@link UploadSizeFilter})
+     */
+    static final int MAX_BATCH_FRAGMENTS = 64;
+
     private final CanvasService canvasService;
     private final FragmentService fragmentService;
+    private final int compressionLevel;
 
     @Autowired
-    public ChartasController(CanvasService canvasService, FragmentService fragmentService) {
+    public ChartasController(CanvasService canvasService, FragmentService fragmentService,
+                             @Value("${chartographer.response.compression-level:1}") int compressionLevel) {
         this.canvasService = canvasService;
         this.fragmentService = fragmentService;
+        this.compressionLevel = compressionLevel;
     }
 
     /**
@@ -51,7 +81,8 @@ public class ChartasController {
     }
 
     /**
-     * Сохранить в базу и на диск фрагмент, связанный с холстом {id}
+     * Сохранить в базу и на диск фрагмент, связанный с холстом {id}.
+     * Если размеры изображения не совпадают с width и height, возвращается 400
      *
      * @param id       id холста
      * @param fragment объект с размерами и координатами из запроса
@@ -63,10 +94,7 @@ public class ChartasController {
                                                    @RequestBody MultipartFile image) {
         try {
             Canvas canvas = canvasService.getCanvasById(id);
-            if (fragment.getX() >= canvas.getWidth() || fragment.getY() >= canvas.getHeight()
-                    || fragment.getX() < 0 || fragment.getY() < 0
-                    || fragment.getWidth() > 20000 || fragment.getWidth() <= 0
-                    || fragment.getHeight() > 50000 || fragment.getHeight() <= 0)
+            if (!isValidFragment(canvas, fragment))
                 return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
             fragment.setCanvas(canvas);
             fragment.setId(0);
@@ -77,50 +105,351 @@ public class ChartasController {
         } catch (EntityNotFoundException e) {
             log.info("Canvas with id " + id + " not found.");
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (ImageSizeException e) {
+            log.info(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Сохранить пачку фрагментов холста {id} одним запросом multipart/form-data. Координаты и размеры i-го
+     * фрагмента - i-е значения полей x, y, width и height, изображение - i-я часть image.
+     * Фрагменты накладываются в порядке следования, перекрытые ими фрагменты удаляются один раз для всей пачки.
+     * Если некорректен хотя бы один фрагмент, размеры его изображения не совпадают с width и height
+     * или фрагментов больше MAX_BATCH_FRAGMENTS, не сохраняется ни один
+     *
+     * @param id     id холста
+     * @param images изображения фрагментов
+     * @return - статус
+     */
+    @PostMapping("/{id}/batch")
+    public ResponseEntity<HttpStatus> restoreImages(@PathVariable(name = "id") int id,
+                                                    @RequestParam(name = "x") int[] x,
+                                                    @RequestParam(name = "y") int[] y,
+                                                    @RequestParam(name = "width") int[] width,
+                                                    @RequestParam(name = "height") int[] height,
+                                                    @RequestParam(name = "image") MultipartFile[] images) {
+        try {
+            Canvas canvas = canvasService.getCanvasById(id);
+            List<Fragment> fragments = toFragments(canvas, x, y, width, height, images.length);
+            if (fragments == null)
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+            List<Fragment> createdFragments = fragmentService.saveFragments(canvas, fragments, Arrays.asList(images));
+            fragmentService.removeInnerFragments(canvas, createdFragments);
+            return new ResponseEntity<>(HttpStatus.OK);
+        } catch (EntityNotFoundException e) {
+            log.info("Canvas with id " + id + " not found.");
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (ImageSizeException e) {
+            log.info(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (IOException e) {
             log.error(e.getMessage());
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    /**
+     * Собрать фрагменты пачки из полей запроса, null если число значений полей не совпадает с числом
+     * изображений, фрагментов больше MAX_BATCH_FRAGMENTS или хотя бы один фрагмент некорректен
+     */
+    static List<Fragment> toFragments(Canvas canvas, int[] x, int[] y, int[] width, int[] height, int count) {
+        if (count == 0 || count > MAX_BATCH_FRAGMENTS || x.length != count || y.length != count || width.length != count || height.length != count)
+            return null;
+
+        List<Fragment> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Fragment fragment = new Fragment(x[i], y[i], width[i], height[i]);
+            if (!isValidFragment(canvas, fragment))
+                return null;
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Собрать области пакетного чтения из полей запроса, null если число значений полей различается,
+     * областей больше MAX_REGIONS или хотя бы одна область некорректна
+     */
+    static List<Fragment> toRegions(Canvas canvas, int level, int[] x, int[] y, int[] width, int[] height) {
+        int count = x.length;
+        if (count == 0 || count > MAX_REGIONS || y.length != count || width.length != count || height.length != count)
+            return null;
+
+        List<Fragment> regions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Fragment region = new Fragment(x[i], y[i], width[i], height[i]);
+            if (!isValidRegion(canvas, region, level))
+                return null;
+            regions.add(region);
+        }
+        return regions;
+    }
+
+    /**
+     * Лежит ли левый верхний угол области на уровне level холста, и не превышают ли размеры 5000 x 5000
+     */
+    static boolean isValidRegion(Canvas canvas, Fragment region, int level) {
+        return region.getWidth() > 0 && region.getWidth() <= 5000
+                && region.getHeight() > 0 && region.getHeight() <= 5000
+                && region.getX() >= 0 && region.getX() < TileStore.getLevelSize(canvas.getWidth(), level)
+                && region.getY() >= 0 && region.getY() < TileStore.getLevelSize(canvas.getHeight(), level);
+    }
+
+    /**
+     * Лежит ли левый верхний угол фрагмента на холсте, и не превышают ли размеры 20000 x 50000
+     */
+    static boolean isValidFragment(Canvas canvas, Fragment fragment) {
+        return fragment.getX() < canvas.getWidth() && fragment.getY() < canvas.getHeight()
+                && fragment.getX() >= 0 && fragment.getY() >= 0
+                && fragment.getWidth() <= 20000 && fragment.getWidth() > 0
+                && fragment.getHeight() <= 50000 && fragment.getHeight() > 0;
+    }
+
+    /**
+     * Получить часть холста в полном разрешении
+     */
+    public ResponseEntity<StreamingResponseBody> getFragment(int id, Fragment fragment) {
+        return getFragment(id, fragment, 0, new HttpHeaders());
+    }
+
     /**
      * Получить часть холста с координатами с заданными координатами и размерами.
      * Если запрашиваемая область выходит за границы холста, то лишняя часть закрашивается черным.
-     * Максимальная ширина и высота = 5000
+     * Максимальная ширина и высота = 5000.
+     * Изображение не собирается в памяти целиком, а пишется в ответ полосами по мере отрисовки.
+     * С параметром level отдается уменьшенная в 2^level раз копия холста, координаты и размеры
+     * тогда задаются в ее пикселях.
+     * ETag ответа строится из ревизии холста: если клиент прислал его в If-None-Match и холст с тех пор
+     * не менялся, возвращается 304 без отрисовки. Небольшие области отдаются из кэша готовых ответов
+     * {@link com.naname.chartographer.data.RegionCache} без отрисовки и кодирования.
+     * Формат ответа выбирается по Accept (см. {@link ImageFormat}): BMP по умолчанию, PNG или raw, который
+     * сжимается deflate, если клиент указал его в Accept-Encoding.
      *
-     * @param id       холста
-     * @param fragment объект с координатами и размерами
+     * @param id             холста
+     * @param fragment       объект с координатами и размерами
+     * @param level          уровень уменьшения, 0 - полное разрешение
+     * @param requestHeaders заголовки запроса: Accept, Accept-Encoding и If-None-Match
      * @return - изображение и статус
      */
-    @GetMapping(value = "/{id}", produces = "image/bmp")
-    public ResponseEntity<byte[]> getFragment(@PathVariable(name = "id") int id, Fragment fragment) {
+    @GetMapping(value = "/{id}", produces = {"image/bmp", "image/png", "application/vnd.chartographer.raw"})
+    public ResponseEntity<StreamingResponseBody> getFragment(@PathVariable(name = "id") int id, Fragment fragment,
+                                                             @RequestParam(name = "level", defaultValue = "0")
+                                                                     int level,
+                                                             @RequestHeader HttpHeaders requestHeaders) {
         try {
             Canvas canvas = canvasService.getCanvasById(id);
-            if (fragment.getWidth() <= 0 || fragment.getWidth() > 5000
-                    || fragment.getHeight() <= 0 || fragment.getHeight() > 5000
-                    || fragment.getX() < 0 || fragment.getX() >= canvas.getWidth()
-                    || fragment.getY() < 0 || fragment.getY() >= canvas.getHeight())
+            if (level < 0 || level > fragmentService.getLevels() || !isValidRegion(canvas, fragment, level))
                 return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-            BufferedImage res = new BufferedImage(fragment.getWidth(), fragment.getHeight(), BufferedImage.TYPE_INT_RGB);
 
-            Graphics2D g2d = res.createGraphics();
-            g2d.setPaint(Color.BLACK);
-            g2d.fillRect(0, 0, fragment.getWidth(), fragment.getHeight());
+            ImageFormat format = ImageFormat.negotiate(requestHeaders.getAccept());
+            if (format == null)
+                return new ResponseEntity<>(HttpStatus.NOT_ACCEPTABLE);
+            boolean deflate = format == ImageFormat.RAW
+                    && acceptsDeflate(requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING));
 
-            fragmentService.paintFragments(canvas, fragment, res);
+            HttpHeaders headers = new HttpHeaders();
+            headers.setETag(getETag(canvas, format, deflate));
+            headers.setCacheControl(CacheControl.noCache());
+            headers.setVary(List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING));
+            if (isNotModified(requestHeaders.getFirst(HttpHeaders.IF_NONE_MATCH), headers.getETag()))
+                return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+            headers.setContentType(format.getMediaType());
+            if (format == ImageFormat.BMP)
+                headers.setContentLength(BmpWriter.getFileSize(fragment.getWidth(), fragment.getHeight()));
+            else if (format == ImageFormat.RAW && !deflate)
+                headers.setContentLength(RawWriter.getFileSize(fragment.getWidth(), fragment.getHeight()));
+            if (deflate)
+                headers.set(HttpHeaders.CONTENT_ENCODING, "deflate");
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(res, "bmp", baos);
-            return new ResponseEntity<>(baos.toByteArray(), HttpStatus.OK);
+            if (format == ImageFormat.BMP) {
+                byte[] cached = fragmentService.getCachedRegion(canvas, level, fragment);
+                if (cached != null)
+                    return new ResponseEntity<>(out -> out.write(cached), headers, HttpStatus.OK);
+            }
+            StreamingResponseBody body = out -> {
+                try {
+                    if (format == ImageFormat.BMP)
+                        fragmentService.writeFragments(canvas, level, fragment, out);
+                    else
+                        writeCompressed(canvas, level, fragment, format, deflate, out);
+                } catch (IOException e) {
+                    log.error(e.getMessage());
+                    throw e;
+                }
+            };
+            return new ResponseEntity<>(body, headers, HttpStatus.OK);
         } catch (EntityNotFoundException e) {
             log.info("Canvas with id " + id + " not found.");
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
-        } catch (IOException e) {
-            log.error(e.getMessage());
-            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    /**
+     * Получить несколько частей холста одним запросом. Координаты и размеры i-й области - i-е значения
+     * полей x, y, width и height, как в {@link #restoreImages}, но не больше MAX_REGIONS областей.
+     * Ответ - multipart/mixed, i-я часть - изображение i-й области в формате format (bmp, png или raw)
+     * с заголовками Content-Type и Content-Location, адресом той же области в GET /chartas/{id}.
+     * Все области рисуются под одной блокировкой чтения, а фрагменты, попавшие в несколько областей,
+     * читаются с диска один раз на запрос. ETag и 304 - как у {@link #getFragment}
+     *
+     * @param id     id холста
+     * @param level  уровень уменьшения, общий для всех областей
+     * @param format формат изображений частей
+     * @return - части холста и статус
+     */
+    @GetMapping(value = "/{id}/regions", produces = "multipart/mixed")
+    public ResponseEntity<StreamingResponseBody> getRegions(@PathVariable(name = "id") int id,
+                                                            @RequestParam(name = "x") int[] x,
+                                                            @RequestParam(name = "y") int[] y,
+                                                            @RequestParam(name = "width") int[] width,
+                                                            @RequestParam(name = "height") int[] height,
+                                                            @RequestParam(name = "level", defaultValue = "0")
+                                                                    int level,
+                                                            @RequestParam(name = "format", defaultValue = "bmp")
+                                                                    String format,
+                                                            @RequestHeader HttpHeaders requestHeaders) {
+        try {
+            Canvas canvas = canvasService.getCanvasById(id);
+            ImageFormat imageFormat = toImageFormat(format);
+            if (imageFormat == null || level < 0 || level > fragmentService.getLevels())
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            List<Fragment> regions = toRegions(canvas, level, x, y, width, height);
+            if (regions == null)
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setETag("\"" + canvas.getId() + "-" + canvas.getRevision() + "-regions-"
+                    + imageFormat.name().toLowerCase() + "\"");
+            headers.setCacheControl(CacheControl.noCache());
+            if (isNotModified(requestHeaders.getFirst(HttpHeaders.IF_NONE_MATCH), headers.getETag()))
+                return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            headers.setContentType(new MediaType("multipart", "mixed", Map.of("boundary", boundary)));
+
+            StreamingResponseBody body = out -> {
+                try {
+                    fragmentService.writeRegions(canvas, level, regions, index -> {
+                        Fragment region = regions.get(index);
+                        writePartHeaders(out, boundary, id, level, region, imageFormat, index > 0);
+                        return imageFormat.createWriter(out, region.getWidth(), region.getHeight(),
+                                compressionLevel);
+                    });
+                    out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    log.error(e.getMessage());
+                    throw e;
+                }
+            };
+            return new ResponseEntity<>(body, headers, HttpStatus.OK);
+        } catch (EntityNotFoundException e) {
+            log.info("Canvas with id " + id + " not found.");
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    /**
+     * Формат по имени без учета регистра, null если такого нет
+     */
+    private static ImageFormat toImageFormat(String name) {
+        for (ImageFormat format : ImageFormat.values())
+            if (format.name().equalsIgnoreCase(name))
+                return format;
+        return null;
+    }
+
+    /**
+     * Разделитель и заголовки части ответа {@link #getRegions}. Перевод строки перед разделителем
+     * по RFC 2046 относится к разделителю, поэтому у первой части его нет
+     */
+    private static void writePartHeaders(OutputStream out, String boundary, int id, int level, Fragment region,
+                                         ImageFormat format, boolean afterPart) throws IOException {
+        StringBuilder part = new StringBuilder();
+        if (afterPart)
+            part.append("\r\n");
+        part.append("--").append(boundary).append("\r\n")
+                .append(HttpHeaders.CONTENT_TYPE).append(": ").append(format.getMediaType()).append("\r\n")
+                .append(HttpHeaders.CONTENT_LOCATION).append(": /chartas/").append(id)
+                .append("/?x=").append(region.getX()).append("&y=").append(region.getY())
+                .append("&width=").append(region.getWidth()).append("&height=").append(region.getHeight());
+        if (level > 0)
+            part.append("&level=").append(level);
+        part.append("\r\n");
+        if (format == ImageFormat.BMP)
+            part.append(HttpHeaders.CONTENT_LENGTH).append(": ")
+                    .append(BmpWriter.getFileSize(region.getWidth(), region.getHeight())).append("\r\n");
+        else if (format == ImageFormat.RAW)
+            part.append(HttpHeaders.CONTENT_LENGTH).append(": ")
+                    .append(RawWriter.getFileSize(region.getWidth(), region.getHeight())).append("\r\n");
+        part.append("\r\n");
+        out.write(part.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeCompressed(Canvas canvas, int level, Fragment fragment, ImageFormat format, boolean deflate,
+                                 OutputStream out) throws IOException {
+        if (!deflate) {
+            try (RasterWriter writer = format.createWriter(out, fragment.getWidth(), fragment.getHeight(),
+                    compressionLevel)) {
+                fragmentService.writeFragments(canvas, level, fragment, writer);
+            }
+            return;
+        }
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1 << 16);
+            try (RasterWriter writer = format.createWriter(deflated, fragment.getWidth(), fragment.getHeight(),
+                    compressionLevel)) {
+                fragmentService.writeFragments(canvas, level, fragment, writer);
+            }
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Сильный ETag холста: id и ревизия. Ревизия меняется при каждом сохранении фрагментов, а удаляются
+     * только фрагменты, полностью перекрытые более новыми, так что пиксели холста при этом не меняются.
+     * Для форматов, кроме BMP, и для сжатого ответа к ETag добавляется формат
+     */
+    private static String getETag(Canvas canvas, ImageFormat format, boolean deflate) {
+        String suffix = format == ImageFormat.BMP ? "" : "-" + format.name().toLowerCase();
+        return "\"" + canvas.getId() + "-" + canvas.getRevision() + suffix + (deflate ? "-deflate" : "") + "\"";
+    }
+
+    /**
+     * Указан ли deflate в Accept-Encoding с ненулевым q
+     */
+    private static boolean acceptsDeflate(List<String> acceptEncoding) {
+        for (String header : acceptEncoding)
+            for (String coding : header.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("deflate"))
+                    return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        return false;
+    }
+
+    /**
+     * Совпадает ли один из ETag заголовка If-None-Match с текущим. Сравнение слабое, как требует RFC 9110
+     */
+    private static boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Удалить холст.
      *
@@ -0,0 +1,136 @@
+package com.naname.chartographer.web;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.CanvasService;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.ingest.IngestJob;
+import com.naname.chartographer.ingest.IngestService;
+import jakarta.persistence.EntityNotFoundException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Асинхронная загрузка фрагментов. Включается для отдельного запроса заголовком Prefer: respond-async:
+ * запрос проверяется и ставится в очередь, ответ 202 содержит id задачи, ее состояние - на GET /chartas/jobs/{jobId}.
+ * Если очередь заполнена, возвращается 429
+ */
+@RestController
+@Slf4j
+@RequestMapping("/chartas")
+public class IngestController {
+
+    private static final String RESPOND_ASYNC = "respond-async";
+
+    private final CanvasService canvasService;
+    private final FragmentService fragmentService;
+    private final IngestService ingestService;
+
+    @Autowired
+    public IngestController(CanvasService canvasService, FragmentService fragmentService,
+                            IngestService ingestService) {
+        this.canvasService = canvasService;
+        this.fragmentService = fragmentService;
+        this.ingestService = ingestService;
+    }
+
+    /**
+     * Поставить в очередь сохранение фрагмента холста {id}, параметры как у синхронного POST /chartas/{id}
+     *
+     * @return id задачи и статус
+     */
+    @PostMapping(value = "/{id}", headers = "Prefer=" + RESPOND_ASYNC)
+    public ResponseEntity<String> restoreImageAsync(@PathVariable(name = "id") int id,
+                                                    Fragment fragment,
+                                                    @RequestBody MultipartFile image) {
+        try {
+            Canvas canvas = canvasService.getCanvasById(id);
+            if (!ChartasController.isValidFragment(canvas, fragment))
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            fragment.setCanvas(canvas);
+            fragment.setId(0);
+
+            IngestJob job = ingestService.submit(id, Collections.singletonList(image), images -> {
+                Fragment createdFragment = fragmentService.saveFragment(images.get(0), fragment);
+                fragmentService.removeInnerFragments(canvas, createdFragment);
+            });
+            return accepted(job);
+        } catch (EntityNotFoundException e) {
+            log.info("Canvas with id " + id + " not found.");
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (RejectedExecutionException e) {
+            log.info("Ingest queue is full, upload to canvas " + id + " rejected.");
+            return new ResponseEntity<>(HttpStatus.TOO_MANY_REQUESTS);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Поставить в очередь сохранение пачки фрагментов холста {id}, параметры как у POST /chartas/{id}/batch
+     *
+     * @return id задачи и статус
+     */
+    @PostMapping(value = "/{id}/batch", headers = "Prefer=" + RESPOND_ASYNC)
+    public ResponseEntity<String> restoreImagesAsync(@PathVariable(name = "id") int id,
+                                                     @RequestParam(name = "x") int[] x,
+                                                     @RequestParam(name = "y") int[] y,
+                                                     @RequestParam(name = "width") int[] width,
+                                                     @RequestParam(name = "height") int[] height,
+                                                     @RequestParam(name = "image") MultipartFile[] images) {
+        try {
+            Canvas canvas = canvasService.getCanvasById(id);
+            List<Fragment> fragments = ChartasController.toFragments(canvas, x, y, width, height, images.length);
+            if (fragments == null)
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+            IngestJob job = ingestService.submit(id, Arrays.asList(images), staged -> {
+                List<Fragment> createdFragments = fragmentService.saveFragments(canvas, fragments, staged);
+                fragmentService.removeInnerFragments(canvas, createdFragments);
+            });
+            return accepted(job);
+        } catch (EntityNotFoundException e) {
+            log.info("Canvas with id " + id + " not found.");
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (RejectedExecutionException e) {
+            log.info("Ingest queue is full, upload to canvas " + id + " rejected.");
+            return new ResponseEntity<>(HttpStatus.TOO_MANY_REQUESTS);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Состояние задачи загрузки: QUEUED, RUNNING, DONE или FAILED (с текстом ошибки)
+     *
+     * @param jobId id задачи
+     * @return задача и статус
+     */
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<IngestJob> getJob(@PathVariable(name = "jobId") String jobId) {
+        IngestJob job = ingestService.getJob(jobId);
+        if (job == null)
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(job, HttpStatus.OK);
+    }
+
+    private ResponseEntity<String> accepted(IngestJob job) {
+        return ResponseEntity.accepted()
+                .location(URI.create("/chartas/jobs/" + job.getId()))
+                .header("Preference-Applied", RESPOND_ASYNC)
+                .body(job.getId());
+    }
+}
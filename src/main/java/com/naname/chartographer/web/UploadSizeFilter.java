@@ -0,0 +1,46 @@
+package com.naname.chartographer.web;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Отклоняет с кодом 413 запросы, Content-Length которых больше spring.servlet.multipart.max-request-size,
+ * до того как тело будет прочитано: иначе multipart-запрос, в первую очередь пачка фрагментов, сначала
+ * целиком ляжет во временные файлы. Запросы без Content-Length ограничивает сам разбор multipart
+ */
+@Component
+@Slf4j
+public class UploadSizeFilter extends OncePerRequestFilter {
+
+    private final long maxRequestSize;
+
+    @Autowired
+    public UploadSizeFilter(@Value("${spring.servlet.multipart.max-request-size:4001048576B}")
+                            DataSize maxRequestSize) {
+        this.maxRequestSize = maxRequestSize.toBytes();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long length = request.getContentLengthLong();
+        if (maxRequestSize >= 0 && length > maxRequestSize) {
+            log.info("Request of " + length + " bytes to " + request.getRequestURI() + " rejected");
+            response.setStatus(HttpStatus.PAYLOAD_TOO_LARGE.value());
+            response.setHeader("Connection", "close");
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+}
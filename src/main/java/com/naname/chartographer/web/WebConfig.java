@@ -0,0 +1,22 @@
+package com.naname.chartographer.web;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.PathMatchConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Настройки Spring MVC
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    /**
+     * Клиенты обращаются к /chartas/{id}/ со слешем на конце, а Spring 6 по умолчанию перестал
+     * сопоставлять такие адреса с /chartas/{id}
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void configurePathMatch(PathMatchConfigurer configurer) {
+        configurer.setUseTrailingSlashMatch(true);
+    }
+}
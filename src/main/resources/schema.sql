@@ -1,11 +1,14 @@
 CREATE TABLE IF NOT EXISTS Canvas(
-    id SERIAL,
+    id SERIAL PRIMARY KEY,
     width INTEGER NOT NULL,
-    height INTEGER NOT NULL
+    height INTEGER NOT NULL,
+    revision BIGINT DEFAULT 0 NOT NULL
 );
 
+ALTER TABLE Canvas ADD COLUMN IF NOT EXISTS revision BIGINT DEFAULT 0 NOT NULL;
+
 CREATE TABLE IF NOT EXISTS Fragment(
-    id SERIAL,
+    id SERIAL PRIMARY KEY,
     canvas_id INTEGER,
     x INTEGER,
     y INTEGER,
@@ -0,0 +1,87 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.image.BmpReader;
+import com.naname.chartographer.image.RasterReader;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BmpReaderUnitTests {
+
+    @Test
+    void readRow_shouldReadRowsBottomUp() throws IOException {
+        BufferedImage image = image(13, 7);
+        BmpReader reader = BmpReader.open(new BufferedInputStream(new ByteArrayInputStream(encode(image, "bmp"))));
+
+        assertNotNull(reader);
+        assertEquals(13, reader.getWidth());
+        assertEquals(7, reader.getHeight());
+        int[] rgb = new int[13];
+        for (int y = 6; y >= 0; y--) {
+            reader.readRow(rgb, 13);
+            for (int x = 0; x < 13; x++)
+                assertEquals(image.getRGB(x, y) & 0xffffff, rgb[x], x + "," + y);
+        }
+        assertThrows(IOException.class, () -> reader.readRow(rgb, 13));
+    }
+
+    @Test
+    void readRow_shouldReadOnlyRequestedPixels() throws IOException {
+        BufferedImage image = image(10, 3);
+        BmpReader reader = BmpReader.open(new BufferedInputStream(new ByteArrayInputStream(encode(image, "bmp"))));
+
+        int[] rgb = new int[10];
+        reader.skipRow();
+        reader.readRow(rgb, 4);
+
+        assertEquals(image.getRGB(3, 1) & 0xffffff, rgb[3]);
+        assertEquals(0, rgb[4]);
+    }
+
+    @Test
+    void readRow_shouldFailOnTruncatedImage() throws IOException {
+        byte[] bmp = encode(image(10, 10), "bmp");
+        BmpReader reader = BmpReader.open(new BufferedInputStream(
+                new ByteArrayInputStream(Arrays.copyOf(bmp, bmp.length - 50))));
+
+        int[] rgb = new int[10];
+        for (int i = 0; i < 8; i++)
+            reader.readRow(rgb, 10);
+        assertThrows(IOException.class, () -> reader.readRow(rgb, 10));
+    }
+
+    @Test
+    void open_shouldDecodeOtherFormats() throws IOException {
+        BufferedImage image = image(5, 4);
+        byte[] png = encode(image, "png");
+
+        assertNull(BmpReader.open(new BufferedInputStream(new ByteArrayInputStream(png))));
+        RasterReader reader = RasterReader.open(new ByteArrayInputStream(png));
+        int[] rgb = new int[5];
+        reader.readRow(rgb, 5);
+        assertEquals(image.getRGB(2, 3) & 0xffffff, rgb[2]);
+        assertThrows(IOException.class, () -> RasterReader.open(new ByteArrayInputStream(new byte[]{1, 2, 3})));
+    }
+
+    private static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, x * 0x1f0307 ^ y * 0x0511ab);
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,74 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.image.BmpWriter;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BmpWriterUnitTests {
+
+    @Test
+    void writeRow_shouldBeDecodedTopDown() throws IOException {
+        // ширины 1, 2, 3 и 5 дают строки с дополнением до 4 байт, 4 и 8 - без дополнения
+        for (int width : new int[]{1, 2, 3, 4, 5, 8, 13}) {
+            int height = 7;
+            int[] pixels = pixels(width, height);
+            byte[] bmp = write(pixels, width, height);
+
+            assertEquals(BmpWriter.getFileSize(width, height), bmp.length, "width " + width);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bmp));
+            assertNotNull(image, "width " + width);
+            assertEquals(width, image.getWidth());
+            assertEquals(height, image.getHeight());
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    assertEquals(pixels[y * width + x], image.getRGB(x, y) & 0xffffff,
+                            "width " + width + ", " + x + "," + y);
+        }
+    }
+
+    @Test
+    void writeRow_shouldPadRowsWithZeros() throws IOException {
+        int[] pixels = pixels(5, 2);
+        byte[] bmp = write(pixels, 5, 2);
+
+        assertEquals(16, BmpWriter.getRowSize(5));
+        // первой в файле идет нижняя строка, за ее 15 байтами пикселей - 1 байт дополнения
+        int bottom = pixels[5];
+        assertEquals((byte) bottom, bmp[BmpWriter.HEADER_SIZE]);
+        assertEquals((byte) (bottom >> 8), bmp[BmpWriter.HEADER_SIZE + 1]);
+        assertEquals((byte) (bottom >> 16), bmp[BmpWriter.HEADER_SIZE + 2]);
+        assertEquals(0, bmp[BmpWriter.HEADER_SIZE + 15]);
+        assertEquals(0, bmp[BmpWriter.HEADER_SIZE + 31]);
+    }
+
+    private static int[] pixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                pixels[y * width + x] = (y * 40 + 1) << 16 | (x * 17 + 3) << 8 | (x + y) * 5 + 7;
+        return pixels;
+    }
+
+    /**
+     * Записать пиксели pixels (строки сверху вниз) в BMP, передавая строки снизу вверх
+     */
+    private static byte[] write(int[] pixels, int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BmpWriter writer = new BmpWriter(out, width, height)) {
+            assertTrue(writer.isBottomUp());
+            writer.writeHeader();
+            for (int y = height - 1; y >= 0; y--)
+                writer.writeRow(pixels, y * width);
+            writer.finish();
+            assertEquals(out.size(), writer.getSize());
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.CanvasRepository;
+import com.naname.chartographer.data.CanvasService;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentCache;
+import com.naname.chartographer.data.FragmentIndex;
+import com.naname.chartographer.data.RegionCache;
+import com.naname.chartographer.data.RegionLocks;
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+class CanvasServiceUnitTests {
+
+    private final CanvasRepository canvasRepository = Mockito.mock(CanvasRepository.class);
+
+    private final TileStore tileStore = new TileStore(StorageMode.FRAGMENTS);
+
+    private final FragmentStorage fragmentStorage = new FragmentStorage(FragmentFormat.BMP);
+
+    private final RegionLocks regionLocks = new RegionLocks();
+
+    private final CanvasService canvasService = new CanvasService(canvasRepository, tileStore, new FragmentIndex(),
+            new FragmentCache(0), new Pyramid(tileStore, 0), new RegionCache(0), fragmentStorage, regionLocks);
+
+    private final Canvas canvas = new Canvas(300, 300);
+
+    @TempDir
+    Path dataDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        canvas.setId(5);
+        Fragment fragment = new Fragment(0, 0, 10, 10);
+        fragment.setId(7);
+        fragment.setCanvas(canvas);
+        canvas.setFragments(List.of(fragment));
+        when(canvasRepository.findById(5)).thenReturn(Optional.of(canvas));
+        fragmentStorage.save(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), 7);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+            TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    @Test
+    void deleteCanvas_shouldDeleteFilesOnlyAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        canvasService.deleteCanvas(5);
+
+        Mockito.verify(canvasRepository).deleteById(5);
+        assertTrue(Files.exists(fragmentStorage.getPath(7)));
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+            synchronization.afterCommit();
+        assertFalse(Files.exists(fragmentStorage.getPath(7)));
+    }
+
+    @Test
+    void deleteCanvas_shouldKeepFilesOnRollback() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        canvasService.deleteCanvas(5);
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertTrue(Files.exists(fragmentStorage.getPath(7)));
+    }
+
+    @Test
+    void deleteCanvas_shouldWaitForWriterOfCanvas() throws Exception {
+        CompletableFuture<Void> deleted;
+        RegionLocks.Held held = regionLocks.lockWrite(canvas, List.of(new Rectangle(290, 290, 10, 10)));
+        try {
+            deleted = CompletableFuture.runAsync(() -> canvasService.deleteCanvas(5));
+            Thread.sleep(200);
+            assertFalse(deleted.isDone());
+            assertTrue(Files.exists(fragmentStorage.getPath(7)));
+        } finally {
+            held.close();
+        }
+        deleted.get(10, TimeUnit.SECONDS);
+        assertFalse(Files.exists(fragmentStorage.getPath(7)));
+    }
+}
@@ -4,6 +4,9 @@ import com.naname.chartographer.data.Canvas;
 import com.naname.chartographer.data.CanvasService;
 import com.naname.chartographer.data.Fragment;
 import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.ingest.IngestJob;
+import com.naname.chartographer.ingest.IngestService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -12,17 +15,29 @@ import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMultipartHttpServletRequestBuilder;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.servlet.http.HttpServletRequest;
 import javax.sql.DataSource;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest
@@ -37,6 +52,9 @@ class ChartasControllerIntegrationTests {
     @MockBean
     private FragmentService fragmentService;
 
+    @MockBean
+    private IngestService ingestService;
+
     @MockBean
     private ChartographerApplication chartographerApplication;
 
@@ -80,6 +98,184 @@ class ChartasControllerIntegrationTests {
         verify(canvasService).getCanvasById(1);
     }
 
+    @Test
+    void getFragment_shouldNotModified() throws Exception {
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(1);
+        canvas.setRevision(5);
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(canvas);
+
+        // тело ответа пишется асинхронно, проверка вызовов ждет его завершения
+        MvcResult result = mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1-5\""))
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result));
+        result = mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100").header("If-None-Match", "\"1-4\""))
+                .andExpect(status().isOk())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result));
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100").header("If-None-Match", "\"1-4\", \"1-5\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"1-5\""));
+        verify(fragmentService, times(2)).writeFragments(any(), anyInt(), any(), any(OutputStream.class));
+    }
+
+    @Test
+    void getFragment_shouldNegotiateFormat() throws Exception {
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(1);
+        canvas.setRevision(5);
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(canvas);
+
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100").header("Accept", "image/png, image/*;q=0.5"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/png"))
+                .andExpect(header().string("ETag", "\"1-5-png\""))
+                .andExpect(header().doesNotExist("Content-Length"));
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100").header("Accept", "text/html, */*;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/bmp"))
+                .andExpect(header().string("ETag", "\"1-5\""));
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100")
+                        .header("Accept", "application/vnd.chartographer.raw")
+                        .header("Accept-Encoding", "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "deflate"))
+                .andExpect(header().string("ETag", "\"1-5-raw-deflate\""));
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100").header("Accept", "text/plain"))
+                .andExpect(status().isNotAcceptable());
+    }
+
+    @Test
+    void getFragment_shouldBadRequestForUnknownLevel() throws Exception {
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(new Canvas(100, 100));
+        when(fragmentService.getLevels()).thenReturn(2);
+
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100&level=1"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/chartas/1/?x=0&y=0&width=100&height=100&level=3"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/chartas/1/?x=50&y=0&width=100&height=100&level=1"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void getRegions_shouldOk() throws Exception {
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(1);
+        canvas.setRevision(5);
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(canvas);
+
+        // тело ответа пишется асинхронно, проверка вызова ждет его завершения
+        MvcResult result = mockMvc.perform(get("/chartas/1/regions").param("x", "0", "50").param("y", "0", "50")
+                        .param("width", "10", "20").param("height", "10", "20").param("format", "png"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", startsWith("multipart/mixed;boundary=")))
+                .andExpect(header().string("ETag", "\"1-5-regions-png\""))
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result));
+        mockMvc.perform(get("/chartas/1/regions").param("x", "0").param("y", "0")
+                        .param("width", "10").param("height", "10").param("format", "png")
+                        .header("If-None-Match", "\"1-5-regions-png\""))
+                .andExpect(status().isNotModified());
+        verify(fragmentService).writeRegions(eq(canvas), eq(0),
+                eq(List.of(new Fragment(0, 0, 10, 10), new Fragment(50, 50, 20, 20))), any());
+    }
+
+    @Test
+    void getRegions_shouldBadRequest() throws Exception {
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(new Canvas(100, 100));
+
+        mockMvc.perform(get("/chartas/1/regions").param("x", "0", "50").param("y", "0")
+                        .param("width", "10", "20").param("height", "10", "20"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/chartas/1/regions").param("x", "0").param("y", "0")
+                        .param("width", "5001").param("height", "10"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/chartas/1/regions").param("x", "0").param("y", "0")
+                        .param("width", "10").param("height", "10").param("format", "gif"))
+                .andExpect(status().isBadRequest());
+        String[] many = new String[65];
+        Arrays.fill(many, "1");
+        mockMvc.perform(get("/chartas/1/regions").param("x", many).param("y", many)
+                        .param("width", many).param("height", many))
+                .andExpect(status().isBadRequest());
+        verify(fragmentService, never()).writeRegions(any(), anyInt(), anyList(), any());
+    }
+
+    @Test
+    void restoreImages_shouldOk() throws Exception {
+        Canvas canvas = new Canvas(100, 100);
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(canvas);
+        when(fragmentService.saveFragments(any(Canvas.class), anyList(), anyList())).thenReturn(List.of());
+        MockMultipartFile image = new MockMultipartFile("image", new byte[0]);
+
+        mockMvc.perform(multipart("/chartas/1/batch").file(image).file(image)
+                        .param("x", "0", "50").param("y", "0", "50")
+                        .param("width", "10", "20").param("height", "10", "20"))
+                .andExpect(status().isOk());
+        verify(fragmentService).saveFragments(canvas,
+                List.of(new Fragment(0, 0, 10, 10), new Fragment(50, 50, 20, 20)), List.of(image, image));
+        verify(fragmentService).removeInnerFragments(canvas, List.of());
+    }
+
+    @Test
+    void restoreImages_shouldBadRequest() throws Exception {
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(new Canvas(100, 100));
+        MockMultipartFile image = new MockMultipartFile("image", new byte[0]);
+
+        mockMvc.perform(multipart("/chartas/1/batch").file(image)
+                        .param("x", "0", "50").param("y", "0", "50")
+                        .param("width", "10", "20").param("height", "10", "20"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(multipart("/chartas/1/batch").file(image)
+                        .param("x", "100").param("y", "0").param("width", "10").param("height", "10"))
+                .andExpect(status().isBadRequest());
+        String[] many = new String[65];
+        Arrays.fill(many, "1");
+        MockMultipartHttpServletRequestBuilder tooMany = multipart("/chartas/1/batch");
+        for (int i = 0; i < many.length; i++)
+            tooMany.file(image);
+        mockMvc.perform(tooMany.param("x", many).param("y", many).param("width", many).param("height", many))
+                .andExpect(status().isBadRequest());
+        verify(fragmentService, never()).saveFragments(any(), anyList(), anyList());
+    }
+
+    @Test
+    void restoreImageAsync_shouldAccepted() throws Exception {
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(new Canvas(100, 100));
+        when(ingestService.submit(eq(1), anyList(), any())).thenReturn(new IngestJob("job", 1));
+
+        mockMvc.perform(post("/chartas/1/?x=0&y=0&width=100&height=100").header("Prefer", "respond-async"))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Location", "/chartas/jobs/job"))
+                .andExpect(content().string(equalTo("job")));
+        verify(fragmentService, never()).saveFragment(any(), any());
+    }
+
+    @Test
+    void restoreImageAsync_shouldTooManyRequests() throws Exception {
+        when(canvasService.getCanvasById(any(Integer.class))).thenReturn(new Canvas(100, 100));
+        when(ingestService.submit(eq(1), anyList(), any())).thenThrow(new RejectedExecutionException());
+
+        mockMvc.perform(post("/chartas/1/?x=0&y=0&width=100&height=100").header("Prefer", "respond-async"))
+                .andExpect(status().isTooManyRequests());
+        mockMvc.perform(post("/chartas/1/?x=100&y=0&width=100&height=100").header("Prefer", "respond-async"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void getJob_shouldReturnStatus() throws Exception {
+        when(ingestService.getJob("job")).thenReturn(new IngestJob("job", 1));
+
+        mockMvc.perform(get("/chartas/jobs/job"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status", equalTo("QUEUED")));
+        mockMvc.perform(get("/chartas/jobs/other"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     void deleteCanvas_shouldOk() throws Exception {
         doNothing().when(canvasService).deleteCanvas(1);
@@ -5,14 +5,15 @@ import com.naname.chartographer.data.CanvasService;
 import com.naname.chartographer.data.Fragment;
 import com.naname.chartographer.data.FragmentService;
 import com.naname.chartographer.web.ChartasController;
+import jakarta.persistence.EntityNotFoundException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.persistence.EntityNotFoundException;
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
@@ -23,7 +24,7 @@ class ChartasControllerUnitTests {
 
     private final FragmentService fragmentService = Mockito.mock(FragmentService.class);
 
-    private final ChartasController chartasController = Mockito.spy(new ChartasController(canvasService, fragmentService));
+    private final ChartasController chartasController = Mockito.spy(new ChartasController(canvasService, fragmentService, Deflater.BEST_SPEED));
 
     @Test
     void createImage_shouldOk() {
@@ -0,0 +1,201 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.CanvasRepository;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentCache;
+import com.naname.chartographer.data.FragmentCompactor;
+import com.naname.chartographer.data.FragmentIndex;
+import com.naname.chartographer.data.FragmentMetrics;
+import com.naname.chartographer.data.FragmentRepository;
+import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.data.IoPool;
+import com.naname.chartographer.data.RegionCache;
+import com.naname.chartographer.data.RegionLocks;
+import com.naname.chartographer.data.RenderPool;
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileJournal;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class FragmentCompactorUnitTests {
+
+    private final FragmentCache fragmentCache = new FragmentCache(0);
+
+    private final RegionCache regionCache = new RegionCache(0);
+
+    private final TileStore tileStore = new TileStore(StorageMode.FRAGMENTS);
+
+    private final FragmentIndex fragmentIndex = new FragmentIndex();
+
+    private final FragmentStorage fragmentStorage = new FragmentStorage(FragmentFormat.BMP);
+
+    private final RegionLocks regionLocks = new RegionLocks();
+
+    private final FragmentRepository fragmentRepository = Mockito.mock(FragmentRepository.class);
+
+    private final CanvasRepository canvasRepository = Mockito.mock(CanvasRepository.class);
+
+    private final FragmentService fragmentService = new FragmentService(fragmentRepository, canvasRepository,
+            tileStore, fragmentIndex, fragmentCache, fragmentStorage, new RenderPool(1, 1), new IoPool(1),
+            new FragmentMetrics(new SimpleMeterRegistry(), fragmentCache, regionCache), new Pyramid(tileStore, 0),
+            regionCache, new TileJournal(StorageMode.FRAGMENTS), regionLocks);
+
+    private final FragmentCompactor compactor = new FragmentCompactor(fragmentService, fragmentRepository,
+            canvasRepository, fragmentStorage, fragmentIndex, fragmentCache, tileStore, regionLocks,
+            new TransactionTemplate(Mockito.mock(PlatformTransactionManager.class)), 0, 0, 2500, 3600000);
+
+    private final Canvas canvas = new Canvas(100, 100);
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private final ZonedDateTime date = ZonedDateTime.now().minusDays(1);
+
+    @TempDir
+    Path dataDir;
+
+    @BeforeEach
+    void setUp() {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        canvas.setId(3);
+        when(canvasRepository.findAll()).thenReturn(List.of(canvas));
+        when(fragmentRepository.save(any())).thenAnswer(invocation -> {
+            Fragment fragment = invocation.getArgument(0);
+            fragment.setId(ids.incrementAndGet());
+            return fragment;
+        });
+        fragmentService.getIncidentFragments(canvas, new Fragment(0, 0, 100, 100));
+    }
+
+    @Test
+    void compact_shouldCropMostlyCoveredFragment() throws Exception {
+        Fragment old = save(0, 0, 100, 100, 0x102030);
+        save(0, 0, 100, 80, 0x405060);
+        BufferedImage before = render();
+
+        compactor.compact();
+
+        assertArrayEquals(pixels(before), pixels(render()));
+        List<Fragment> fragments = getAll();
+        assertEquals(2, fragments.size());
+        Fragment cropped = fragments.get(0);
+        assertEquals(List.of(0, 80, 100, 20),
+                List.of(cropped.getX(), cropped.getY(), cropped.getWidth(), cropped.getHeight()));
+        assertEquals(old.getDate(), cropped.getDate());
+        assertFalse(Files.exists(fragmentStorage.getPath(old.getId())));
+    }
+
+    @Test
+    void compact_shouldRemoveFragmentCoveredByNewerOnes() throws Exception {
+        Fragment old = save(0, 0, 100, 100, 0x102030);
+        save(0, 0, 50, 100, 0x405060);
+        save(50, 0, 50, 100, 0x708090);
+
+        compactor.compact();
+
+        assertFalse(getAll().contains(old));
+        assertFalse(Files.exists(fragmentStorage.getPath(old.getId())));
+    }
+
+    @Test
+    void compact_shouldMergeAdjacentSmallFragments() throws Exception {
+        save(0, 0, 100, 100, 0x102030);
+        save(10, 10, 40, 50, 0x405060);
+        save(50, 10, 40, 50, 0x708090);
+        BufferedImage before = render();
+
+        compactor.compact();
+
+        assertArrayEquals(pixels(before), pixels(render()));
+        List<Fragment> fragments = getAll();
+        assertEquals(2, fragments.size());
+        Fragment merged = fragments.get(1);
+        assertEquals(List.of(10, 10, 80, 50),
+                List.of(merged.getX(), merged.getY(), merged.getWidth(), merged.getHeight()));
+    }
+
+    @Test
+    void compact_shouldNotMergeAcrossFragmentBetweenThem() throws Exception {
+        Fragment left = save(0, 0, 50, 50, 0x102030);
+        save(40, 40, 5, 5, 0x405060);
+        Fragment right = save(50, 0, 50, 50, 0x708090);
+
+        compactor.compact();
+
+        assertTrue(getAll().containsAll(List.of(left, right)));
+    }
+
+    @Test
+    void compact_shouldDeleteOrphanFilesOlderThanGrace() throws Exception {
+        FragmentCompactor shortGrace = new FragmentCompactor(fragmentService, fragmentRepository, canvasRepository,
+                fragmentStorage, fragmentIndex, fragmentCache, tileStore, regionLocks,
+                new TransactionTemplate(Mockito.mock(PlatformTransactionManager.class)), 0, 0, 2500, 30000);
+        fragmentStorage.save(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), 99);
+        Files.setLastModifiedTime(fragmentStorage.getPath(99), FileTime.from(Instant.now().minusSeconds(60)));
+
+        compactor.compact();
+        assertTrue(Files.exists(fragmentStorage.getPath(99)));
+
+        shortGrace.compact();
+        assertFalse(Files.exists(fragmentStorage.getPath(99)));
+    }
+
+    private Fragment save(int x, int y, int width, int height, int color) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int i = 0; i < height; i++)
+            for (int j = 0; j < width; j++)
+                image.setRGB(j, i, color ^ (i * 7 + j));
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", bmp);
+
+        Fragment fragment = new Fragment(x, y, width, height);
+        fragment.setCanvas(canvas);
+        fragment.setId(ids.incrementAndGet());
+        Fragment saved = fragmentService.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment);
+        saved.setDate(date.plusSeconds(ids.get()));
+        fragmentIndex.remove(canvas.getId(), saved.getId());
+        fragmentIndex.add(saved);
+        return saved;
+    }
+
+    private List<Fragment> getAll() {
+        return fragmentService.getIncidentFragments(canvas, new Fragment(0, 0, 100, 100));
+    }
+
+    private BufferedImage render() throws IOException {
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        fragmentService.paintFragments(canvas, new Fragment(0, 0, 100, 100), image);
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
@@ -0,0 +1,186 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentIndexUnitTests {
+
+    private final FragmentIndex fragmentIndex = new FragmentIndex();
+
+    private final Canvas canvas = new Canvas(3000, 2000);
+
+    private final ZonedDateTime date = ZonedDateTime.now();
+
+    @BeforeEach
+    void setUp() {
+        canvas.setId(1);
+    }
+
+    @Test
+    void getIncidentFragments_shouldMatchFullScan() {
+        Random random = new Random(42);
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = 1; i <= 500; i++)
+            fragments.add(fragment(i, random.nextInt(3000), random.nextInt(2000),
+                    1 + random.nextInt(1500), 1 + random.nextInt(1500)));
+
+        for (int i = 0; i < 100; i++) {
+            Fragment area = new Fragment(random.nextInt(3000), random.nextInt(2000),
+                    1 + random.nextInt(5000), 1 + random.nextInt(5000));
+            List<Integer> expected = fragments.stream()
+                    .filter(f -> f.getX() + f.getWidth() >= area.getX() && area.getX() + area.getWidth() >= f.getX()
+                            && f.getY() + f.getHeight() >= area.getY() && area.getY() + area.getHeight() >= f.getY())
+                    .map(Fragment::getId)
+                    .collect(Collectors.toList());
+            assertEquals(expected, ids(fragmentIndex.getIncidentFragments(canvas, area, c -> fragments)));
+        }
+    }
+
+    @Test
+    void getIncidentFragments_shouldLoadOnce() {
+        List<Fragment> fragments = List.of(fragment(1, 0, 0, 100, 100));
+        int[] loads = new int[1];
+
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 10, 10), c -> {
+            loads[0]++;
+            return fragments;
+        });
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 10, 10), c -> {
+            loads[0]++;
+            return fragments;
+        });
+
+        assertEquals(1, loads[0]);
+    }
+
+    @Test
+    void add_shouldBeVisibleInOrder() {
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1), c -> List.of(fragment(1, 0, 0, 600, 600)));
+        fragmentIndex.add(fragment(2, 500, 500, 100, 100));
+
+        assertEquals(List.of(1, 2), ids(fragmentIndex.getIncidentFragments(canvas, new Fragment(550, 550, 10, 10),
+                c -> List.of())));
+    }
+
+    @Test
+    void remove_shouldHideFragment() {
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1),
+                c -> List.of(fragment(1, 0, 0, 2000, 2000), fragment(2, 100, 100, 10, 10)));
+        fragmentIndex.remove(canvas.getId(), 1);
+
+        assertEquals(List.of(2), ids(fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 3000, 2000),
+                c -> List.of())));
+    }
+
+    @Test
+    void add_shouldSurviveLoadThatMissedUncommittedFragments() {
+        fragmentIndex.add(fragment(2, 500, 500, 100, 100));
+        fragmentIndex.remove(canvas.getId(), 1);
+
+        assertEquals(List.of(2, 3), ids(fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 3000, 2000),
+                c -> List.of(fragment(1, 0, 0, 600, 600), fragment(3, 0, 0, 10, 10)))));
+    }
+
+    @Test
+    void add_shouldWaitForLoadInProgress() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch loaded = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> load = executor.submit(() -> fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1),
+                    c -> {
+                        loading.countDown();
+                        try {
+                            loaded.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return List.of(fragment(1, 0, 0, 600, 600));
+                    }));
+            assertTrue(loading.await(1, TimeUnit.MINUTES));
+            Future<?> add = executor.submit(() -> fragmentIndex.add(fragment(2, 500, 500, 100, 100)));
+            loaded.countDown();
+            load.get(1, TimeUnit.MINUTES);
+            add.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(List.of(1, 2), ids(fragmentIndex.getIncidentFragments(canvas, new Fragment(550, 550, 10, 10),
+                c -> List.of())));
+    }
+
+    @Test
+    void evict_shouldReload() {
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1), c -> List.of(fragment(1, 0, 0, 10, 10)));
+        fragmentIndex.evict(canvas.getId());
+
+        assertTrue(fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1), c -> List.of()).isEmpty());
+    }
+
+    @Test
+    void add_shouldKeepDateOrderForOlderFragments() {
+        fragmentIndex.getIncidentFragments(canvas, new Fragment(0, 0, 1, 1), c -> List.of(fragment(5, 0, 0, 100, 100)));
+        fragmentIndex.add(fragment(7, 10, 10, 100, 100));
+        fragmentIndex.add(fragment(6, 20, 20, 100, 100));
+        fragmentIndex.remove(canvas.getId(), 5);
+        fragmentIndex.add(fragment(3, 30, 30, 100, 100));
+
+        assertEquals(List.of(3, 6, 7), ids(fragmentIndex.getIncidentFragments(canvas, new Fragment(50, 50, 1, 1),
+                c -> List.of())));
+    }
+
+    @Test
+    void getCanvas_shouldLoadOnceAndTrackRevision() {
+        canvas.setRevision(4);
+        int[] loads = new int[1];
+        IntFunction<Optional<Canvas>> loader = id -> {
+            loads[0]++;
+            return Optional.of(canvas);
+        };
+
+        assertEquals(4, fragmentIndex.getCanvas(1, loader).getRevision());
+        fragmentIndex.incrementRevision(1);
+        Canvas cached = fragmentIndex.getCanvas(1, loader);
+
+        assertEquals(1, loads[0]);
+        assertEquals(5, cached.getRevision());
+        assertEquals(3000, cached.getWidth());
+        assertNotSame(cached, fragmentIndex.getCanvas(1, loader));
+        assertNull(fragmentIndex.getCanvas(2, id -> Optional.empty()));
+
+        fragmentIndex.evict(1);
+        assertEquals(4, fragmentIndex.getCanvas(1, loader).getRevision());
+        assertEquals(2, loads[0]);
+    }
+
+    private Fragment fragment(int id, int x, int y, int width, int height) {
+        Fragment fragment = new Fragment(x, y, width, height);
+        fragment.setId(id);
+        fragment.setDate(date.plusSeconds(id));
+        fragment.setCanvas(canvas);
+        return fragment;
+    }
+
+    private List<Integer> ids(List<Fragment> fragments) {
+        return fragments.stream().map(Fragment::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,61 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentCache;
+import com.naname.chartographer.data.FragmentMetrics;
+import com.naname.chartographer.data.RegionCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentMetricsUnitTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final FragmentCache fragmentCache = new FragmentCache(1 << 20);
+
+    private final RegionCache regionCache = new RegionCache(1 << 20);
+
+    private final FragmentMetrics metrics = new FragmentMetrics(registry, fragmentCache, regionCache);
+
+    @Test
+    void timeIo_shouldRecordOperation() throws IOException {
+        assertEquals(42, metrics.timeIo("read", () -> 42));
+
+        assertThrows(IOException.class, () -> metrics.timeIo("read", () -> {
+            throw new IOException();
+        }));
+        assertEquals(2, registry.get("chartographer.storage.io").tag("operation", "read").timer().count());
+    }
+
+    @Test
+    void cacheMeters_shouldFollowCache() {
+        fragmentCache.put(1, new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB));
+        fragmentCache.get(1);
+        fragmentCache.get(2);
+
+        assertEquals(1, registry.get("chartographer.cache.fragments.hits").functionCounter().count());
+        assertEquals(1, registry.get("chartographer.cache.fragments.misses").functionCounter().count());
+        assertEquals(400, registry.get("chartographer.cache.fragments.size").gauge().value());
+
+        Fragment region = new Fragment(0, 0, 1, 1);
+        regionCache.put(1, 0, region, new byte[58], regionCache.getGeneration(1));
+        regionCache.get(1, 0, region);
+        assertEquals(1, registry.get("chartographer.cache.regions.hits").functionCounter().count());
+        assertEquals(58, registry.get("chartographer.cache.regions.size").gauge().value());
+    }
+
+    @Test
+    void recordBytes_shouldIncrementCounters() {
+        metrics.recordDecoded(300);
+        metrics.recordEncoded(354);
+        metrics.recordEncoded(54);
+
+        assertEquals(300, registry.get("chartographer.image.decoded").counter().count());
+        assertEquals(408, registry.get("chartographer.image.encoded").counter().count());
+    }
+}
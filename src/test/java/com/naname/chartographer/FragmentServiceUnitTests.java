@@ -1,21 +1,81 @@
 package com.naname.chartographer;
 
 import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.CanvasRepository;
 import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.FragmentCache;
+import com.naname.chartographer.data.FragmentIndex;
+import com.naname.chartographer.data.FragmentMetrics;
 import com.naname.chartographer.data.FragmentRepository;
 import com.naname.chartographer.data.FragmentService;
+import com.naname.chartographer.data.IoPool;
+import com.naname.chartographer.data.RegionCache;
+import com.naname.chartographer.data.RegionLocks;
+import com.naname.chartographer.data.RenderPool;
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentImage;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileJournal;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.image.BmpWriter;
+import com.naname.chartographer.image.ImageSizeException;
+import com.naname.chartographer.image.PngWriter;
+import com.naname.chartographer.image.RasterWriter;
+import com.naname.chartographer.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
+import org.springframework.mock.web.MockMultipartFile;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class FragmentServiceUnitTests {
 
-    private final FragmentService fragmentService = new FragmentService(Mockito.mock(FragmentRepository.class));
+    private final FragmentCache fragmentCache = new FragmentCache(0);
+
+    private final RegionCache regionCache = new RegionCache(1 << 20);
+
+    private final TileStore tileStore = new TileStore(StorageMode.FRAGMENTS);
+
+    private final FragmentRepository fragmentRepository = Mockito.mock(FragmentRepository.class);
+
+    private final CanvasRepository canvasRepository = Mockito.mock(CanvasRepository.class);
+
+    private final FragmentService fragmentService = createFragmentService(tileStore);
 
     @Test
     void isSecondFragmentInner_shouldFalse() {
@@ -63,9 +123,694 @@ class FragmentServiceUnitTests {
                 new Fragment(101, 0, 1, 400)).size());
     }
 
+    @Test
+    void removeInnerFragments_shouldRemoveOnlyOlderCoveredFragments() throws IOException {
+        Canvas canvas = new Canvas(1000, 1000);
+        canvas.setId(1);
+        ZonedDateTime date = ZonedDateTime.now();
+        Fragment old = fragment(1, date, 10, 10, 50, 50);
+        Fragment first = fragment(2, date.plusNanos(1000), 0, 0, 100, 100);
+        Fragment inner = fragment(3, date.plusNanos(2000), 20, 20, 10, 10);
+        Fragment second = fragment(4, date.plusNanos(3000), 0, 0, 100, 100);
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(any())).thenReturn(List.of(old, first, inner, second));
+
+        fragmentService.removeInnerFragments(canvas, List.of(first, inner, second));
+
+        verify(fragmentRepository).deleteAllByIdInBatch(Set.of(1, 2, 3));
+        assertEquals(List.of(4), fragmentService.getIncidentFragments(canvas, new Fragment(0, 0, 100, 100))
+                .stream().map(Fragment::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void removeInnerFragments_shouldKeepNewerFragmentUnderSingleSource() throws IOException {
+        Canvas canvas = new Canvas(1000, 1000);
+        canvas.setId(2);
+        ZonedDateTime date = ZonedDateTime.now();
+        Fragment old = fragment(1, date, 10, 10, 50, 50);
+        Fragment source = fragment(2, date.plusNanos(1000), 0, 0, 100, 100);
+        Fragment newer = fragment(3, date.plusNanos(2000), 20, 20, 10, 10);
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(any())).thenReturn(List.of(old, source, newer));
+
+        fragmentService.removeInnerFragments(canvas, source);
+
+        verify(fragmentRepository).deleteById(1);
+        verify(fragmentRepository, never()).deleteById(3);
+        assertEquals(List.of(2, 3), fragmentService.getIncidentFragments(canvas, new Fragment(0, 0, 100, 100))
+                .stream().map(Fragment::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void saveFragment_shouldIncrementCanvasRevision(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(7);
+        Fragment fragment = new Fragment(0, 0, 10, 10);
+        fragment.setCanvas(canvas);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR), "bmp", bmp);
+
+        fragmentService.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment);
+
+        verify(canvasRepository).incrementRevision(7);
+    }
+
+    @Test
+    void saveFragment_shouldDateFragmentOnlyAfterLockingItsArea(@TempDir Path dataDir) throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        RegionLocks regionLocks = new RegionLocks();
+        FragmentService service = createFragmentService(tileStore, FragmentFormat.BMP, 0, regionLocks);
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(8);
+        Fragment fragment = new Fragment(0, 0, 10, 10);
+        fragment.setCanvas(canvas);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR), "bmp", bmp);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> save;
+            // пока пересекающийся фрагмент пишется, новый не должен получить более раннюю дату
+            RegionLocks.Held held = regionLocks.lockWrite(canvas, List.of(new Rectangle(5, 5, 10, 10)));
+            try {
+                save = executor.submit(() -> service.saveFragment(
+                        new MockMultipartFile("image", bmp.toByteArray()), fragment));
+                assertThrows(TimeoutException.class, () -> save.get(200, TimeUnit.MILLISECONDS));
+                assertNull(fragment.getDate());
+                verify(fragmentRepository, never()).save(any());
+            } finally {
+                held.close();
+            }
+            save.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNotNull(fragment.getDate());
+        verify(fragmentRepository).save(fragment);
+    }
+
+    @Test
+    void writeFragments_shouldCacheRegionUntilIntersectingSave(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(8);
+        Fragment first = new Fragment(0, 0, 20, 20);
+        Fragment second = new Fragment(50, 50, 20, 20);
+        ByteArrayOutputStream firstBmp = new ByteArrayOutputStream();
+        fragmentService.writeFragments(canvas, first, firstBmp);
+        fragmentService.writeFragments(canvas, second, new ByteArrayOutputStream());
+
+        assertArrayEquals(firstBmp.toByteArray(), fragmentService.getCachedRegion(canvas, 0, first));
+        assertNotNull(fragmentService.getCachedRegion(canvas, 0, second));
+
+        Fragment fragment = new Fragment(10, 10, 10, 10);
+        fragment.setCanvas(canvas);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR), "bmp", bmp);
+        fragmentService.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment);
+
+        assertNull(fragmentService.getCachedRegion(canvas, 0, first));
+        assertNotNull(fragmentService.getCachedRegion(canvas, 0, second));
+    }
+
+    @Test
+    void writeFragments_shouldRenderSameImageInAnyRowOrder(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(300, 300);
+        canvas.setId(9);
+        int[][] fragments = {{0, 0, 120, 200, 0x336699}, {50, 100, 200, 150, 0xcc8844}, {10, 180, 60, 60, 0x00ff00}};
+        List<Fragment> saved = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            int[] f = fragments[i];
+            Fragment fragment = new Fragment(f[0], f[1], f[2], f[3]);
+            fragment.setCanvas(canvas);
+            fragment.setId(i + 1);
+            BufferedImage image = new BufferedImage(f[2], f[3], BufferedImage.TYPE_3BYTE_BGR);
+            for (int y = 0; y < f[3]; y++)
+                for (int x = 0; x < f[2]; x++)
+                    image.setRGB(x, y, f[4] ^ (x + y));
+            ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+            ImageIO.write(image, "bmp", bmp);
+            saved.add(fragmentService.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment));
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(canvas)).thenReturn(saved);
+
+        Fragment region = new Fragment(5, 5, 280, 290);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        fragmentService.writeFragments(canvas, 0, region, new BmpWriter(bmp, 280, 290));
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try (PngWriter writer = new PngWriter(png, 280, 290, 1)) {
+            fragmentService.writeFragments(canvas, 0, region, writer);
+        }
+
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(bmp.toByteArray()));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertEquals(fragments[1][4] ^ (10 + 10), expected.getRGB(55, 105) & 0xffffff);
+        for (int y = 0; y < 290; y++)
+            for (int x = 0; x < 280; x++)
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), x + "," + y);
+    }
+
+    @Test
+    void writeFragments_shouldRenderSameBytesWithAnyParallelism(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        FragmentService sequential = createFragmentService(tileStore);
+        RenderPool renderPool = new RenderPool(3, 3);
+        FragmentService parallel = new FragmentService(fragmentRepository, canvasRepository,
+                tileStore, new FragmentIndex(), fragmentCache,
+                new FragmentStorage(FragmentFormat.BMP), renderPool, new IoPool(1),
+                new FragmentMetrics(new SimpleMeterRegistry(), fragmentCache, regionCache),
+                new Pyramid(tileStore, 0), regionCache, new TileJournal(StorageMode.FRAGMENTS), new RegionLocks());
+        Canvas canvas = new Canvas(400, 700);
+        canvas.setId(18);
+        int[][] fragments = {{0, 0, 300, 500}, {101, 150, 250, 400}, {20, 390, 90, 300}};
+        List<Fragment> saved = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            int[] f = fragments[i];
+            Fragment fragment = new Fragment(f[0], f[1], f[2], f[3]);
+            fragment.setCanvas(canvas);
+            fragment.setId(i + 1);
+            saved.add(sequential.saveFragment(new MockMultipartFile("image", gradientBmp(f[2], f[3])), fragment));
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(canvas)).thenReturn(saved);
+
+        // окно из трех полос - 192 строки, область проходит несколько окон и кончается неполной полосой
+        Fragment region = new Fragment(7, 13, 333, 650);
+        try {
+            for (boolean png : new boolean[]{false, true}) {
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                try (RasterWriter first = png ? new PngWriter(expected, 333, 650, 1)
+                        : new BmpWriter(expected, 333, 650);
+                     RasterWriter second = png ? new PngWriter(actual, 333, 650, 1)
+                             : new BmpWriter(actual, 333, 650)) {
+                    sequential.writeFragments(canvas, 0, region, first);
+                    parallel.writeFragments(canvas, 0, region, second);
+                }
+                assertArrayEquals(expected.toByteArray(), actual.toByteArray(), png ? "png" : "bmp");
+            }
+        } finally {
+            renderPool.destroy();
+        }
+    }
+
+    @Test
+    void writeRegions_shouldReadEachFragmentOnce(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FragmentService service = new FragmentService(fragmentRepository, canvasRepository,
+                tileStore, new FragmentIndex(), fragmentCache,
+                new FragmentStorage(FragmentFormat.BMP), new RenderPool(1, 1), new IoPool(1),
+                new FragmentMetrics(registry, fragmentCache, regionCache),
+                new Pyramid(tileStore, 0), regionCache, new TileJournal(StorageMode.FRAGMENTS), new RegionLocks());
+        Canvas canvas = new Canvas(300, 300);
+        canvas.setId(14);
+        int[][] fragments = {{0, 0, 120, 200}, {50, 100, 200, 150}, {10, 180, 60, 60}};
+        List<Fragment> saved = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            int[] f = fragments[i];
+            Fragment fragment = new Fragment(f[0], f[1], f[2], f[3]);
+            fragment.setCanvas(canvas);
+            fragment.setId(i + 1);
+            saved.add(service.saveFragment(new MockMultipartFile("image", gradientBmp(f[2], f[3])), fragment));
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(canvas)).thenReturn(saved);
+
+        List<Fragment> regions = List.of(new Fragment(0, 0, 100, 100), new Fragment(40, 90, 150, 120),
+                new Fragment(200, 200, 150, 150));
+        List<ByteArrayOutputStream> outs = new ArrayList<>();
+        service.writeRegions(canvas, 0, regions, index -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outs.add(out);
+            return new BmpWriter(out, regions.get(index).getWidth(), regions.get(index).getHeight());
+        });
+
+        assertEquals(fragments.length,
+                registry.get("chartographer.storage.io").tag("operation", "read").timer().count());
+        for (int i = 0; i < regions.size(); i++) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            service.writeFragments(canvas, 0, regions.get(i), new BmpWriter(expected,
+                    regions.get(i).getWidth(), regions.get(i).getHeight()));
+            assertArrayEquals(expected.toByteArray(), outs.get(i).toByteArray(), "region " + i);
+        }
+    }
+
+    @Test
+    void writeRegions_shouldCloseWriterOfEachRegionEvenOnError(@TempDir Path dataDir) {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        FragmentService service = createFragmentService(tileStore);
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(17);
+        List<Fragment> regions = List.of(new Fragment(0, 0, 50, 50), new Fragment(50, 50, 50, 50));
+        List<Integer> closed = new ArrayList<>();
+
+        assertThrows(IOException.class, () -> service.writeRegions(canvas, 0, regions,
+                index -> new PngWriter(new ByteArrayOutputStream(), 50, 50, 1) {
+                    @Override
+                    public void writeRow(int[] rgb, int offset) throws IOException {
+                        if (index == 1)
+                            throw new IOException("Broken pipe");
+                        super.writeRow(rgb, offset);
+                    }
+
+                    @Override
+                    public void close() {
+                        closed.add(index);
+                        super.close();
+                    }
+                }));
+
+        assertEquals(List.of(0, 1), closed);
+    }
+
+    @Test
+    void writeRegions_shouldCloseFragmentAfterLastRegionUsingIt(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        FragmentService service = Mockito.spy(createFragmentService(tileStore));
+        Canvas canvas = new Canvas(300, 100);
+        canvas.setId(16);
+        int[][] fragments = {{0, 0, 100, 100}, {200, 0, 100, 100}};
+        List<Fragment> saved = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            int[] f = fragments[i];
+            Fragment fragment = new Fragment(f[0], f[1], f[2], f[3]);
+            fragment.setCanvas(canvas);
+            fragment.setId(i + 1);
+            saved.add(service.saveFragment(new MockMultipartFile("image", gradientBmp(f[2], f[3])), fragment));
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(canvas)).thenReturn(saved);
+        Set<Integer> open = ConcurrentHashMap.newKeySet();
+        Mockito.doAnswer(invocation -> {
+            FragmentImage image = (FragmentImage) invocation.callRealMethod();
+            int id = invocation.getArgument(0);
+            open.add(id);
+            return new FragmentImage() {
+                @Override
+                public int getWidth() {
+                    return image.getWidth();
+                }
+
+                @Override
+                public int getHeight() {
+                    return image.getHeight();
+                }
+
+                @Override
+                public void copyTo(int srcX, int srcY, BufferedImage dst, int dstX, int dstY, int width, int height)
+                        throws IOException {
+                    image.copyTo(srcX, srcY, dst, dstX, dstY, width, height);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    open.remove(id);
+                    image.close();
+                }
+            };
+        }).when(service).loadImage(Mockito.anyInt());
+
+        // первая и последняя области лежат на фрагменте 1, средняя - на фрагменте 2
+        List<Fragment> regions = List.of(new Fragment(0, 0, 50, 50), new Fragment(200, 0, 50, 50),
+                new Fragment(50, 50, 50, 50));
+        List<Set<Integer>> openBefore = new ArrayList<>();
+        service.writeRegions(canvas, 0, regions, index -> {
+            openBefore.add(Set.copyOf(open));
+            return new BmpWriter(new ByteArrayOutputStream(), regions.get(index).getWidth(),
+                    regions.get(index).getHeight());
+        });
+
+        assertEquals(List.of(Set.of(), Set.of(1), Set.of(1)), openBefore);
+        assertTrue(open.isEmpty());
+    }
+
+    @Test
+    void saveFragment_shouldRejectImageOfOtherSize(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(100, 100);
+        canvas.setId(12);
+        Fragment fragment = new Fragment(0, 0, 10, 10);
+        fragment.setCanvas(canvas);
+        fragment.setId(1);
+
+        assertThrows(ImageSizeException.class,
+                () -> fragmentService.saveFragment(new MockMultipartFile("image", gradientBmp(10, 11)), fragment));
+        assertThrows(FileNotFoundException.class, () -> fragmentService.loadImage(1));
+    }
+
+    @Test
+    void saveFragment_shouldFeedPyramidWithoutDecodingBmp(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        FragmentService service = Mockito.spy(createFragmentService(tileStore, FragmentFormat.BMP, 2));
+        Canvas canvas = new Canvas(200, 150);
+        canvas.setId(19);
+        Fragment fragment = new Fragment(10, 20, 150, 100);
+        fragment.setCanvas(canvas);
+        fragment.setId(1);
+
+        service.saveFragment(new MockMultipartFile("image", gradientBmp(150, 100)), fragment);
+
+        Mockito.verify(service, Mockito.never()).loadImage(Mockito.anyInt());
+        assertEquals(FragmentFormat.BMP, new FragmentStorage(FragmentFormat.BMP).getStoredFormat(1));
+        assertArrayEquals(new String[0], FileUtil.getStagingAbsolutePath().list());
+        BufferedImage level = new BufferedImage(100, 75, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 1, 0, 0, level);
+        for (int y = 10; y < 60; y++)
+            for (int x = 5; x < 80; x++)
+                assertEquals(((x * 2 - 10) * 0x010203 ^ (y * 2 - 20) * 0x030501) & 0xffffff,
+                        level.getRGB(x, y) & 0xffffff, x + "," + y);
+    }
+
+    @Test
+    void saveFragment_shouldStoreOnlyPartOnCanvas(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(300, 300);
+        canvas.setId(13);
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(gradientBmp(250, 200)));
+        for (FragmentFormat format : FragmentFormat.values()) {
+            FragmentService service = createFragmentService(tileStore, format, 0);
+            Fragment fragment = new Fragment(100, 150, 250, 200);
+            fragment.setCanvas(canvas);
+            fragment.setId(format.ordinal() + 1);
+            service.saveFragment(new MockMultipartFile("image", gradientBmp(250, 200)), fragment);
+
+            try (FragmentImage stored = service.loadImage(fragment.getId())) {
+                assertEquals(200, stored.getWidth());
+                assertEquals(150, stored.getHeight());
+                BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+                stored.copyTo(0, 0, image, 0, 0, 200, 150);
+                for (int y = 0; y < 150; y++)
+                    for (int x = 0; x < 200; x++)
+                        assertEquals(expected.getRGB(x, y), image.getRGB(x, y), format + " " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void saveFragment_shouldWriteSameTilesAsFragments(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(600, 700);
+        canvas.setId(14);
+        TileStore tiles = new TileStore(StorageMode.TILES);
+        FragmentService fragmentsService = createFragmentService(tileStore, FragmentFormat.RAW, 2);
+        FragmentService tilesService = createFragmentService(tiles, FragmentFormat.RAW, 2);
+        int[][] fragments = {{30, 200, 500, 400}, {250, 10, 400, 650}};
+        List<Fragment> saved = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            int[] f = fragments[i];
+            Fragment fragment = new Fragment(f[0], f[1], f[2], f[3]);
+            fragment.setCanvas(canvas);
+            fragment.setId(i + 1);
+            fragment.setDate(ZonedDateTime.now().plusNanos(1000L * i));
+            byte[] bmp = gradientBmp(f[2], f[3]);
+            saved.add(fragmentsService.saveFragment(new MockMultipartFile("image", bmp), fragment));
+            tilesService.saveFragment(new MockMultipartFile("image", bmp), fragment);
+        }
+        when(fragmentRepository.getFragmentsByCanvasOrderByDate(canvas)).thenReturn(saved);
+
+        for (int level = 0; level <= 2; level++) {
+            Fragment region = new Fragment(0, 0, 600 >> level, 700 >> level);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            fragmentsService.writeFragments(canvas, level, region, expected);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            tilesService.writeFragments(canvas, level, region, actual);
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray(), "level " + level);
+        }
+    }
+
+    @Test
+    void saveFragment_shouldNotTouchTilesWithTruncatedImage(@TempDir Path dataDir) throws IOException {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        Canvas canvas = new Canvas(600, 600);
+        canvas.setId(15);
+        FragmentService service = createFragmentService(new TileStore(StorageMode.TILES), FragmentFormat.BMP, 1);
+        Fragment first = new Fragment(0, 0, 600, 600);
+        first.setCanvas(canvas);
+        first.setId(1);
+        service.saveFragment(new MockMultipartFile("image", gradientBmp(600, 600)), first);
+        byte[][] before = new byte[2][];
+        for (int level = 0; level <= 1; level++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.writeFragments(canvas, level, new Fragment(0, 0, 600 >> level, 600 >> level), out);
+            before[level] = out.toByteArray();
+        }
+
+        // BMP хранит строки снизу вверх: нижние 512 строк прочитаются целиком, обрыв случится в верхних
+        ByteArrayOutputStream black = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(600, 600, BufferedImage.TYPE_3BYTE_BGR), "bmp", black);
+        byte[] bmp = Arrays.copyOf(black.toByteArray(), BmpWriter.HEADER_SIZE + BmpWriter.getRowSize(600) * 550);
+        Fragment second = new Fragment(0, 0, 600, 600);
+        second.setCanvas(canvas);
+        second.setId(2);
+        assertThrows(IOException.class, () -> service.saveFragment(new MockMultipartFile("image", bmp), second));
+
+        for (int level = 0; level <= 1; level++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.writeFragments(canvas, level, new Fragment(0, 0, 600 >> level, 600 >> level), out);
+            assertArrayEquals(before[level], out.toByteArray(), "level " + level);
+        }
+        assertEquals(0, FileUtil.getStagingAbsolutePath().list().length);
+    }
+
+    private static byte[] gradientBmp(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, x * 0x010203 ^ y * 0x030501);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", bmp);
+        return bmp.toByteArray();
+    }
+
+    @Test
+    void writeFragments_shouldNotSeeFragmentsBeingReplacedInFragmentsMode(@TempDir Path dataDir) throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        stress(fragmentService);
+    }
+
+    @Test
+    void writeFragments_shouldNotSeeHalfWrittenTiles(@TempDir Path dataDir) throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        stress(createFragmentService(new TileStore(StorageMode.TILES)));
+    }
+
+    @Test
+    void writeFragments_shouldNotBlockWritersWhileClientIsStalledInFragmentsMode(@TempDir Path dataDir)
+            throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        stalledReader(fragmentService, 0);
+    }
+
+    @Test
+    void writeFragments_shouldNotBlockWritersWhileClientIsStalledInTilesMode(@TempDir Path dataDir)
+            throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        stalledReader(createFragmentService(new TileStore(StorageMode.TILES)), 0);
+    }
+
+    @Test
+    void writeFragments_shouldNotBlockWritersWhileClientIsStalledOnLevel(@TempDir Path dataDir) throws Exception {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        stalledReader(createFragmentService(tileStore, FragmentFormat.BMP, 1), 1);
+    }
+
+    /**
+     * Клиент перестает читать ответ после первой строки. Пока он стоит, фрагмент поверх всей области
+     * должен сохраниться, а перекрытый им - удалиться. Застрявший ответ при этом дорисовывается
+     * из состояния холста до сохранения
+     */
+    private void stalledReader(FragmentService service, int level) throws Exception {
+        Canvas canvas = new Canvas(512, 512);
+        canvas.setId(12);
+        service.getIncidentFragments(canvas, new Fragment(0, 0, 512, 512));
+        saveSolid(service, canvas, 1, Color.RED);
+        Fragment region = new Fragment(0, 0, 512 >> level, 512 >> level);
+
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch resumed = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BmpWriter bmp = new BmpWriter(out, region.getWidth(), region.getHeight());
+        RasterWriter client = new RasterWriter() {
+            private boolean first = true;
+
+            @Override
+            public void writeHeader() throws IOException {
+                bmp.writeHeader();
+            }
+
+            @Override
+            public void writeRow(int[] rgb, int offset) throws IOException {
+                if (first) {
+                    first = false;
+                    stalled.countDown();
+                    try {
+                        resumed.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                bmp.writeRow(rgb, offset);
+            }
+
+            @Override
+            public boolean isBottomUp() {
+                return bmp.isBottomUp();
+            }
+
+            @Override
+            public void finish() throws IOException {
+                bmp.finish();
+            }
+
+            @Override
+            public long getSize() {
+                return bmp.getSize();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                service.writeFragments(canvas, level, region, client);
+                return null;
+            });
+            assertTrue(stalled.await(1, TimeUnit.MINUTES));
+            Future<?> writer = executor.submit(() -> saveSolid(service, canvas, 2, Color.BLUE));
+            try {
+                writer.get(10, TimeUnit.SECONDS);
+            } finally {
+                resumed.countDown();
+            }
+            reader.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertSolid(out.toByteArray(), Color.RED);
+
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        service.writeFragments(canvas, level, region, after);
+        assertSolid(after.toByteArray(), Color.BLUE);
+    }
+
+    private Void saveSolid(FragmentService service, Canvas canvas, int id, Color color) throws IOException {
+        BufferedImage image = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setPaint(color);
+        g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", bmp);
+
+        Fragment fragment = new Fragment(0, 0, canvas.getWidth(), canvas.getHeight());
+        fragment.setCanvas(canvas);
+        fragment.setId(id);
+        service.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment);
+        service.removeInnerFragments(canvas, fragment);
+        return null;
+    }
+
+    private void assertSolid(byte[] bmp, Color color) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bmp));
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                assertEquals(color.getRGB(), image.getRGB(x, y), "pixel at " + x + "," + y);
+    }
+
+    /**
+     * Писатели параллельно перезаписывают свои слоты холста (слоты не пересекаются, но делят ячейки и тайлы)
+     * сплошными цветами и удаляют перекрытые фрагменты, читатели в это время рисуют весь холст.
+     * Каждый слот в каждом ответе должен быть одного цвета
+     */
+    private void stress(FragmentService service) throws Exception {
+        Canvas canvas = new Canvas(640, 400);
+        canvas.setId(11);
+        Fragment whole = new Fragment(0, 0, 640, 400);
+        service.getIncidentFragments(canvas, whole);
+        Fragment[] slots = {new Fragment(0, 0, 320, 200), new Fragment(320, 0, 320, 200),
+                new Fragment(0, 200, 320, 200), new Fragment(320, 200, 320, 200)};
+        AtomicInteger ids = new AtomicInteger();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger reads = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(slots.length + 3);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (Fragment slot : slots)
+                writers.add(executor.submit(() -> {
+                    Random random = new Random(slot.getX() * 31L + slot.getY());
+                    for (int i = 0; i < 30; i++) {
+                        BufferedImage image = new BufferedImage(slot.getWidth(), slot.getHeight(),
+                                BufferedImage.TYPE_3BYTE_BGR);
+                        Graphics2D g2d = image.createGraphics();
+                        g2d.setPaint(new Color(random.nextInt(0xffffff) + 1));
+                        g2d.fillRect(0, 0, slot.getWidth(), slot.getHeight());
+                        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+                        ImageIO.write(image, "bmp", bmp);
+
+                        Fragment fragment = new Fragment(slot.getX(), slot.getY(), slot.getWidth(), slot.getHeight());
+                        fragment.setCanvas(canvas);
+                        fragment.setId(ids.incrementAndGet());
+                        fragment.setDate(ZonedDateTime.now());
+                        service.saveFragment(new MockMultipartFile("image", bmp.toByteArray()), fragment);
+                        service.removeInnerFragments(canvas, fragment);
+                    }
+                    return null;
+                }));
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++)
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        service.writeFragments(canvas, 0, whole, new BmpWriter(out, 640, 400));
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+                        for (Fragment slot : slots) {
+                            int color = image.getRGB(slot.getX(), slot.getY());
+                            for (int y = slot.getY(); y < slot.getY() + slot.getHeight(); y++)
+                                for (int x = slot.getX(); x < slot.getX() + slot.getWidth(); x++)
+                                    assertEquals(color, image.getRGB(x, y), "torn slot at " + x + "," + y);
+                        }
+                        reads.incrementAndGet();
+                    }
+                    return null;
+                }));
+            try {
+                for (Future<?> writer : writers)
+                    writer.get(1, TimeUnit.MINUTES);
+            } finally {
+                writing.set(false);
+            }
+            for (Future<?> reader : readers)
+                reader.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(reads.get() > 0);
+    }
+
+    private FragmentService createFragmentService(TileStore tileStore) {
+        return createFragmentService(tileStore, FragmentFormat.BMP, 0);
+    }
+
+    private FragmentService createFragmentService(TileStore tileStore, FragmentFormat format, int levels) {
+        return createFragmentService(tileStore, format, levels, new RegionLocks());
+    }
+
+    private FragmentService createFragmentService(TileStore tileStore, FragmentFormat format, int levels,
+                                                  RegionLocks regionLocks) {
+        return new FragmentService(fragmentRepository, canvasRepository,
+                tileStore, new FragmentIndex(), fragmentCache,
+                new FragmentStorage(format), new RenderPool(1, 1), new IoPool(1),
+                new FragmentMetrics(new SimpleMeterRegistry(), fragmentCache, regionCache),
+                new Pyramid(tileStore, levels), regionCache, new TileJournal(StorageMode.FRAGMENTS), regionLocks);
+    }
+
     @Test
     void getInsertPosition_shouldReturnNumber() {
         assertEquals(0, fragmentService.getInsertPosition(70, 70, 70, 100));
         assertEquals(20, fragmentService.getInsertPosition(90, 70, 70, 100));
     }
+
+    private Fragment fragment(int id, ZonedDateTime date, int x, int y, int width, int height) {
+        Fragment fragment = new Fragment(x, y, width, height);
+        fragment.setId(id);
+        fragment.setDate(date);
+        return fragment;
+    }
 }
@@ -0,0 +1,203 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.storage.FragmentFormat;
+import com.naname.chartographer.storage.FragmentImage;
+import com.naname.chartographer.storage.FragmentStorage;
+import com.naname.chartographer.storage.FragmentWriter;
+import com.naname.chartographer.util.FileUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentStorageUnitTests {
+
+    private final FragmentStorage fragmentStorage = new FragmentStorage(FragmentFormat.BMP);
+
+    @TempDir
+    Path dataDir;
+
+    private Path fragments;
+
+    @BeforeEach
+    void setUp() {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        fragments = FileUtil.getFragmentsAbsolutePath().toPath();
+    }
+
+    @Test
+    void getPath_shouldUseNestedDirectories() {
+        assertEquals(fragments.resolve("3c").resolve("2b").resolve("1715004.bmp"), fragmentStorage.getPath(0x1a2b3c));
+        assertEquals(fragments.resolve("07").resolve("00").resolve("7.bmp"), fragmentStorage.getPath(7));
+    }
+
+    @Test
+    void save_shouldBeLoadedAndDeleted() throws IOException {
+        BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(2, 1, 0x123456);
+        fragmentStorage.save(image, 300);
+
+        BufferedImage loaded = ImageIO.read(fragmentStorage.load(300));
+        assertEquals(3, loaded.getWidth());
+        assertEquals(0x123456, loaded.getRGB(2, 1) & 0xFFFFFF);
+        fragmentStorage.delete(300);
+        assertThrows(FileNotFoundException.class, () -> fragmentStorage.load(300));
+    }
+
+    @Test
+    void deleteUnreferenced_shouldKeepReferencedAndRecentFiles() throws IOException {
+        for (int id = 1; id <= 3; id++)
+            fragmentStorage.save(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), id);
+        FileTime old = FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS));
+        Files.setLastModifiedTime(fragmentStorage.getPath(1), old);
+        Files.setLastModifiedTime(fragmentStorage.getPath(2), old);
+
+        assertEquals(1, fragmentStorage.deleteUnreferenced(id -> id == 1, Instant.now().minus(1, ChronoUnit.HOURS)));
+
+        assertTrue(Files.exists(fragmentStorage.getPath(1)));
+        assertFalse(Files.exists(fragmentStorage.getPath(2)));
+        assertTrue(Files.exists(fragmentStorage.getPath(3)));
+    }
+
+    @Test
+    void createWriter_shouldShowFileOnlyAfterFinish() throws IOException {
+        int[] pixels = new int[7 * 5];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = i * 0x050301;
+
+        try (FragmentWriter writer = fragmentStorage.createWriter(9, 7, 5)) {
+            writer.writeHeader();
+            for (int y = 4; y >= 0; y--)
+                writer.writeRow(pixels, y * 7);
+            assertFalse(Files.exists(fragmentStorage.getPath(9)));
+            writer.finish();
+        }
+
+        BufferedImage image = ImageIO.read(fragmentStorage.load(9));
+        for (int y = 0; y < 5; y++)
+            for (int x = 0; x < 7; x++)
+                assertEquals(pixels[y * 7 + x], image.getRGB(x, y) & 0xFFFFFF);
+    }
+
+    @Test
+    void createWriter_shouldLeaveNothingWithoutFinish() throws IOException {
+        try (FragmentWriter writer = fragmentStorage.createWriter(10, 7, 5)) {
+            writer.writeHeader();
+            writer.writeRow(new int[7], 0);
+        }
+
+        assertThrows(FileNotFoundException.class, () -> fragmentStorage.getStoredFormat(10));
+        try (Stream<Path> files = Files.list(fragmentStorage.getPath(10).getParent())) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void save_shouldStoreRawPixels() throws IOException {
+        FragmentStorage rawStorage = new FragmentStorage(FragmentFormat.RAW);
+        BufferedImage image = new BufferedImage(30, 20, BufferedImage.TYPE_3BYTE_BGR);
+        for (int i = 0; i < 20; i++)
+            for (int j = 0; j < 30; j++)
+                image.setRGB(j, i, i * 1000 + j);
+
+        rawStorage.save(image, 5);
+
+        assertEquals(FragmentFormat.RAW, fragmentStorage.getStoredFormat(5));
+        BufferedImage res = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        try (FragmentImage fragmentImage = rawStorage.map(5)) {
+            assertEquals(30, fragmentImage.getWidth());
+            assertEquals(20, fragmentImage.getHeight());
+            fragmentImage.copyTo(20, 10, res, 1, 2, 9, 8);
+        }
+        assertEquals(0, res.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(image.getRGB(20, 10), res.getRGB(1, 2));
+        assertEquals(image.getRGB(28, 17), res.getRGB(9, 9));
+    }
+
+    @Test
+    void save_shouldStoreCompressedRowBlocks() throws IOException {
+        FragmentStorage compressedStorage = new FragmentStorage(FragmentFormat.DEFLATE);
+        BufferedImage image = new BufferedImage(50, 100, BufferedImage.TYPE_3BYTE_BGR);
+        for (int i = 0; i < 100; i++)
+            for (int j = 0; j < 50; j++)
+                image.setRGB(j, i, i < 60 ? 0xf0e0d0 : i * 1000 + j);
+
+        compressedStorage.save(image, 6);
+
+        assertEquals(FragmentFormat.DEFLATE, fragmentStorage.getStoredFormat(6));
+        assertTrue(Files.size(fragmentStorage.getPath(6, FragmentFormat.DEFLATE)) < 50 * 100 * 3 / 2);
+        BufferedImage res = new BufferedImage(20, 70, BufferedImage.TYPE_INT_RGB);
+        try (FragmentImage fragmentImage = compressedStorage.open(6, FragmentFormat.DEFLATE)) {
+            assertEquals(50, fragmentImage.getWidth());
+            assertEquals(100, fragmentImage.getHeight());
+            fragmentImage.copyTo(25, 30, res, 1, 2, 19, 68);
+        }
+        assertEquals(0, res.getRGB(0, 0) & 0xFFFFFF);
+        for (int i = 0; i < 68; i++)
+            for (int j = 0; j < 19; j++)
+                assertEquals(image.getRGB(25 + j, 30 + i), res.getRGB(1 + j, 2 + i));
+    }
+
+    @Test
+    void copyTo_shouldCopyCompressedBlocksRepeatedlyFromSeveralThreads() throws Exception {
+        FragmentStorage compressedStorage = new FragmentStorage(FragmentFormat.DEFLATE);
+        BufferedImage image = new BufferedImage(40, 200, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 200; i++)
+            for (int j = 0; j < 40; j++)
+                image.setRGB(j, i, i < 100 ? 0x102030 : i * 7919 + j * 31);
+        compressedStorage.save(image, 8);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (FragmentImage fragmentImage = compressedStorage.open(8, FragmentFormat.DEFLATE)) {
+            List<Future<?>> copies = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int type = t % 2 == 0 ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR;
+                copies.add(executor.submit(() -> {
+                    for (int k = 0; k < 50; k++) {
+                        int y = k * 37 % 150;
+                        int x = k % 10;
+                        BufferedImage res = new BufferedImage(30, 50, type);
+                        fragmentImage.copyTo(x, y, res, 0, 0, 30, 50);
+                        for (int i = 0; i < 50; i++)
+                            for (int j = 0; j < 30; j++)
+                                assertEquals(image.getRGB(x + j, y + i), res.getRGB(j, i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> copy : copies)
+                copy.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void migrateFlatLayout_shouldMoveOldFiles() throws IOException {
+        Files.write(fragments.resolve("12.bmp"), new byte[]{12});
+        Files.write(fragments.resolve("notes.bmp"), new byte[]{1});
+
+        fragmentStorage.migrateFlatLayout();
+
+        assertFalse(Files.exists(fragments.resolve("12.bmp")));
+        assertTrue(Files.exists(fragments.resolve("notes.bmp")));
+        assertArrayEquals(new byte[]{12}, Files.readAllBytes(fragmentStorage.load(12).toPath()));
+    }
+}
@@ -0,0 +1,78 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.image.ImageFormat;
+import com.naname.chartographer.image.RasterWriter;
+import com.naname.chartographer.storage.MappedFragmentImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageFormatUnitTests {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 11;
+
+    @Test
+    void negotiate_shouldPreferQualityAndSpecificType() {
+        assertEquals(ImageFormat.BMP, ImageFormat.negotiate(List.of()));
+        assertEquals(ImageFormat.BMP, ImageFormat.negotiate(MediaType.parseMediaTypes("*/*")));
+        assertEquals(ImageFormat.PNG, ImageFormat.negotiate(MediaType.parseMediaTypes("image/*;q=0.5, image/png")));
+        assertEquals(ImageFormat.PNG, ImageFormat.negotiate(MediaType.parseMediaTypes("image/*, image/bmp;q=0")));
+        assertEquals(ImageFormat.RAW, ImageFormat.negotiate(
+                MediaType.parseMediaTypes("application/vnd.chartographer.raw, image/bmp;q=0.9")));
+        assertNull(ImageFormat.negotiate(MediaType.parseMediaTypes("text/plain, image/png;q=0")));
+    }
+
+    @Test
+    void createWriter_shouldWriteDecodableImages(@TempDir Path dir) throws IOException {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = i * 7919 & 0xffffff;
+
+        for (ImageFormat format : List.of(ImageFormat.BMP, ImageFormat.PNG)) {
+            byte[] bytes = write(format, pixels);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            assertEquals(WIDTH, image.getWidth());
+            assertEquals(HEIGHT, image.getHeight());
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    assertEquals(pixels[y * WIDTH + x], image.getRGB(x, y) & 0xffffff, format + " " + x + "," + y);
+        }
+
+        Path raw = dir.resolve("region.raw");
+        Files.write(raw, write(ImageFormat.RAW, pixels));
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        try (MappedFragmentImage fragment = new MappedFragmentImage(raw)) {
+            fragment.copyTo(0, 0, image, 0, 0, WIDTH, HEIGHT);
+        }
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(pixels[y * WIDTH + x], image.getRGB(x, y) & 0xffffff);
+    }
+
+    private static byte[] write(ImageFormat format, int[] pixels) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RasterWriter writer = format.createWriter(out, WIDTH, HEIGHT, Deflater.BEST_SPEED)) {
+            writer.writeHeader();
+            for (int i = 0; i < HEIGHT; i++) {
+                int row = writer.isBottomUp() ? HEIGHT - 1 - i : i;
+                writer.writeRow(pixels, row * WIDTH);
+            }
+            writer.finish();
+            assertEquals(out.size(), writer.getSize());
+        }
+        return out.toByteArray();
+    }
+}
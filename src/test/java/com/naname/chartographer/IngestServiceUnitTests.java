@@ -0,0 +1,109 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.ingest.IngestJob;
+import com.naname.chartographer.ingest.IngestService;
+import com.naname.chartographer.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestServiceUnitTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final IngestService ingestService = new IngestService(1, 2, registry);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @TempDir
+    Path dataDir;
+
+    @BeforeEach
+    void setUp() {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        ingestService.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        release.countDown();
+        ingestService.destroy();
+    }
+
+    @Test
+    void submit_shouldRunJobsOfCanvasInOrder() throws Exception {
+        List<String> contents = Collections.synchronizedList(new ArrayList<>());
+        IngestService.IngestTask task = images -> contents.add(new String(images.get(0).getBytes()));
+
+        IngestJob first = ingestService.submit(1, List.of(image("first")), task);
+        IngestJob second = ingestService.submit(1, List.of(image("second")), task);
+        await(second);
+
+        assertEquals(List.of("first", "second"), contents);
+        assertEquals(IngestJob.Status.DONE, first.getStatus());
+        assertSame(second, ingestService.getJob(second.getId()));
+        try (var staged = Files.list(FileUtil.getStagingAbsolutePath().toPath())) {
+            assertEquals(0, staged.count());
+        }
+    }
+
+    @Test
+    void submit_shouldRejectWhenQueueIsFull() throws Exception {
+        IngestService.IngestTask blocking = images -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        IngestJob running = ingestService.submit(1, List.of(image("a")), blocking);
+        while (running.getStatus() == IngestJob.Status.QUEUED)
+            Thread.sleep(1);
+        ingestService.submit(1, List.of(image("b")), blocking);
+        ingestService.submit(1, List.of(image("c")), blocking);
+
+        assertThrows(RejectedExecutionException.class,
+                () -> ingestService.submit(1, List.of(image("d")), blocking));
+        assertEquals(2, ingestService.getQueueDepth());
+        assertEquals(2, registry.get("chartographer.ingest.queue").gauge().value());
+        assertEquals(1, registry.get("chartographer.ingest.rejected").counter().count());
+    }
+
+    @Test
+    void submit_shouldReportFailure() throws Exception {
+        IngestJob job = ingestService.submit(1, List.of(image("a")), images -> {
+            throw new IOException("broken image");
+        });
+        await(job);
+
+        assertEquals(IngestJob.Status.FAILED, job.getStatus());
+        assertEquals("broken image", job.getError());
+    }
+
+    private MultipartFile image(String content) {
+        return new MockMultipartFile("image", content.getBytes());
+    }
+
+    private void await(IngestJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.getFinished() == null && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertNotNull(job.getFinished());
+    }
+}
@@ -0,0 +1,56 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.util.LruCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LruCacheUnitTests {
+
+    private final LruCache<Integer, String> cache = new LruCache<>(10, String::length);
+
+    @Test
+    void put_shouldEvictLeastRecentlyUsed() {
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        cache.get(1);
+        cache.put(3, "cccc");
+
+        assertEquals("aaaa", cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals("cccc", cache.get(3));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8, cache.getWeight());
+    }
+
+    @Test
+    void put_shouldSkipValuesHeavierThanBudget() {
+        cache.put(1, "aaaa");
+        cache.put(1, "aaaaaaaaaaa");
+
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    void get_shouldCountHitsAndMisses() {
+        cache.put(1, "a");
+        cache.get(1);
+        cache.get(2);
+        cache.get(1);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void invalidate_shouldReleaseWeight() {
+        cache.put(1, "aaa");
+        cache.put(2, "bb");
+        cache.invalidate(1);
+        cache.invalidateIf(key -> key == 2);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+}
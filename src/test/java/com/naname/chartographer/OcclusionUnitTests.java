@@ -0,0 +1,75 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.Occlusion;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OcclusionUnitTests {
+
+    @Test
+    void getVisibleParts_shouldMatchPixelOwnership() {
+        Random random = new Random(7);
+        for (int test = 0; test < 50; test++) {
+            List<Fragment> fragments = new ArrayList<>();
+            for (int i = 1; i <= 20; i++)
+                fragments.add(fragment(i, random.nextInt(100), random.nextInt(100),
+                        1 + random.nextInt(60), 1 + random.nextInt(60)));
+            Rectangle area = new Rectangle(random.nextInt(50), random.nextInt(50),
+                    1 + random.nextInt(80), 1 + random.nextInt(80));
+
+            int[][] expected = new int[area.height][area.width];
+            for (Fragment fragment : fragments)
+                for (int y = Math.max(area.y, fragment.getY());
+                     y < Math.min(area.y + area.height, fragment.getY() + fragment.getHeight()); y++)
+                    for (int x = Math.max(area.x, fragment.getX());
+                         x < Math.min(area.x + area.width, fragment.getX() + fragment.getWidth()); x++)
+                        expected[y - area.y][x - area.x] = fragment.getId();
+
+            int[][] actual = new int[area.height][area.width];
+            for (Occlusion.Part part : Occlusion.getVisibleParts(fragments, area)) {
+                Rectangle rect = part.getArea();
+                assertTrue(area.contains(rect));
+                for (int y = rect.y; y < rect.y + rect.height; y++)
+                    for (int x = rect.x; x < rect.x + rect.width; x++) {
+                        assertEquals(0, actual[y - area.y][x - area.x], "parts overlap");
+                        actual[y - area.y][x - area.x] = part.getFragment().getId();
+                    }
+            }
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void getVisibleParts_shouldSkipHiddenFragments() {
+        List<Fragment> fragments = List.of(
+                fragment(1, 10, 10, 20, 20),
+                fragment(2, 50, 50, 10, 10),
+                fragment(3, 0, 0, 40, 40));
+
+        List<Occlusion.Part> parts = Occlusion.getVisibleParts(fragments, new Rectangle(0, 0, 40, 40));
+
+        assertEquals(1, parts.size());
+        assertEquals(3, parts.get(0).getFragment().getId());
+        assertEquals(new Rectangle(0, 0, 40, 40), parts.get(0).getArea());
+    }
+
+    @Test
+    void getVisibleParts_shouldReturnNothingForEmptyArea() {
+        List<Fragment> fragments = List.of(fragment(1, 0, 0, 10, 10));
+
+        assertTrue(Occlusion.getVisibleParts(fragments, new Rectangle(0, 0, 0, 0)).isEmpty());
+    }
+
+    private Fragment fragment(int id, int x, int y, int width, int height) {
+        Fragment fragment = new Fragment(x, y, width, height);
+        fragment.setId(id);
+        return fragment;
+    }
+}
@@ -0,0 +1,100 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.storage.DecodedFragmentImage;
+import com.naname.chartographer.storage.Pyramid;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PyramidUnitTests {
+
+    private final TileStore tileStore = new TileStore(StorageMode.FRAGMENTS);
+
+    private final Pyramid pyramid = new Pyramid(tileStore, 3);
+
+    private final Canvas canvas = new Canvas(700, 600);
+
+    @TempDir
+    Path dataDir;
+
+    @BeforeEach
+    void setUp() {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        canvas.setId(1);
+    }
+
+    @Test
+    void update_shouldMatchPointSampledCanvas() throws IOException {
+        Random random = new Random(3);
+        BufferedImage expected = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 20; i++) {
+            Fragment fragment = new Fragment(random.nextInt(700), random.nextInt(600),
+                    1 + random.nextInt(400), 1 + random.nextInt(400));
+            BufferedImage image = new BufferedImage(fragment.getWidth(), fragment.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < image.getHeight(); y++)
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int rgb = random.nextInt() & 0xFFFFFF;
+                    image.setRGB(x, y, rgb);
+                    if (fragment.getX() + x < canvas.getWidth() && fragment.getY() + y < canvas.getHeight())
+                        expected.setRGB(fragment.getX() + x, fragment.getY() + y, rgb);
+                }
+            pyramid.update(canvas, fragment, new DecodedFragmentImage(image));
+        }
+
+        for (int level = 1; level <= 3; level++) {
+            int scale = 1 << level;
+            int width = TileStore.getLevelSize(canvas.getWidth(), level);
+            int height = TileStore.getLevelSize(canvas.getHeight(), level);
+            BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            tileStore.read(canvas, level, 0, 0, res);
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    assertEquals(expected.getRGB(x * scale, y * scale), res.getRGB(x, y),
+                            "level " + level + " at (" + x + ";" + y + ")");
+        }
+    }
+
+    @Test
+    void update_shouldSkipFragmentsBetweenSamples() throws IOException {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0xFFFFFF);
+        pyramid.update(canvas, new Fragment(3, 3, 1, 1), new DecodedFragmentImage(image));
+
+        BufferedImage res = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 1, 0, 0, res);
+        for (int y = 0; y < 4; y++)
+            for (int x = 0; x < 4; x++)
+                assertEquals(0, res.getRGB(x, y) & 0xFFFFFF);
+    }
+
+    @Test
+    void isBuilt_shouldFollowMarker() throws IOException {
+        assertFalse(pyramid.isBuilt(canvas.getId()));
+
+        pyramid.markBuilt(canvas.getId());
+        assertTrue(pyramid.isBuilt(canvas.getId()));
+        assertTrue(new Pyramid(tileStore, 3).isBuilt(canvas.getId()));
+        assertFalse(new Pyramid(tileStore, 5).isBuilt(canvas.getId()));
+    }
+
+    @Test
+    void getLevelSize_shouldRoundUp() {
+        assertEquals(350, TileStore.getLevelSize(700, 1));
+        assertEquals(88, TileStore.getLevelSize(700, 3));
+        assertEquals(1, TileStore.getLevelSize(1, 4));
+        assertEquals(50000, TileStore.getLevelSize(50000, 0));
+    }
+}
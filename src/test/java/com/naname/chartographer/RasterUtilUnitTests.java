@@ -0,0 +1,51 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.util.RasterUtil;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RasterUtilUnitTests {
+
+    private final Random random = new Random(7);
+
+    @Test
+    void copy_shouldMatchPerPixelCopy() {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB};
+        for (int type : types) {
+            BufferedImage src = randomImage(70, 50, type);
+            BufferedImage dst = new BufferedImage(60, 40, BufferedImage.TYPE_INT_RGB);
+
+            RasterUtil.copy(src, 10, 5, dst, 3, 4, 40, 30);
+
+            for (int i = 0; i < 40; i++)
+                for (int j = 0; j < 60; j++) {
+                    boolean inside = j >= 3 && j < 43 && i >= 4 && i < 34;
+                    int expected = inside ? src.getRGB(j - 3 + 10, i - 4 + 5) : 0xFF000000;
+                    assertEquals(expected, dst.getRGB(j, i), "type " + type + " pixel " + j + ";" + i);
+                }
+        }
+    }
+
+    @Test
+    void copy_shouldRespectSubimageOffsets() {
+        BufferedImage src = randomImage(50, 50, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage dst = new BufferedImage(50, 50, BufferedImage.TYPE_INT_RGB);
+
+        RasterUtil.copy(src.getSubimage(10, 20, 30, 30), 5, 5, dst.getSubimage(1, 2, 40, 40), 0, 0, 10, 10);
+
+        assertEquals(src.getRGB(15, 25), dst.getRGB(1, 2));
+        assertEquals(src.getRGB(24, 34), dst.getRGB(10, 11));
+    }
+
+    private BufferedImage randomImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int i = 0; i < height; i++)
+            for (int j = 0; j < width; j++)
+                image.setRGB(j, i, 0xFF000000 | random.nextInt(0xFFFFFF));
+        return image;
+    }
+}
@@ -0,0 +1,70 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Fragment;
+import com.naname.chartographer.data.RegionCache;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionCacheUnitTests {
+
+    private final RegionCache cache = new RegionCache(1600);
+
+    @Test
+    void invalidate_shouldRemoveOnlyIntersectingRegions() {
+        Fragment left = new Fragment(0, 0, 10, 10);
+        Fragment right = new Fragment(20, 0, 10, 10);
+        cache.put(1, 0, left, new byte[10], cache.getGeneration(1));
+        cache.put(1, 0, right, new byte[10], cache.getGeneration(1));
+        cache.put(2, 0, left, new byte[10], cache.getGeneration(2));
+
+        cache.invalidate(1, List.of(new Rectangle(5, 5, 10, 10)));
+
+        assertNull(cache.get(1, 0, left));
+        assertNotNull(cache.get(1, 0, right));
+        assertNotNull(cache.get(2, 0, left));
+    }
+
+    @Test
+    void invalidate_shouldScaleRegionsOfLevels() {
+        Fragment region = new Fragment(0, 0, 10, 10);
+        cache.put(1, 2, region, new byte[10], cache.getGeneration(1));
+
+        cache.invalidate(1, List.of(new Rectangle(100, 100, 10, 10)));
+        assertNotNull(cache.get(1, 2, region));
+
+        cache.invalidate(1, List.of(new Rectangle(39, 39, 1, 1)));
+        assertNull(cache.get(1, 2, region));
+    }
+
+    @Test
+    void put_shouldSkipRegionsRenderedBeforeWrite() {
+        Fragment region = new Fragment(0, 0, 10, 10);
+        long generation = cache.getGeneration(1);
+        cache.invalidate(1, List.of(new Rectangle(0, 0, 1, 1)));
+
+        cache.put(1, 0, region, new byte[10], generation);
+
+        assertNull(cache.get(1, 0, region));
+    }
+
+    @Test
+    void evict_shouldRemoveAllRegionsOfCanvas() {
+        cache.put(1, 0, new Fragment(0, 0, 10, 10), new byte[10], cache.getGeneration(1));
+        cache.put(1, 1, new Fragment(0, 0, 10, 10), new byte[10], cache.getGeneration(1));
+
+        cache.evict(1);
+
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    void isCacheable_shouldLimitEntrySize() {
+        assertTrue(cache.isCacheable(100));
+        assertFalse(cache.isCacheable(101));
+        assertFalse(new RegionCache(0).isCacheable(1));
+    }
+}
@@ -0,0 +1,58 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.RenderPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderPoolUnitTests {
+
+    private final RenderPool renderPool = new RenderPool(2, 2);
+
+    @AfterEach
+    void tearDown() {
+        renderPool.destroy();
+    }
+
+    @Test
+    void invokeAll_shouldRunEveryBand() throws IOException {
+        AtomicInteger done = new AtomicInteger();
+        Callable<Void> band = () -> {
+            done.incrementAndGet();
+            return null;
+        };
+
+        renderPool.invokeAll(List.of(band, band, band, band));
+
+        assertEquals(4, done.get());
+    }
+
+    @Test
+    void invokeAll_shouldPropagateIOExceptionOfBand() {
+        IOException failure = new IOException("Can't read fragment");
+        Callable<Void> ok = () -> null;
+        Callable<Void> broken = () -> {
+            throw failure;
+        };
+
+        assertSame(failure, assertThrows(IOException.class, () -> renderPool.invokeAll(List.of(ok, broken, ok))));
+        assertSame(failure, assertThrows(IOException.class, () -> renderPool.invokeAll(List.of(broken))));
+    }
+
+    @Test
+    void invokeAll_shouldWrapOtherExceptionOfBand() {
+        IllegalStateException failure = new IllegalStateException("Broken band");
+        Callable<Void> broken = () -> {
+            throw failure;
+        };
+
+        IOException e = assertThrows(IOException.class, () -> renderPool.invokeAll(List.of(broken, () -> null)));
+        assertSame(failure, e.getCause());
+    }
+}
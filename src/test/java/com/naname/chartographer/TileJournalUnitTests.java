@@ -0,0 +1,68 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileJournalUnitTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void append_shouldRecordEntriesBeforeWrite() throws IOException {
+        TileJournal journal = new TileJournal(StorageMode.MATERIALIZED, dir.resolve("journal"));
+        AtomicInteger written = new AtomicInteger();
+        journal.append(1, 10, () -> assertEquals(1, journal.read().size()));
+        journal.append(1, 11, written::incrementAndGet);
+
+        assertEquals(1, written.get());
+        assertEquals(List.of(new TileJournal.Entry(1, 10), new TileJournal.Entry(1, 11)), journal.read());
+    }
+
+    @Test
+    void truncate_shouldKeepEntriesAfterCheckpoint() throws IOException {
+        TileJournal journal = new TileJournal(StorageMode.MATERIALIZED, dir.resolve("journal"));
+        journal.append(1, 10, () -> {
+        });
+        long position = journal.checkpoint();
+        journal.append(2, 20, () -> {
+        });
+
+        journal.truncate(position);
+        journal.append(3, 30, () -> {
+        });
+
+        assertEquals(List.of(new TileJournal.Entry(2, 20), new TileJournal.Entry(3, 30)), journal.read());
+    }
+
+    @Test
+    void read_shouldSkipTornEntry() throws IOException {
+        TileJournal journal = new TileJournal(StorageMode.MATERIALIZED, dir.resolve("journal"));
+        journal.append(1, 10, () -> {
+        });
+        Files.write(journal.getPath(), new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+        assertEquals(List.of(new TileJournal.Entry(1, 10)), journal.read());
+    }
+
+    @Test
+    void append_shouldNotRecordInOtherModes() throws IOException {
+        TileJournal journal = new TileJournal(StorageMode.TILES, dir.resolve("journal"));
+        AtomicInteger written = new AtomicInteger();
+        journal.append(1, 10, written::incrementAndGet);
+
+        assertEquals(1, written.get());
+        assertFalse(Files.exists(journal.getPath()));
+    }
+}
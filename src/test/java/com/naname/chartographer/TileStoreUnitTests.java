@@ -0,0 +1,128 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.data.Canvas;
+import com.naname.chartographer.storage.StorageMode;
+import com.naname.chartographer.storage.TileStore;
+import com.naname.chartographer.util.FileUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileStoreUnitTests {
+
+    private final TileStore tileStore = new TileStore(StorageMode.TILES);
+
+    private final Canvas canvas = new Canvas(600, 300);
+
+    @TempDir
+    Path dataDir;
+
+    @BeforeEach
+    void setUp() {
+        FileUtil.createDirectoriesToSaveData(dataDir.toString());
+        canvas.setId(1);
+    }
+
+    @Test
+    void read_shouldReturnWrittenPixels() throws IOException {
+        tileStore.write(canvas, 250, 100, filled(100, 200, Color.RED));
+
+        BufferedImage res = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 240, 250, res);
+
+        assertEquals(0, res.getRGB(9, 0) & 0xFFFFFF);
+        assertEquals(Color.RED.getRGB(), res.getRGB(10, 0));
+        assertEquals(Color.RED.getRGB(), res.getRGB(19, 19));
+    }
+
+    @Test
+    void write_shouldOverwriteOlderPixels() throws IOException {
+        tileStore.write(canvas, 0, 0, filled(300, 300, Color.RED));
+        tileStore.write(canvas, 100, 100, filled(50, 50, Color.GREEN));
+
+        BufferedImage res = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 0, 0, res);
+
+        assertEquals(Color.RED.getRGB(), res.getRGB(99, 99));
+        assertEquals(Color.GREEN.getRGB(), res.getRGB(100, 100));
+        assertEquals(Color.GREEN.getRGB(), res.getRGB(149, 149));
+        assertEquals(Color.RED.getRGB(), res.getRGB(150, 150));
+    }
+
+    @Test
+    void write_shouldIgnorePixelsOutsideCanvas() throws IOException {
+        tileStore.write(canvas, 550, 250, filled(100, 100, Color.BLUE));
+
+        Path tiles = FileUtil.getTilesAbsolutePath().toPath().resolve("1");
+        assertTrue(Files.exists(tiles.resolve("2_1.tile")));
+        assertFalse(Files.exists(tiles.resolve("3_0.tile")));
+        assertFalse(Files.exists(tiles.resolve("3_1.tile")));
+    }
+
+    @Test
+    void delete_shouldRemoveTiles() throws IOException {
+        tileStore.write(canvas, 0, 0, filled(10, 10, Color.RED));
+        tileStore.delete(canvas.getId());
+
+        BufferedImage res = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 0, 0, res);
+        assertEquals(0, res.getRGB(5, 5) & 0xFFFFFF);
+    }
+
+    @Test
+    void write_shouldKeepMaterializedTilesInMemoryUntilFlush() throws IOException {
+        TileStore materialized = new TileStore(StorageMode.MATERIALIZED, 512);
+        materialized.write(canvas, 0, 0, filled(10, 10, Color.RED));
+        materialized.write(canvas, 5, 5, filled(10, 10, Color.GREEN));
+
+        Path tile = FileUtil.getTilesAbsolutePath().toPath().resolve("1").resolve("0_0.tile");
+        assertFalse(Files.exists(tile));
+        assertEquals(1, materialized.getTiles(canvas.getId()).size());
+        BufferedImage res = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        materialized.read(canvas, 0, 0, res);
+        assertEquals(Color.RED.getRGB(), res.getRGB(0, 0));
+        assertEquals(Color.GREEN.getRGB(), res.getRGB(5, 5));
+
+        assertEquals(1, materialized.flush());
+        assertEquals(0, materialized.getDirtyCount());
+        assertTrue(Files.exists(tile));
+        res = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        tileStore.read(canvas, 0, 0, res);
+        assertEquals(Color.GREEN.getRGB(), res.getRGB(14, 14));
+    }
+
+    @Test
+    void write_shouldFlushWhenTooManyTilesAreDirty() throws IOException {
+        TileStore materialized = new TileStore(StorageMode.MATERIALIZED, 1);
+        materialized.write(canvas, 0, 0, filled(300, 10, Color.RED));
+
+        assertEquals(0, materialized.getDirtyCount());
+        assertTrue(Files.exists(FileUtil.getTilesAbsolutePath().toPath().resolve("1").resolve("1_0.tile")));
+    }
+
+    @Test
+    void delete_shouldDropDirtyTiles() throws IOException {
+        TileStore materialized = new TileStore(StorageMode.MATERIALIZED, 512);
+        materialized.write(canvas, 0, 0, filled(10, 10, Color.RED));
+        materialized.delete(canvas.getId());
+        materialized.flush();
+
+        assertFalse(Files.exists(FileUtil.getTilesAbsolutePath().toPath().resolve("1")));
+    }
+
+    private BufferedImage filled(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setPaint(color);
+        g2d.fillRect(0, 0, width, height);
+        return image;
+    }
+}
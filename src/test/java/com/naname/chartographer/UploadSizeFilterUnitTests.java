@@ -0,0 +1,40 @@
+package com.naname.chartographer;
+
+import com.naname.chartographer.web.UploadSizeFilter;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadSizeFilterUnitTests {
+
+    private final UploadSizeFilter filter = new UploadSizeFilter(DataSize.ofBytes(10));
+
+    @Test
+    void doFilter_shouldRejectRequestLongerThanLimit() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/chartas/1/batch");
+        request.setContent(new byte[11]);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, response, chain);
+
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE.value(), response.getStatus());
+        assertNull(chain.getRequest());
+    }
+
+    @Test
+    void doFilter_shouldPassRequestWithinLimit() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/chartas/1/batch");
+        request.setContent(new byte[10]);
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        assertSame(request, chain.getRequest());
+    }
+}